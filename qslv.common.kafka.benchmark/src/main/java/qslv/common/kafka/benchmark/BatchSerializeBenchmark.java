@@ -0,0 +1,85 @@
+package qslv.common.kafka.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import qslv.common.kafka.JacksonAvroSerializer;
+
+/**
+ * A producer burst serialized record by record, as serialize(topic, object) is called today, against
+ * serializeBatch and serializeBatchSlices. Each operation is one whole batch, so compare scores within a
+ * batchSize; divide by batchSize for the per-record cost.
+ *
+ * Ex: java -jar target/benchmarks.jar BatchSerializeBenchmark -p batchSize=1024 -p size=SMALL
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchSerializeBenchmark {
+
+	@Param({ "1", "16", "256", "4096" })
+	public int batchSize;
+
+	@Param({ "SMALL", "MEDIUM" })
+	public SerdeFixtures.Size size;
+
+	@Param({ "PLAIN", "TRACEABLE" })
+	public SerdeFixtures.Shape shape;
+
+	private JacksonAvroSerializer<Object> serializer;
+	private List<Object> batch;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		serializer = SerdeFixtures.serializer(shape, new MockSchemaRegistryClient());
+		batch = new ArrayList<>(batchSize);
+		for (int ii = 0; ii < batchSize; ii++) {
+			batch.add(SerdeFixtures.message(shape, size));
+		}
+		serializer.serializeBatch(SerdeFixtures.TOPIC, batch);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		serializer.close();
+	}
+
+	@Benchmark
+	public List<byte[]> perRecord() {
+		List<byte[]> serialized = new ArrayList<>(batch.size());
+		for (Object message : batch) {
+			serialized.add(serializer.serialize(SerdeFixtures.TOPIC, message));
+		}
+		return serialized;
+	}
+
+	@Benchmark
+	public List<byte[]> batch() {
+		return serializer.serializeBatch(SerdeFixtures.TOPIC, batch);
+	}
+
+	@Benchmark
+	public List<ByteBuffer> batchSlices() {
+		return serializer.serializeBatchSlices(SerdeFixtures.TOPIC, batch);
+	}
+}
@@ -0,0 +1,42 @@
+package qslv.common.kafka.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain pojo used as the benchmark message body. The payload size is driven by the
+ * length of the memo and the number of tags.
+ */
+public class BenchmarkPayload {
+	private String accountNumber;
+	private long amount;
+	private String memo;
+	private List<String> tags = new ArrayList<>();
+
+	public BenchmarkPayload() {
+	}
+	public String getAccountNumber() {
+		return accountNumber;
+	}
+	public void setAccountNumber(String accountNumber) {
+		this.accountNumber = accountNumber;
+	}
+	public long getAmount() {
+		return amount;
+	}
+	public void setAmount(long amount) {
+		this.amount = amount;
+	}
+	public String getMemo() {
+		return memo;
+	}
+	public void setMemo(String memo) {
+		this.memo = memo;
+	}
+	public List<String> getTags() {
+		return tags;
+	}
+	public void setTags(List<String> tags) {
+		this.tags = tags;
+	}
+}
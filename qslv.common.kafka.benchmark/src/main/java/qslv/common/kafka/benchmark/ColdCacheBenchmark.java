@@ -0,0 +1,77 @@
+package qslv.common.kafka.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import qslv.common.kafka.JacksonAvroDeserializer;
+import qslv.common.kafka.JacksonAvroSerializer;
+
+/**
+ * First-message cost on a freshly configured serde: schema lookup or generation,
+ * registration, and writer/reader compilation. Every invocation starts with empty caches: each gets its own
+ * registry client, so its serdes share no context with the last invocation's.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+@State(Scope.Thread)
+public class ColdCacheBenchmark {
+
+	@Param({ "SMALL", "LARGE" })
+	public SerdeFixtures.Size size;
+
+	@Param({ "PLAIN", "TRACEABLE", "RESPONSE", "MIXIN" })
+	public SerdeFixtures.Shape shape;
+
+	private Object message;
+	private byte[] serialized;
+	private JacksonAvroSerializer<Object> serializer;
+	private JacksonAvroDeserializer<Object> deserializer;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		message = SerdeFixtures.message(shape, size);
+	}
+
+	@Setup(Level.Invocation)
+	public void setupInvocation() {
+		MockSchemaRegistryClient registry = new MockSchemaRegistryClient();
+		JacksonAvroSerializer<Object> producer = SerdeFixtures.serializer(shape, registry);
+		serialized = producer.serialize(SerdeFixtures.TOPIC, message);
+		producer.close();
+		serializer = SerdeFixtures.serializer(shape, registry);
+		deserializer = SerdeFixtures.deserializer(registry);
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownInvocation() {
+		serializer.close();
+		deserializer.close();
+	}
+
+	@Benchmark
+	public byte[] serializeFirstMessage() {
+		return serializer.serialize(SerdeFixtures.TOPIC, message);
+	}
+
+	@Benchmark
+	public Object deserializeFirstMessage() {
+		return deserializer.deserialize(SerdeFixtures.TOPIC, serialized);
+	}
+}
@@ -0,0 +1,39 @@
+package qslv.common.kafka.benchmark;
+
+/**
+ * Stands in for a legacy class that cannot be annotated. LegacyAccountMixin supplies the
+ * Jackson annotations through the mapper.mixins. configuration.
+ */
+public class LegacyAccount {
+	private String accountNumber;
+	private long balance;
+	private String owner;
+	private Object connection;
+
+	public LegacyAccount() {
+	}
+	public String getAccountNumber() {
+		return accountNumber;
+	}
+	public void setAccountNumber(String accountNumber) {
+		this.accountNumber = accountNumber;
+	}
+	public long getBalance() {
+		return balance;
+	}
+	public void setBalance(long balance) {
+		this.balance = balance;
+	}
+	public String getOwner() {
+		return owner;
+	}
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+	public Object getConnection() {
+		return connection;
+	}
+	public void setConnection(Object connection) {
+		this.connection = connection;
+	}
+}
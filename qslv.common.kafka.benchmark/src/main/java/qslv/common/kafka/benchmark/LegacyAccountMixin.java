@@ -0,0 +1,12 @@
+package qslv.common.kafka.benchmark;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public abstract class LegacyAccountMixin {
+	@JsonProperty("acct") private String accountNumber;
+	@JsonIgnore private Object connection;
+
+	@JsonProperty("acct") abstract String getAccountNumber();
+	@JsonIgnore abstract Object getConnection();
+}
@@ -0,0 +1,131 @@
+package qslv.common.kafka.benchmark;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
+import qslv.common.kafka.JacksonAvroDeserializer;
+import qslv.common.kafka.JacksonAvroSerdeConfig;
+import qslv.common.kafka.JacksonAvroSerializer;
+import qslv.common.kafka.ResponseMessage;
+import qslv.common.kafka.TraceableMessage;
+
+/**
+ * Builds the messages and configured serdes shared by the benchmarks. Everything runs
+ * against an in-memory schema registry so no network time is measured.
+ */
+public final class SerdeFixtures {
+	public static final String TOPIC = "benchmark.topic";
+
+	public enum Size {
+		SMALL(16, 2), MEDIUM(512, 16), LARGE(16384, 256);
+
+		final int memoLength;
+		final int tagCount;
+
+		Size(int memoLength, int tagCount) {
+			this.memoLength = memoLength;
+			this.tagCount = tagCount;
+		}
+	}
+
+	public enum Shape {
+		PLAIN, TRACEABLE, RESPONSE, MIXIN
+	}
+
+	private SerdeFixtures() {
+	}
+
+	public static Map<String, Object> config() {
+		Map<String, Object> config = new HashMap<>();
+		config.put(AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://mock-registry:8081");
+		config.put(AbstractKafkaAvroSerDeConfig.AUTO_REGISTER_SCHEMAS, true);
+		config.put(JacksonAvroSerdeConfig.CONFIG_MIXINS + LegacyAccount.class.getName(), LegacyAccountMixin.class.getName());
+		return config;
+	}
+
+	public static BenchmarkPayload payload(Size size) {
+		BenchmarkPayload payload = new BenchmarkPayload();
+		payload.setAccountNumber("ACCT-0000123456");
+		payload.setAmount(123456789L);
+		StringBuilder memo = new StringBuilder(size.memoLength);
+		for (int ii = 0; ii < size.memoLength; ii++) {
+			memo.append((char) ('a' + (ii % 26)));
+		}
+		payload.setMemo(memo.toString());
+		List<String> tags = new ArrayList<>(size.tagCount);
+		for (int ii = 0; ii < size.tagCount; ii++) {
+			tags.add("tag-" + ii);
+		}
+		payload.setTags(tags);
+		return payload;
+	}
+
+	public static Object message(Shape shape, Size size) {
+		switch (shape) {
+		case TRACEABLE:
+			TraceableMessage<BenchmarkPayload> traceable = new TraceableMessage<>();
+			traceable.setProducerAit("27834");
+			traceable.setBusinessTaxonomyId("7.2.3");
+			traceable.setCorrelationId("f3c6a1e2-5b55-4d8f-9a1e-0c3b8b7f6a11");
+			traceable.setMessageCreationTime(LocalDateTime.of(2020, 7, 1, 12, 30, 15));
+			traceable.setPayload(payload(size));
+			return traceable;
+		case RESPONSE:
+			TraceableMessage<BenchmarkPayload> request = new TraceableMessage<>();
+			request.setProducerAit("27834");
+			request.setBusinessTaxonomyId("7.2.3");
+			request.setCorrelationId("f3c6a1e2-5b55-4d8f-9a1e-0c3b8b7f6a11");
+			request.setMessageCreationTime(LocalDateTime.of(2020, 7, 1, 12, 30, 15));
+			ResponseMessage<BenchmarkPayload, BenchmarkPayload> response = 
+					new ResponseMessage<>(request, payload(size), payload(size));
+			response.setResponderAit("88442");
+			response.setMessageCompletionTime(LocalDateTime.of(2020, 7, 1, 12, 30, 16));
+			return response;
+		case MIXIN:
+			LegacyAccount account = new LegacyAccount();
+			account.setAccountNumber("ACCT-0000123456");
+			account.setBalance(123456789L);
+			account.setOwner(payload(size).getMemo());
+			account.setConnection(new Object());
+			return account;
+		default:
+			return payload(size);
+		}
+	}
+
+	/**
+	 * Envelopes are generic, so Jackson needs the full parametric type to build their schema.
+	 */
+	public static JavaType type(Shape shape, TypeFactory typeFactory) {
+		switch (shape) {
+		case TRACEABLE:
+			return typeFactory.constructParametricType(TraceableMessage.class, BenchmarkPayload.class);
+		case RESPONSE:
+			return typeFactory.constructParametricType(ResponseMessage.class, BenchmarkPayload.class, BenchmarkPayload.class);
+		case MIXIN:
+			return typeFactory.constructType(LegacyAccount.class);
+		default:
+			return typeFactory.constructType(BenchmarkPayload.class);
+		}
+	}
+
+	public static JacksonAvroSerializer<Object> serializer(Shape shape, SchemaRegistryClient registry) {
+		JacksonAvroSerializer<Object> serializer = new JacksonAvroSerializer<>(registry);
+		serializer.configure(config(), false, type(shape, serializer.getTypeFactory()));
+		return serializer;
+	}
+
+	public static JacksonAvroDeserializer<Object> deserializer(SchemaRegistryClient registry) {
+		JacksonAvroDeserializer<Object> deserializer = new JacksonAvroDeserializer<>(registry);
+		deserializer.configure(config(), false);
+		return deserializer;
+	}
+}
@@ -0,0 +1,166 @@
+package qslv.common.kafka.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.annotation.Annotation;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.apache.avro.Schema;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+import qslv.common.kafka.AvroSchemaGenerator;
+import qslv.common.kafka.GenerateAvroSchema;
+
+/**
+ * Writes the Avro schema of each class annotated with GenerateAvroSchema, or listed in classes, as an .avsc
+ * file into the build output, where JacksonAvroSerializer finds it before falling back to runtime generation.
+ * Also writes the fingerprint index read by AvroSchemaGenerator. Files whose content is unchanged are not
+ * rewritten.
+ * 
+ * The properties are the serde configuration the schemas are generated with, typically the mixins and
+ * mapper.timestamps.binary of the producer.
+ * 
+ * See the README for a configuration example.
+ * 
+ * @author SMS
+ *
+ */
+@Mojo(name = "generate-schemas", defaultPhase = LifecyclePhase.PROCESS_CLASSES, 
+		requiresDependencyResolution = ResolutionScope.COMPILE_PLUS_RUNTIME, threadSafe = true)
+public class GenerateSchemasMojo extends AbstractMojo {
+
+	@Parameter(defaultValue = "${project}", readonly = true, required = true)
+	private MavenProject project;
+
+	@Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+	private File classesDirectory;
+
+	@Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+	private File outputDirectory;
+
+	/**
+	 * Classes to generate in addition to the annotated ones.
+	 */
+	@Parameter
+	private List<String> classes = new ArrayList<>();
+
+	@Parameter
+	private Map<String, String> properties = Collections.emptyMap();
+
+	@Parameter(property = "qslv.schema.skip", defaultValue = "false")
+	private boolean skip;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		if (skip || !classesDirectory.isDirectory()) {
+			getLog().info("Schema generation skipped");
+			return;
+		}
+		Thread thread = Thread.currentThread();
+		ClassLoader original = thread.getContextClassLoader();
+		try (URLClassLoader loader = projectClassLoader()) {
+			// configureMixins and Jackson resolve project classes through the context class loader
+			thread.setContextClassLoader(loader);
+			AvroSchemaGenerator generator = new AvroSchemaGenerator(properties);
+			SortedMap<String, Long> fingerprints = new TreeMap<>();
+			for (String classname : classNames(loader)) {
+				Class<?> clazz = Class.forName(classname, true, loader);
+				Schema schema = generator.generate(clazz);
+				String resource = AvroSchemaGenerator.resourceName(clazz);
+				boolean written = write(outputDirectory.toPath().resolve(resource), schema.toString(true) + "\n");
+				fingerprints.put(clazz.getCanonicalName(), AvroSchemaGenerator.fingerprint(schema));
+				getLog().debug((written ? "Generated " : "Unchanged ") + resource);
+			}
+			StringWriter index = new StringWriter();
+			AvroSchemaGenerator.writeIndex(fingerprints, index);
+			write(outputDirectory.toPath().resolve(AvroSchemaGenerator.INDEX_RESOURCE), index.toString());
+			getLog().info("Generated Avro schemas for " + fingerprints.size() + " classes");
+		} catch (IOException | ClassNotFoundException | LinkageError | DependencyResolutionRequiredException ex) {
+			throw new MojoExecutionException("Avro schema generation failed. " + ex.getMessage(), ex);
+		} finally {
+			thread.setContextClassLoader(original);
+		}
+	}
+
+	private URLClassLoader projectClassLoader() throws DependencyResolutionRequiredException, MalformedURLException {
+		List<URL> urls = new ArrayList<>();
+		urls.add(classesDirectory.toURI().toURL());
+		for (String element : project.getRuntimeClasspathElements()) {
+			urls.add(new File(element).toURI().toURL());
+		}
+		// parent first, so the project's classes see the plugin's Jackson and annotations
+		return new URLClassLoader(urls.toArray(new URL[0]), getClass().getClassLoader());
+	}
+
+	private Set<String> classNames(ClassLoader loader) throws IOException, ClassNotFoundException {
+		Set<String> names = new LinkedHashSet<>(classes);
+		Path root = classesDirectory.toPath();
+		List<String> scanned = new ArrayList<>();
+		try (Stream<Path> files = Files.walk(root)) {
+			files.filter(path -> path.toString().endsWith(".class"))
+				.map(path -> root.relativize(path).toString().replace(File.separatorChar, '.'))
+				.map(name -> name.substring(0, name.length() - ".class".length()))
+				.filter(name -> !name.endsWith("package-info") && !name.endsWith("module-info"))
+				.sorted()
+				.forEach(scanned::add);
+		}
+		for (String name : scanned) {
+			Class<?> clazz;
+			try {
+				clazz = Class.forName(name, false, loader);
+			} catch (ClassNotFoundException | LinkageError ex) {
+				getLog().debug("Skipping " + name + ". " + ex);
+				continue;
+			}
+			if (isAnnotated(clazz)) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * By name, the project may bring its own copy of the annotation.
+	 */
+	private static boolean isAnnotated(Class<?> clazz) {
+		for (Annotation annotation : clazz.getAnnotations()) {
+			if (annotation.annotationType().getName().equals(GenerateAvroSchema.class.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean write(Path path, String content) throws IOException {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		if (Files.exists(path) && Arrays.equals(bytes, Files.readAllBytes(path))) {
+			return false;
+		}
+		Files.createDirectories(path.getParent());
+		Files.write(path, bytes);
+		return true;
+	}
+}
@@ -0,0 +1,206 @@
+package qslv.common.kafka;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.kafka.common.errors.SerializationException;
+
+/**
+ * Minimal reader over Avro binary encoded bytes. Unlike Avro's BinaryDecoder it exposes its position,
+ * so callers can find the byte range of a value and hand it on undecoded, and it can skip any value
+ * given its schema without materializing it.
+ * 
+ * Not thread-safe; cursors are cheap and meant to be created per message.
+ * 
+ * @author SMS
+ *
+ */
+final class AvroBinaryCursor {
+	private final byte[] buf;
+	private final int limit;
+	private int pos;
+
+	AvroBinaryCursor(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	int position() {
+		return pos;
+	}
+	void position(int position) {
+		this.pos = position;
+	}
+	int limit() {
+		return limit;
+	}
+	byte[] array() {
+		return buf;
+	}
+
+	long readLong() {
+		long value = 0L;
+		int shift = 0;
+		while (true) {
+			require(1);
+			int b = buf[pos++] & 0xff;
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+			if (shift > 63) {
+				throw new SerializationException("Invalid Avro long at offset " + pos);
+			}
+		}
+		return (value >>> 1) ^ -(value & 1L);
+	}
+
+	int readInt() {
+		return (int) readLong();
+	}
+
+	boolean readBoolean() {
+		require(1);
+		return buf[pos++] != 0;
+	}
+
+	float readFloat() {
+		require(4);
+		int bits = (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8) | ((buf[pos + 2] & 0xff) << 16) | ((buf[pos + 3] & 0xff) << 24);
+		pos += 4;
+		return Float.intBitsToFloat(bits);
+	}
+
+	double readDouble() {
+		require(8);
+		long bits = 0L;
+		for (int ii = 7; ii >= 0; ii--) {
+			bits = (bits << 8) | (buf[pos + ii] & 0xffL);
+		}
+		pos += 8;
+		return Double.longBitsToDouble(bits);
+	}
+
+	/**
+	 * Read the length prefix of a string or bytes value. The cursor is left at the first content byte.
+	 */
+	int readLength() {
+		long length = readLong();
+		if (length < 0 || length > limit - pos) {
+			throw new SerializationException("Invalid Avro length " + length + " at offset " + pos);
+		}
+		return (int) length;
+	}
+
+	String readString() {
+		int length = readLength();
+		String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+		pos += length;
+		return value;
+	}
+
+	/**
+	 * Read a string through the cache, which allocates nothing for a value it already holds.
+	 */
+	String readString(Utf8StringCache cache) {
+		int length = readLength();
+		String value = cache.get(buf, pos, length);
+		pos += length;
+		return value;
+	}
+
+	void skip(int length) {
+		require(length);
+		pos += length;
+	}
+
+	/**
+	 * Skip one value of the given schema.
+	 */
+	void skip(Schema schema) {
+		switch (schema.getType()) {
+		case NULL:
+			return;
+		case BOOLEAN:
+			skip(1);
+			return;
+		case INT:
+		case LONG:
+		case ENUM:
+			readLong();
+			return;
+		case FLOAT:
+			skip(4);
+			return;
+		case DOUBLE:
+			skip(8);
+			return;
+		case STRING:
+		case BYTES:
+			skip(readLength());
+			return;
+		case FIXED:
+			skip(schema.getFixedSize());
+			return;
+		case RECORD:
+			for (Schema.Field field : schema.getFields()) {
+				skip(field.schema());
+			}
+			return;
+		case UNION:
+			skip(branch(schema));
+			return;
+		case ARRAY:
+			skipBlocks(schema.getElementType(), false);
+			return;
+		case MAP:
+			skipBlocks(schema.getValueType(), true);
+			return;
+		default:
+			throw new SerializationException("Unsupported Avro type " + schema.getType());
+		}
+	}
+
+	/**
+	 * Read a union index and return the schema of the selected branch.
+	 */
+	Schema branch(Schema union) {
+		int index = readInt();
+		List<Schema> types = union.getTypes();
+		if (index < 0 || index >= types.size()) {
+			throw new SerializationException("Invalid Avro union index " + index + " at offset " + pos);
+		}
+		return types.get(index);
+	}
+
+	private void skipBlocks(Schema itemSchema, boolean map) {
+		long count = readLong();
+		while (count != 0) {
+			if (count < 0) {
+				// a negative count is followed by the block size in bytes
+				long size = readLong();
+				if (size < 0 || size > limit - pos) {
+					throw new SerializationException("Invalid Avro block size " + size + " at offset " + pos);
+				}
+				skip((int) size);
+			} else {
+				for (long ii = 0; ii < count; ii++) {
+					if (map) {
+						skip(readLength());
+					}
+					skip(itemSchema);
+				}
+			}
+			count = readLong();
+		}
+	}
+
+	private void require(int bytes) {
+		if (bytes > limit - pos) {
+			throw new SerializationException("Truncated Avro data at offset " + pos);
+		}
+	}
+}
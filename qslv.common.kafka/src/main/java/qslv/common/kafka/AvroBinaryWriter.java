@@ -0,0 +1,59 @@
+package qslv.common.kafka;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Avro binary encoding of primitive values onto an OutputStream, the write side of AvroBinaryCursor.
+ * Unlike Avro's BinaryEncoder it keeps no buffer of its own, so nothing needs flushing or reusing.
+ * 
+ * @author SMS
+ *
+ */
+final class AvroBinaryWriter {
+	private AvroBinaryWriter() {
+	}
+
+	static void writeLong(OutputStream out, long value) throws IOException {
+		long n = (value << 1) ^ (value >> 63);
+		while ((n & ~0x7FL) != 0L) {
+			out.write((int) ((n & 0x7F) | 0x80));
+			n >>>= 7;
+		}
+		out.write((int) n);
+	}
+
+	static void writeInt(OutputStream out, int value) throws IOException {
+		writeLong(out, value);
+	}
+
+	static void writeBoolean(OutputStream out, boolean value) throws IOException {
+		out.write(value ? 1 : 0);
+	}
+
+	static void writeFloat(OutputStream out, float value) throws IOException {
+		int bits = Float.floatToRawIntBits(value);
+		out.write(bits);
+		out.write(bits >>> 8);
+		out.write(bits >>> 16);
+		out.write(bits >>> 24);
+	}
+
+	static void writeDouble(OutputStream out, double value) throws IOException {
+		long bits = Double.doubleToRawLongBits(value);
+		for (int ii = 0; ii < 8; ii++) {
+			out.write((int) bits);
+			bits >>>= 8;
+		}
+	}
+
+	static void writeBytes(OutputStream out, byte[] value) throws IOException {
+		writeLong(out, value.length);
+		out.write(value, 0, value.length);
+	}
+
+	static void writeString(OutputStream out, String value) throws IOException {
+		writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,146 @@
+package qslv.common.kafka;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.WeakHashMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.avro.AvroMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * Generates Avro schemas from classes with Jackson, exactly as JacksonAvroSerializer does when no schema is
+ * configured or found. Used by the serializer at runtime and by the qslv-common-kafka-maven-plugin at build time,
+ * so a schema generated by either is the same.
+ * 
+ * At build time the plugin writes one .avsc per class, named by resourceName(), plus an index of the generated
+ * classes and the parsing fingerprint of each schema. The index is read once per class loader, the loader of the
+ * class looked up, so applications in one JVM with their own loaders each see their own index.
+ * 
+ * Ex: new AvroSchemaGenerator(props).generate(Pojo5.class);
+ * 
+ * @author SMS
+ *
+ */
+public class AvroSchemaGenerator {
+	private static final Logger log = LoggerFactory.getLogger(AvroSchemaGenerator.class);
+
+	public static final String AVRO_FILE_EXTENSION = ".avsc";
+	public static final String INDEX_RESOURCE = "META-INF/qslv/avro-schemas.index";
+
+	// class loader to its index, weakly keyed so a discarded application loader is not kept. Guarded by itself.
+	private static final Map<ClassLoader, Map<String, Long>> indexes = new WeakHashMap<>();
+
+	private final AvroMapper mapper;
+	private final boolean binaryTimestamps;
+
+	/**
+	 * A generator configured as a serializer would be by the same properties: mixins and binary timestamps.
+	 */
+	public AvroSchemaGenerator(Map<String, ?> config) {
+		this.mapper = new AvroMapper();
+		mapper.registerModule(new JavaTimeModule());
+		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+		JacksonAvroSerdeConfig.configureMixins(config, mapper);
+		this.binaryTimestamps = JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_TIMESTAMPS_BINARY, false);
+		if (binaryTimestamps) {
+			mapper.registerModule(new AvroTimestampModule(true));
+		}
+	}
+
+	public Schema generate(Class<?> clazz) throws JsonMappingException {
+		return generate(mapper, mapper.constructType(clazz), binaryTimestamps);
+	}
+
+	public static Schema generate(AvroMapper mapper, JavaType type, boolean binaryTimestamps) throws JsonMappingException {
+		Schema schema = mapper.schemaFor(type).getAvroSchema();
+		if (binaryTimestamps) {
+			schema = AvroTimestampModule.withLogicalTypes(schema, type, mapper.getSerializationConfig());
+		}
+		return schema;
+	}
+
+	/**
+	 * Classpath resource of the class's schema file, e.g. qslv/common/kafka/Pojo5.avsc
+	 */
+	public static String resourceName(Class<?> clazz) {
+		return clazz.getCanonicalName().replace('.', '/').concat(AVRO_FILE_EXTENSION);
+	}
+
+	public static long fingerprint(Schema schema) {
+		return SchemaNormalization.parsingFingerprint64(schema);
+	}
+
+	/**
+	 * Writes index lines, class name = fingerprint in hex. Sorted input gives the same file for the same schemas.
+	 */
+	public static void writeIndex(SortedMap<String, Long> fingerprints, Writer writer) throws IOException {
+		for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+			writer.write(entry.getKey());
+			writer.write('=');
+			writer.write(Long.toHexString(entry.getValue()));
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * @return the build-time fingerprint of the class's generated schema, null when it was not generated
+	 */
+	public static Long indexedFingerprint(Class<?> clazz) {
+		ClassLoader classLoader = clazz.getClassLoader();
+		if (classLoader == null) {
+			classLoader = Thread.currentThread().getContextClassLoader() == null 
+					? AvroSchemaGenerator.class.getClassLoader() : Thread.currentThread().getContextClassLoader();
+		}
+		Map<String, Long> loaded;
+		synchronized (indexes) {
+			loaded = indexes.get(classLoader);
+			if (loaded == null) {
+				loaded = loadIndex(classLoader);
+				indexes.put(classLoader, loaded);
+			}
+		}
+		return loaded.get(clazz.getCanonicalName());
+	}
+
+	static Map<String, Long> loadIndex(ClassLoader classLoader) {
+		Map<String, Long> fingerprints = new HashMap<>();
+		try {
+			Enumeration<URL> resources = classLoader.getResources(INDEX_RESOURCE);
+			while (resources.hasMoreElements()) {
+				URL url = resources.nextElement();
+				try (InputStream in = url.openStream();
+						BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						int split = line.indexOf('=');
+						if (split > 0) {
+							fingerprints.put(line.substring(0, split).trim(), Long.parseUnsignedLong(line.substring(split + 1).trim(), 16));
+						}
+					}
+				}
+			}
+		} catch (IOException | NumberFormatException ex) {
+			log.warn("Could not read generated schema index {}. {}", INDEX_RESOURCE, ex.getMessage());
+		}
+		log.debug("{} generated schemas indexed", fingerprints.size());
+		return Collections.unmodifiableMap(fingerprints);
+	}
+}
@@ -0,0 +1,267 @@
+package qslv.common.kafka;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+import org.apache.avro.LogicalType;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.NumberType;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.ContextualDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.jsonFormatVisitors.JsonFormatVisitorWrapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.datatype.jsr310.deser.InstantDeserializer;
+import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
+
+/**
+ * Compact binary encoding of java.time values. With binary writes enabled, LocalDateTime is written as an
+ * Avro local-timestamp-micros long and Instant, OffsetDateTime and ZonedDateTime as timestamp-micros longs,
+ * in place of ~25 byte ISO strings. withLogicalTypes() adds the logical types to a Jackson generated schema.
+ * 
+ * The deserializer always registers the reading half, which accepts both the ISO string form and the long
+ * form, so consumers can be upgraded before producers switch over.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_TIMESTAMPS_BINARY, "true");
+ * 
+ * @author SMS
+ *
+ */
+public class AvroTimestampModule extends SimpleModule {
+	private static final long serialVersionUID = 1L;
+
+	public static final String TIMESTAMP_MICROS = "timestamp-micros";
+	public static final String LOCAL_TIMESTAMP_MICROS = "local-timestamp-micros";
+
+	/**
+	 * @param binaryWrites true to also write java.time values as microsecond longs
+	 */
+	public AvroTimestampModule(boolean binaryWrites) {
+		super("AvroTimestampModule");
+		if (binaryWrites) {
+			addSerializer(LocalDateTime.class, new MicrosSerializer<LocalDateTime>(LocalDateTime.class) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				long toMicros(LocalDateTime value) {
+					return AvroTimestampModule.toMicros(value);
+				}
+			});
+			addSerializer(Instant.class, new MicrosSerializer<Instant>(Instant.class) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				long toMicros(Instant value) {
+					return AvroTimestampModule.toMicros(value);
+				}
+			});
+			addSerializer(OffsetDateTime.class, new MicrosSerializer<OffsetDateTime>(OffsetDateTime.class) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				long toMicros(OffsetDateTime value) {
+					return AvroTimestampModule.toMicros(value.toInstant());
+				}
+			});
+			addSerializer(ZonedDateTime.class, new MicrosSerializer<ZonedDateTime>(ZonedDateTime.class) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				long toMicros(ZonedDateTime value) {
+					return AvroTimestampModule.toMicros(value.toInstant());
+				}
+			});
+		}
+		addDeserializer(LocalDateTime.class, new MicrosDeserializer<>(LocalDateTime.class, LocalDateTimeDeserializer.INSTANCE,
+				AvroTimestampModule::localDateTimeFromMicros));
+		addDeserializer(Instant.class, new MicrosDeserializer<>(Instant.class, InstantDeserializer.INSTANT,
+				AvroTimestampModule::instantFromMicros));
+		addDeserializer(OffsetDateTime.class, new MicrosDeserializer<>(OffsetDateTime.class, InstantDeserializer.OFFSET_DATE_TIME,
+				micros -> instantFromMicros(micros).atOffset(ZoneOffset.UTC)));
+		addDeserializer(ZonedDateTime.class, new MicrosDeserializer<>(ZonedDateTime.class, InstantDeserializer.ZONED_DATE_TIME,
+				micros -> instantFromMicros(micros).atZone(ZoneOffset.UTC)));
+	}
+
+	public static long toMicros(LocalDateTime value) {
+		return Math.addExact(Math.multiplyExact(value.toEpochSecond(ZoneOffset.UTC), 1000000L), value.getNano() / 1000L);
+	}
+	public static long toMicros(Instant value) {
+		return Math.addExact(Math.multiplyExact(value.getEpochSecond(), 1000000L), value.getNano() / 1000L);
+	}
+	public static LocalDateTime localDateTimeFromMicros(long micros) {
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1000000L), (int) Math.floorMod(micros, 1000000L) * 1000, ZoneOffset.UTC);
+	}
+	public static Instant instantFromMicros(long micros) {
+		return Instant.ofEpochSecond(Math.floorDiv(micros, 1000000L), Math.floorMod(micros, 1000000L) * 1000L);
+	}
+
+	/**
+	 * Jackson's schema generator knows the binary timestamps only as longs. Walk the schema alongside the
+	 * Java type and mark each long that holds a java.time value with its logical type.
+	 * @param schema Jackson generated schema
+	 * @param type the type the schema was generated for
+	 * @param config the mapper's serialization config, so mixins are honored
+	 * @return the schema with logical types
+	 */
+	public static Schema withLogicalTypes(Schema schema, JavaType type, SerializationConfig config) {
+		return withLogicalTypes(schema, type, config, new HashMap<>());
+	}
+
+	private static Schema withLogicalTypes(Schema schema, JavaType type, SerializationConfig config, Map<String, Schema> records) {
+		switch (schema.getType()) {
+		case LONG:
+			String logicalType = logicalTypeFor(type.getRawClass());
+			if (logicalType == null || schema.getLogicalType() != null) {
+				return schema;
+			}
+			Schema timestamp = Schema.create(Schema.Type.LONG);
+			if (TIMESTAMP_MICROS.equals(logicalType)) {
+				LogicalTypes.timestampMicros().addToSchema(timestamp);
+			} else {
+				// not among Avro 1.8's built in logical types, carried as a plain property
+				timestamp.addProp(LogicalType.LOGICAL_TYPE_PROP, logicalType);
+			}
+			return timestamp;
+		case UNION:
+			List<Schema> branches = new ArrayList<>();
+			boolean changed = false;
+			for (Schema branch : schema.getTypes()) {
+				Schema updated = branch.getType() == Schema.Type.NULL ? branch : withLogicalTypes(branch, type, config, records);
+				changed |= updated != branch;
+				branches.add(updated);
+			}
+			return changed ? Schema.createUnion(branches) : schema;
+		case ARRAY:
+			if (type.getContentType() == null) {
+				return schema;
+			}
+			Schema element = withLogicalTypes(schema.getElementType(), type.getContentType(), config, records);
+			return element == schema.getElementType() ? schema : copyProps(schema, Schema.createArray(element));
+		case MAP:
+			if (type.getContentType() == null) {
+				return schema;
+			}
+			Schema value = withLogicalTypes(schema.getValueType(), type.getContentType(), config, records);
+			return value == schema.getValueType() ? schema : copyProps(schema, Schema.createMap(value));
+		case RECORD:
+			return recordWithLogicalTypes(schema, type, config, records);
+		default:
+			return schema;
+		}
+	}
+
+	private static Schema recordWithLogicalTypes(Schema schema, JavaType type, SerializationConfig config, Map<String, Schema> records) {
+		Schema existing = records.get(schema.getFullName());
+		if (existing != null) {
+			return existing;
+		}
+		Schema record = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError());
+		copyProps(schema, record);
+		records.put(schema.getFullName(), record);
+
+		BeanDescription description = config.introspect(type);
+		Map<String, JavaType> propertyTypes = new HashMap<>();
+		for (BeanPropertyDefinition property : description.findProperties()) {
+			propertyTypes.put(property.getName(), property.getPrimaryType());
+		}
+		List<Schema.Field> fields = new ArrayList<>();
+		for (Schema.Field field : schema.getFields()) {
+			JavaType propertyType = propertyTypes.get(field.name());
+			Schema fieldSchema = propertyType == null ? field.schema() : withLogicalTypes(field.schema(), propertyType, config, records);
+			Schema.Field copy = new Schema.Field(field.name(), fieldSchema, field.doc(), field.defaultVal(), field.order());
+			field.getObjectProps().forEach(copy::addProp);
+			fields.add(copy);
+		}
+		record.setFields(fields);
+		return record;
+	}
+
+	private static Schema copyProps(Schema from, Schema to) {
+		from.getObjectProps().forEach(to::addProp);
+		return to;
+	}
+
+	private static String logicalTypeFor(Class<?> clazz) {
+		if (clazz == LocalDateTime.class) {
+			return LOCAL_TIMESTAMP_MICROS;
+		}
+		if (clazz == Instant.class || clazz == OffsetDateTime.class || clazz == ZonedDateTime.class) {
+			return TIMESTAMP_MICROS;
+		}
+		return null;
+	}
+
+	private abstract static class MicrosSerializer<V> extends StdSerializer<V> {
+		private static final long serialVersionUID = 1L;
+
+		MicrosSerializer(Class<V> type) {
+			super(type);
+		}
+		abstract long toMicros(V value);
+
+		@Override
+		public void serialize(V value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+			generator.writeNumber(toMicros(value));
+		}
+		@Override
+		public void acceptJsonFormatVisitor(JsonFormatVisitorWrapper visitor, JavaType typeHint) throws JsonMappingException {
+			visitIntFormat(visitor, typeHint, NumberType.LONG);
+		}
+	}
+
+	/**
+	 * Reads the long form, and hands the ISO string form to the standard JSR-310 deserializer. That deserializer is
+	 * made contextual per property, so @JsonFormat patterns, on the class or in a mixin, still apply.
+	 */
+	private static final class MicrosDeserializer<V> extends StdScalarDeserializer<V> implements ContextualDeserializer {
+		private static final long serialVersionUID = 1L;
+		private final JsonDeserializer<? extends V> stringForm;
+		private final transient LongFunction<V> fromMicros;
+
+		MicrosDeserializer(Class<V> type, JsonDeserializer<? extends V> stringForm, LongFunction<V> fromMicros) {
+			super(type);
+			this.stringForm = stringForm;
+			this.fromMicros = fromMicros;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public JsonDeserializer<?> createContextual(DeserializationContext context, BeanProperty property) throws JsonMappingException {
+			if (false == stringForm instanceof ContextualDeserializer) {
+				return this;
+			}
+			JsonDeserializer<?> contextual = ((ContextualDeserializer) stringForm).createContextual(context, property);
+			if (contextual == stringForm) {
+				return this;
+			}
+			return new MicrosDeserializer<>((Class<V>) handledType(), (JsonDeserializer<? extends V>) contextual, fromMicros);
+		}
+
+		@Override
+		public V deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+			if (parser.hasToken(JsonToken.VALUE_NUMBER_INT)) {
+				return fromMicros.apply(parser.getLongValue());
+			}
+			return stringForm.deserialize(parser, context);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package qslv.common.kafka;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts a caller-supplied ByteBuffer as an OutputStream so Jackson can write into it directly.
+ * Writing past the buffer's limit raises BufferOverflowException.
+ * 
+ * @author SMS
+ *
+ */
+class ByteBufferOutputStream extends OutputStream {
+	private final ByteBuffer target;
+
+	ByteBufferOutputStream(ByteBuffer target) {
+		this.target = target;
+	}
+
+	@Override
+	public void write(int b) {
+		target.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		target.put(b, off, len);
+	}
+
+	@Override
+	public void close() {
+	}
+}
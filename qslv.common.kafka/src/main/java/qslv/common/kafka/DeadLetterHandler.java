@@ -0,0 +1,40 @@
+package qslv.common.kafka;
+
+import java.util.Map;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Receives each record a tolerant JacksonAvroDeserializer could not decode, on the consumer thread, before the
+ * null value is returned. Keep it quick; DeadLetterPublisher hands the record to a producer and returns.
+ *
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_DEAD_LETTER_HANDLER, new DeadLetterPublisher(dltProducer));
+ *
+ * @author SMS
+ *
+ */
+@FunctionalInterface
+public interface DeadLetterHandler {
+	DeadLetterHandler NONE = failure -> { };
+
+	void handle(DeserializationFailure failure);
+
+	/**
+	 * The handler from CONFIG_DEAD_LETTER_HANDLER, an instance or a class name. NONE when absent.
+	 */
+	static DeadLetterHandler configure(Map<String, ?> config) {
+		Object configured = config.get(JacksonAvroSerdeConfig.CONFIG_DEAD_LETTER_HANDLER);
+		if (configured == null) {
+			return NONE;
+		}
+		if (configured instanceof DeadLetterHandler) {
+			return (DeadLetterHandler) configured;
+		}
+		Class<?> clazz = JacksonAvroSerdeConfig.getClass(config, JacksonAvroSerdeConfig.CONFIG_DEAD_LETTER_HANDLER);
+		if (false == DeadLetterHandler.class.isAssignableFrom(clazz)) {
+			throw new SerializationException(clazz.getName() + " is not a DeadLetterHandler.");
+		}
+		return (DeadLetterHandler) Utils.newInstance(clazz);
+	}
+}
@@ -0,0 +1,58 @@
+package qslv.common.kafka;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes undecodable records, bytes unchanged, to the dead letter topic of their source topic: the topic name
+ * plus a suffix, ".DLT" by default. The reason, schema id and detail travel as headers. Sends are asynchronous;
+ * a failed send is logged and the record is not retried.
+ *
+ * Ex: DeadLetterPublisher publisher = new DeadLetterPublisher(new KafkaProducer<>(props, new ByteArraySerializer(), new ByteArraySerializer()));
+ *     deserializer.setDeadLetterHandler(publisher);
+ *
+ * @author SMS
+ *
+ */
+public class DeadLetterPublisher implements DeadLetterHandler {
+	private static final Logger log = LoggerFactory.getLogger(DeadLetterPublisher.class);
+
+	public static final String DEFAULT_SUFFIX = ".DLT";
+	public static final String REASON = "qslv.dlt.reason";
+	public static final String SCHEMA_ID = "qslv.dlt.schema.id";
+	public static final String DETAIL = "qslv.dlt.detail";
+
+	private final Producer<byte[], byte[]> producer;
+	private final String suffix;
+	private final RateLimitedLogger failureLog = new RateLimitedLogger(log, RateLimitedLogger.DEFAULT_INTERVAL_MS);
+
+	public DeadLetterPublisher(Producer<byte[], byte[]> producer) {
+		this(producer, DEFAULT_SUFFIX);
+	}
+	public DeadLetterPublisher(Producer<byte[], byte[]> producer, String suffix) {
+		this.producer = producer;
+		this.suffix = suffix;
+	}
+
+	@Override
+	public void handle(DeserializationFailure failure) {
+		Headers headers = new RecordHeaders();
+		headers.add(REASON, failure.getReason().name().getBytes(StandardCharsets.UTF_8));
+		headers.add(SCHEMA_ID, Integer.toString(failure.getSchemaId()).getBytes(StandardCharsets.UTF_8));
+		if (failure.getDetail() != null) {
+			headers.add(DETAIL, failure.getDetail().getBytes(StandardCharsets.UTF_8));
+		}
+		String topic = failure.getTopic() + suffix;
+		producer.send(new ProducerRecord<>(topic, null, null, failure.getData(), headers), (metadata, ex) -> {
+			if (ex != null) {
+				failureLog.warn("Could not publish to dead letter topic {}. {}", topic, ex.getMessage());
+			}
+		});
+	}
+}
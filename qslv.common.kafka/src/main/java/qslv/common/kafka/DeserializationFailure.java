@@ -0,0 +1,124 @@
+package qslv.common.kafka;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+/**
+ * A record a JacksonAvroDeserializer in tolerant mode could not decode. The deserializer returns null in place of
+ * the value, names the reason in the record's HEADER, and hands this to the DeadLetterHandler with what is needed
+ * to inspect or dead-letter the record: the topic, the raw bytes, the schema id when it could be read, and the
+ * reason. The value type of the consumer is unaffected, so a Deserializer<DepositRequest> stays one.
+ *
+ * Ex: if (DeserializationFailure.reasonOf(record.headers()) != null) { skip(); } else { process(record.value()); }
+ *
+ * No exception is built per failure. getError() builds a stackless one for callers that need one to rethrow.
+ *
+ * @author SMS
+ *
+ */
+public final class DeserializationFailure {
+	public static final String HEADER = "qslv.deserialization.failure";
+
+	public enum Reason {
+		TRUNCATED("Record shorter than the Confluent header"),
+		BAD_MAGIC_BYTE("Expected magic byte not found"),
+		UNKNOWN_SCHEMA("Schema or class for the schema id could not be resolved"),
+		CORRUPT_PAYLOAD("Avro payload could not be decoded");
+
+		private final String message;
+
+		Reason(String message) {
+			this.message = message;
+		}
+		public String getMessage() {
+			return message;
+		}
+		/**
+		 * A new exception per call, without a stack trace, so none is shared between callers.
+		 */
+		public SerializationException getError() {
+			return new StacklessSerializationException(message);
+		}
+	}
+
+	/**
+	 * The reason a tolerant deserializer failed to decode the record with these headers, or null when it did not.
+	 */
+	public static Reason reasonOf(Headers headers) {
+		Header header = headers == null ? null : headers.lastHeader(HEADER);
+		if (header == null || header.value() == null) {
+			return null;
+		}
+		try {
+			return Reason.valueOf(new String(header.value(), StandardCharsets.UTF_8));
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	private final String topic;
+	private final byte[] data;
+	private final int schemaId;
+	private final Reason reason;
+	private final String detail;
+
+	public DeserializationFailure(String topic, byte[] data, int schemaId, Reason reason, String detail) {
+		this.topic = topic;
+		this.data = data;
+		this.schemaId = schemaId;
+		this.reason = reason;
+		this.detail = detail;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+	/**
+	 * The record value as received, not copied.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+	/**
+	 * -1 when the record was too short or not Confluent framed.
+	 */
+	public int getSchemaId() {
+		return schemaId;
+	}
+	public Reason getReason() {
+		return reason;
+	}
+	/**
+	 * The underlying error message, or null.
+	 */
+	public String getDetail() {
+		return detail;
+	}
+	public SerializationException getError() {
+		return reason.getError();
+	}
+
+	@Override
+	public String toString() {
+		return "DeserializationFailure [topic=" + topic + ", schemaId=" + schemaId + ", reason=" + reason
+				+ ", length=" + (data == null ? 0 : data.length) + (detail == null ? "" : ", detail=" + detail) + "]";
+	}
+
+	/**
+	 * Skips filling in the stack trace, which is the costly part of building an exception.
+	 */
+	private static final class StacklessSerializationException extends SerializationException {
+		private static final long serialVersionUID = 1L;
+
+		StacklessSerializationException(String message) {
+			super(message);
+		}
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,688 @@
+package qslv.common.kafka;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import org.apache.avro.Schema;
+import org.apache.kafka.common.errors.SerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.AnnotatedConstructor;
+import com.fasterxml.jackson.databind.introspect.AnnotatedField;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMethod;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+
+/**
+ * Encoder or decoder of one class against one Avro record schema that reads and writes the Avro binary form
+ * directly, without Jackson's generator, parser and per-field serializers. Properties are accessed through
+ * method handles bound once, primitives without boxing.
+ *
+ * The property set comes from Jackson's own introspection, so names, ignored properties and the mixins of
+ * JacksonAvroSerdeConfig.configureMixins apply exactly as they do for Jackson. Shapes a codec cannot reproduce
+ * byte for byte are left to Jackson: custom serializers, formats, type info, creators, any-setters, containers,
+ * enums, unions other than null plus one type, and unknown fields Jackson would reject. Supported values are
+ * primitives and their boxes, String, byte[], LocalDateTime as ISO string or timestamp micros, and nested
+ * records of the same kind. String fields with a Utf8StringCache are read through it.
+ *
+ * Immutable once built, so one codec may be shared by any number of threads.
+ *
+ * @author SMS
+ *
+ */
+final class DirectCodec {
+	private static final Logger log = LoggerFactory.getLogger(DirectCodec.class);
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	/**
+	 * Cache entry for a class and schema Jackson has to handle.
+	 */
+	static final DirectCodec UNSUPPORTED = new DirectCodec(null, new PropertyCodec[0], null);
+
+	private final Class<?> type;
+	private final PropertyCodec[] properties;
+	private final MethodHandle constructor;
+
+	private DirectCodec(Class<?> type, PropertyCodec[] properties, MethodHandle constructor) {
+		this.type = type;
+		this.properties = properties;
+		this.constructor = constructor;
+	}
+
+	static DirectCodec forWriting(ObjectMapper mapper, JavaType type, Schema schema) {
+		try {
+			DirectCodec codec = new Builder(mapper, true, null).build(type, schema);
+			log.debug("Direct encoder built for {} and schema {}", type, schema.getFullName());
+			return codec;
+		} catch (Unsupported ex) {
+			log.info("Jackson encodes {} with schema {}, no direct encoder. {}", type, schema.getFullName(), ex.getMessage());
+			return UNSUPPORTED;
+		}
+	}
+	/**
+	 * @param stringCaches the string cache of a class's field, or null when it has none
+	 */
+	static DirectCodec forReading(ObjectMapper mapper, JavaType type, Schema schema, BiFunction<Class<?>, String, Utf8StringCache> stringCaches) {
+		try {
+			DirectCodec codec = new Builder(mapper, false, stringCaches).build(type, schema);
+			log.debug("Direct decoder built for {} and schema {}", type, schema.getFullName());
+			return codec;
+		} catch (Unsupported ex) {
+			log.info("Jackson decodes {} with schema {}, no direct decoder. {}", type, schema.getFullName(), ex.getMessage());
+			return UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * @return true when this codec was built for exactly this class
+	 */
+	boolean handles(Class<?> clazz) {
+		return type == clazz;
+	}
+
+	void encode(Object bean, OutputStream out) {
+		try {
+			writeRecord(bean, out);
+		} catch (SerializationException | BufferOverflowException ex) {
+			throw ex;
+		} catch (Throwable thrown) {
+			throw new SerializationException("Direct encoding of " + type.getName() + " failed", thrown);
+		}
+	}
+	Object decode(AvroBinaryCursor cursor) {
+		try {
+			return readRecord(cursor);
+		} catch (SerializationException ex) {
+			throw ex;
+		} catch (Throwable thrown) {
+			throw new SerializationException("Direct decoding of " + type.getName() + " failed", thrown);
+		}
+	}
+
+	private void writeRecord(Object bean, OutputStream out) throws Throwable {
+		if (bean == null) {
+			throw new SerializationException("Null value for non-null record " + type.getName());
+		}
+		for (PropertyCodec property : properties) {
+			property.write(bean, out);
+		}
+	}
+	private Object readRecord(AvroBinaryCursor cursor) throws Throwable {
+		Object bean = (Object) constructor.invokeExact();
+		for (PropertyCodec property : properties) {
+			property.read(cursor, bean);
+		}
+		return bean;
+	}
+
+	/**
+	 * One field of the record, in schema order.
+	 */
+	private abstract static class PropertyCodec {
+		void write(Object bean, OutputStream out) throws Throwable {
+		}
+		void read(AvroBinaryCursor cursor, Object bean) throws Throwable {
+		}
+	}
+
+	private static final class IntProperty extends PropertyCodec {
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		IntProperty(MethodHandle getter, MethodHandle setter) {
+			this.getter = getter;
+			this.setter = setter;
+		}
+		@Override
+		void write(Object bean, OutputStream out) throws Throwable {
+			AvroBinaryWriter.writeInt(out, (int) getter.invokeExact(bean));
+		}
+		@Override
+		void read(AvroBinaryCursor cursor, Object bean) throws Throwable {
+			setter.invokeExact(bean, cursor.readInt());
+		}
+	}
+	private static final class LongProperty extends PropertyCodec {
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		LongProperty(MethodHandle getter, MethodHandle setter) {
+			this.getter = getter;
+			this.setter = setter;
+		}
+		@Override
+		void write(Object bean, OutputStream out) throws Throwable {
+			AvroBinaryWriter.writeLong(out, (long) getter.invokeExact(bean));
+		}
+		@Override
+		void read(AvroBinaryCursor cursor, Object bean) throws Throwable {
+			setter.invokeExact(bean, cursor.readLong());
+		}
+	}
+	private static final class FloatProperty extends PropertyCodec {
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		FloatProperty(MethodHandle getter, MethodHandle setter) {
+			this.getter = getter;
+			this.setter = setter;
+		}
+		@Override
+		void write(Object bean, OutputStream out) throws Throwable {
+			AvroBinaryWriter.writeFloat(out, (float) getter.invokeExact(bean));
+		}
+		@Override
+		void read(AvroBinaryCursor cursor, Object bean) throws Throwable {
+			setter.invokeExact(bean, cursor.readFloat());
+		}
+	}
+	private static final class DoubleProperty extends PropertyCodec {
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		DoubleProperty(MethodHandle getter, MethodHandle setter) {
+			this.getter = getter;
+			this.setter = setter;
+		}
+		@Override
+		void write(Object bean, OutputStream out) throws Throwable {
+			AvroBinaryWriter.writeDouble(out, (double) getter.invokeExact(bean));
+		}
+		@Override
+		void read(AvroBinaryCursor cursor, Object bean) throws Throwable {
+			setter.invokeExact(bean, cursor.readDouble());
+		}
+	}
+	private static final class BooleanProperty extends PropertyCodec {
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		BooleanProperty(MethodHandle getter, MethodHandle setter) {
+			this.getter = getter;
+			this.setter = setter;
+		}
+		@Override
+		void write(Object bean, OutputStream out) throws Throwable {
+			AvroBinaryWriter.writeBoolean(out, (boolean) getter.invokeExact(bean));
+		}
+		@Override
+		void read(AvroBinaryCursor cursor, Object bean) throws Throwable {
+			setter.invokeExact(bean, cursor.readBoolean());
+		}
+	}
+	private static final class ValueProperty extends PropertyCodec {
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		private final ValueCodec codec;
+		ValueProperty(MethodHandle getter, MethodHandle setter, ValueCodec codec) {
+			this.getter = getter;
+			this.setter = setter;
+			this.codec = codec;
+		}
+		@Override
+		void write(Object bean, OutputStream out) throws Throwable {
+			codec.write((Object) getter.invokeExact(bean), out);
+		}
+		@Override
+		void read(AvroBinaryCursor cursor, Object bean) throws Throwable {
+			setter.invokeExact(bean, codec.read(cursor));
+		}
+	}
+	/**
+	 * A writer field Jackson ignores when reading.
+	 */
+	private static final class SkippedProperty extends PropertyCodec {
+		private final Schema schema;
+		SkippedProperty(Schema schema) {
+			this.schema = schema;
+		}
+		@Override
+		void read(AvroBinaryCursor cursor, Object bean) {
+			cursor.skip(schema);
+		}
+	}
+
+	private abstract static class ValueCodec {
+		abstract void write(Object value, OutputStream out) throws Throwable;
+		abstract Object read(AvroBinaryCursor cursor) throws Throwable;
+	}
+
+	private static final ValueCodec STRING = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeString(out, (String) value);
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return cursor.readString();
+		}
+	};
+	private static final class CachedStringCodec extends ValueCodec {
+		private final Utf8StringCache cache;
+		CachedStringCodec(Utf8StringCache cache) {
+			this.cache = cache;
+		}
+		@Override
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeString(out, (String) value);
+		}
+		@Override
+		Object read(AvroBinaryCursor cursor) {
+			return cursor.readString(cache);
+		}
+	}
+	private static final ValueCodec INT = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeInt(out, (Integer) value);
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return cursor.readInt();
+		}
+	};
+	private static final ValueCodec LONG = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeLong(out, (Long) value);
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return cursor.readLong();
+		}
+	};
+	private static final ValueCodec FLOAT = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeFloat(out, (Float) value);
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return cursor.readFloat();
+		}
+	};
+	private static final ValueCodec DOUBLE = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeDouble(out, (Double) value);
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return cursor.readDouble();
+		}
+	};
+	private static final ValueCodec BOOLEAN = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeBoolean(out, (Boolean) value);
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return cursor.readBoolean();
+		}
+	};
+	private static final ValueCodec BYTES = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeBytes(out, (byte[]) value);
+		}
+		Object read(AvroBinaryCursor cursor) {
+			int length = cursor.readLength();
+			int start = cursor.position();
+			cursor.skip(length);
+			return Arrays.copyOfRange(cursor.array(), start, start + length);
+		}
+	};
+	/**
+	 * JavaTimeModule's default LocalDateTime form, WRITE_DATES_AS_TIMESTAMPS being off.
+	 */
+	private static final ValueCodec LOCAL_DATE_TIME_STRING = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeString(out, ((LocalDateTime) value).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return LocalDateTime.parse(cursor.readString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+		}
+	};
+	/**
+	 * AvroTimestampModule's binary LocalDateTime form.
+	 */
+	private static final ValueCodec LOCAL_DATE_TIME_MICROS = new ValueCodec() {
+		void write(Object value, OutputStream out) throws IOException {
+			AvroBinaryWriter.writeLong(out, AvroTimestampModule.toMicros((LocalDateTime) value));
+		}
+		Object read(AvroBinaryCursor cursor) {
+			return AvroTimestampModule.localDateTimeFromMicros(cursor.readLong());
+		}
+	};
+
+	private static final class NullableCodec extends ValueCodec {
+		private final int nullIndex;
+		private final ValueCodec codec;
+		NullableCodec(int nullIndex, ValueCodec codec) {
+			this.nullIndex = nullIndex;
+			this.codec = codec;
+		}
+		@Override
+		void write(Object value, OutputStream out) throws Throwable {
+			if (value == null) {
+				AvroBinaryWriter.writeInt(out, nullIndex);
+			} else {
+				AvroBinaryWriter.writeInt(out, 1 - nullIndex);
+				codec.write(value, out);
+			}
+		}
+		@Override
+		Object read(AvroBinaryCursor cursor) throws Throwable {
+			int index = cursor.readInt();
+			if (index == nullIndex) {
+				return null;
+			}
+			if (index != 1 - nullIndex) {
+				throw new SerializationException("Invalid Avro union index " + index + " at offset " + cursor.position());
+			}
+			return codec.read(cursor);
+		}
+	}
+	private static final class RecordCodec extends ValueCodec {
+		private final DirectCodec codec;
+		RecordCodec(DirectCodec codec) {
+			this.codec = codec;
+		}
+		@Override
+		void write(Object value, OutputStream out) throws Throwable {
+			codec.writeRecord(value, out);
+		}
+		@Override
+		Object read(AvroBinaryCursor cursor) throws Throwable {
+			return codec.readRecord(cursor);
+		}
+	}
+
+	/**
+	 * Thrown, without a stack, when a shape is left to Jackson.
+	 */
+	private static final class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+		Unsupported(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	private static final class Builder {
+		private final ObjectMapper mapper;
+		private final boolean writing;
+		private final BiFunction<Class<?>, String, Utf8StringCache> stringCaches;
+		private final Set<Class<?>> inProgress = new HashSet<>();
+
+		Builder(ObjectMapper mapper, boolean writing, BiFunction<Class<?>, String, Utf8StringCache> stringCaches) {
+			this.mapper = mapper;
+			this.writing = writing;
+			this.stringCaches = stringCaches;
+		}
+
+		DirectCodec build(JavaType type, Schema schema) throws Unsupported {
+			if (schema.getType() != Schema.Type.RECORD) {
+				throw new Unsupported("Schema " + schema.getFullName() + " is not a record");
+			}
+			Class<?> raw = type.getRawClass();
+			if (!type.isConcrete() || type.isContainerType() || type.isEnumType() || raw.isArray() || raw == Object.class) {
+				throw new Unsupported(type + " is not a concrete bean");
+			}
+			if (!inProgress.add(raw)) {
+				throw new Unsupported(type + " is recursive");
+			}
+			try {
+				return writing ? buildWriter(type, schema) : buildReader(type, schema);
+			} finally {
+				inProgress.remove(raw);
+			}
+		}
+
+		private DirectCodec buildWriter(JavaType type, Schema schema) throws Unsupported {
+			SerializationConfig config = mapper.getSerializationConfig();
+			AnnotationIntrospector introspector = config.getAnnotationIntrospector();
+			BeanDescription description = config.introspect(type);
+			if (introspector.findSerializer(description.getClassInfo()) != null || description.findJsonValueAccessor() != null
+					|| description.findAnyGetter() != null || introspector.findTypeResolver(config, description.getClassInfo(), type) != null) {
+				throw new Unsupported(type + " has custom serialization");
+			}
+			Map<String, BeanPropertyDefinition> byName = new HashMap<>();
+			for (BeanPropertyDefinition property : description.findProperties()) {
+				if (property.couldSerialize()) {
+					byName.put(property.getName(), property);
+				}
+			}
+			List<Schema.Field> fields = schema.getFields();
+			if (byName.size() != fields.size()) {
+				throw new Unsupported(type + " properties " + byName.keySet() + " do not match the fields of schema " + schema.getFullName());
+			}
+			PropertyCodec[] properties = new PropertyCodec[fields.size()];
+			for (int ii = 0; ii < properties.length; ii++) {
+				Schema.Field field = fields.get(ii);
+				BeanPropertyDefinition property = byName.get(field.name());
+				AnnotatedMember accessor = null == property ? null : property.getAccessor();
+				if (null == accessor) {
+					throw new Unsupported("No property of " + type + " for field " + field.name());
+				}
+				if (introspector.findSerializer(accessor) != null || introspector.findPropertyTypeResolver(config, accessor, accessor.getType()) != null
+						|| introspector.findUnwrappingNameTransformer(accessor) != null || hasFormat(introspector, accessor)) {
+					throw new Unsupported("Property " + property.getName() + " of " + type + " has custom serialization");
+				}
+				properties[ii] = property(field.schema(), accessor.getType(), getter(accessor), null, null);
+			}
+			return new DirectCodec(type.getRawClass(), properties, null);
+		}
+
+		private DirectCodec buildReader(JavaType type, Schema schema) throws Unsupported {
+			DeserializationConfig config = mapper.getDeserializationConfig();
+			AnnotationIntrospector introspector = config.getAnnotationIntrospector();
+			BeanDescription description = config.introspect(type);
+			AnnotatedConstructor defaultConstructor = description.findDefaultConstructor();
+			if (null == defaultConstructor || introspector.findDeserializer(description.getClassInfo()) != null
+					|| description.findAnySetterAccessor() != null || introspector.findTypeResolver(config, description.getClassInfo(), type) != null) {
+				throw new Unsupported(type + " has custom deserialization or no default constructor");
+			}
+			for (AnnotatedConstructor constructor : description.getConstructors()) {
+				if (introspector.findCreatorAnnotation(config, constructor) != null) {
+					throw new Unsupported(type + " has a creator");
+				}
+			}
+			for (AnnotatedMethod factory : description.getFactoryMethods()) {
+				if (introspector.findCreatorAnnotation(config, factory) != null) {
+					throw new Unsupported(type + " has a creator");
+				}
+			}
+			Map<String, BeanPropertyDefinition> byName = new HashMap<>();
+			for (BeanPropertyDefinition property : description.findProperties()) {
+				if (property.couldDeserialize()) {
+					byName.put(property.getName(), property);
+				}
+			}
+			JsonIgnoreProperties.Value ignorals = introspector.findPropertyIgnorals(description.getClassInfo());
+			boolean ignoreUnknown = !config.isEnabled(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+					|| (null != ignorals && ignorals.getIgnoreUnknown());
+			Set<String> ignored = new HashSet<>(description.getIgnoredPropertyNames());
+			if (null != ignorals) {
+				ignored.addAll(ignorals.findIgnoredForDeserialization());
+			}
+
+			List<Schema.Field> fields = schema.getFields();
+			PropertyCodec[] properties = new PropertyCodec[fields.size()];
+			for (int ii = 0; ii < properties.length; ii++) {
+				Schema.Field field = fields.get(ii);
+				BeanPropertyDefinition property = byName.get(field.name());
+				if (null == property) {
+					if (ignoreUnknown || ignored.contains(field.name())) {
+						properties[ii] = new SkippedProperty(field.schema());
+						continue;
+					}
+					throw new Unsupported("No property of " + type + " for field " + field.name());
+				}
+				AnnotatedMember mutator = property.getMutator();
+				if (null == mutator || !(mutator instanceof AnnotatedMethod || mutator instanceof AnnotatedField)) {
+					throw new Unsupported("Property " + property.getName() + " of " + type + " has no setter or field");
+				}
+				if (introspector.findDeserializer(mutator) != null || introspector.findPropertyTypeResolver(config, mutator, property.getPrimaryType()) != null
+						|| introspector.findUnwrappingNameTransformer(mutator) != null || hasFormat(introspector, mutator)
+						|| (null != property.getAccessor() && hasFormat(introspector, property.getAccessor()))) {
+					throw new Unsupported("Property " + property.getName() + " of " + type + " has custom deserialization");
+				}
+				Utf8StringCache cache = null == stringCaches ? null : stringCaches.apply(type.getRawClass(), property.getName());
+				properties[ii] = property(field.schema(), property.getPrimaryType(), null, setter(mutator), cache);
+			}
+			return new DirectCodec(type.getRawClass(), properties, constructor(defaultConstructor));
+		}
+
+		private PropertyCodec property(Schema schema, JavaType type, MethodHandle getter, MethodHandle setter, Utf8StringCache cache) throws Unsupported {
+			Class<?> raw = type.getRawClass();
+			if (raw.isPrimitive()) {
+				Schema.Type avroType = schema.getType();
+				if (raw == int.class && avroType == Schema.Type.INT) {
+					return new IntProperty(adaptGetter(getter, int.class), adaptSetter(setter, int.class));
+				}
+				if (raw == long.class && avroType == Schema.Type.LONG) {
+					return new LongProperty(adaptGetter(getter, long.class), adaptSetter(setter, long.class));
+				}
+				if (raw == float.class && avroType == Schema.Type.FLOAT) {
+					return new FloatProperty(adaptGetter(getter, float.class), adaptSetter(setter, float.class));
+				}
+				if (raw == double.class && avroType == Schema.Type.DOUBLE) {
+					return new DoubleProperty(adaptGetter(getter, double.class), adaptSetter(setter, double.class));
+				}
+				if (raw == boolean.class && avroType == Schema.Type.BOOLEAN) {
+					return new BooleanProperty(adaptGetter(getter, boolean.class), adaptSetter(setter, boolean.class));
+				}
+			}
+			return new ValueProperty(adaptGetter(getter, Object.class), adaptSetter(setter, Object.class), value(schema, type, cache));
+		}
+
+		private ValueCodec value(Schema schema, JavaType type, Utf8StringCache cache) throws Unsupported {
+			Class<?> raw = type.getRawClass();
+			switch (schema.getType()) {
+			case UNION:
+				List<Schema> types = schema.getTypes();
+				if (types.size() == 2 && (types.get(0).getType() == Schema.Type.NULL) != (types.get(1).getType() == Schema.Type.NULL)) {
+					int nullIndex = types.get(0).getType() == Schema.Type.NULL ? 0 : 1;
+					return new NullableCodec(nullIndex, value(types.get(1 - nullIndex), type, cache));
+				}
+				break;
+			case STRING:
+				if (raw == String.class) {
+					return null == cache ? STRING : new CachedStringCodec(cache);
+				}
+				if (raw == LocalDateTime.class) {
+					return LOCAL_DATE_TIME_STRING;
+				}
+				break;
+			case LONG:
+				if (raw == LocalDateTime.class && isMicros(schema)) {
+					return LOCAL_DATE_TIME_MICROS;
+				}
+				if (raw == Long.class || raw == long.class) {
+					return LONG;
+				}
+				break;
+			case INT:
+				if (raw == Integer.class || raw == int.class) {
+					return INT;
+				}
+				break;
+			case FLOAT:
+				if (raw == Float.class || raw == float.class) {
+					return FLOAT;
+				}
+				break;
+			case DOUBLE:
+				if (raw == Double.class || raw == double.class) {
+					return DOUBLE;
+				}
+				break;
+			case BOOLEAN:
+				if (raw == Boolean.class || raw == boolean.class) {
+					return BOOLEAN;
+				}
+				break;
+			case BYTES:
+				if (raw == byte[].class) {
+					return BYTES;
+				}
+				break;
+			case RECORD:
+				return new RecordCodec(build(type, schema));
+			default:
+				break;
+			}
+			throw new Unsupported("Avro " + schema.getType() + " is not mapped to " + type);
+		}
+
+		private static boolean isMicros(Schema schema) {
+			String logicalType = schema.getProp("logicalType");
+			return "timestamp-micros".equals(logicalType) || "local-timestamp-micros".equals(logicalType);
+		}
+		private static boolean hasFormat(AnnotationIntrospector introspector, Annotated annotated) {
+			JsonFormat.Value format = introspector.findFormat(annotated);
+			return null != format && !JsonFormat.Value.empty().equals(format);
+		}
+
+		private static MethodHandle getter(AnnotatedMember accessor) throws Unsupported {
+			try {
+				if (accessor instanceof AnnotatedMethod) {
+					Method method = ((AnnotatedMethod) accessor).getAnnotated();
+					accessible(method);
+					return lookup.unreflect(method);
+				}
+				if (accessor instanceof AnnotatedField) {
+					Field field = ((AnnotatedField) accessor).getAnnotated();
+					accessible(field);
+					return lookup.unreflectGetter(field);
+				}
+			} catch (IllegalAccessException | SecurityException ex) {
+				throw new Unsupported("Cannot access " + accessor + ". " + ex.getMessage());
+			}
+			throw new Unsupported("Unsupported accessor " + accessor);
+		}
+		private static MethodHandle setter(AnnotatedMember mutator) throws Unsupported {
+			try {
+				if (mutator instanceof AnnotatedMethod) {
+					Method method = ((AnnotatedMethod) mutator).getAnnotated();
+					accessible(method);
+					return lookup.unreflect(method);
+				}
+				Field field = ((AnnotatedField) mutator).getAnnotated();
+				accessible(field);
+				return lookup.unreflectSetter(field);
+			} catch (IllegalAccessException | SecurityException ex) {
+				throw new Unsupported("Cannot access " + mutator + ". " + ex.getMessage());
+			}
+		}
+		private static MethodHandle constructor(AnnotatedConstructor constructor) throws Unsupported {
+			try {
+				Constructor<?> annotated = constructor.getAnnotated();
+				accessible(annotated);
+				return lookup.unreflectConstructor(annotated).asType(MethodType.methodType(Object.class));
+			} catch (IllegalAccessException | SecurityException ex) {
+				throw new Unsupported("Cannot access " + constructor + ". " + ex.getMessage());
+			}
+		}
+		private static void accessible(AccessibleObject member) {
+			member.setAccessible(true);
+		}
+		private static MethodHandle adaptGetter(MethodHandle getter, Class<?> valueType) {
+			return null == getter ? null : getter.asType(MethodType.methodType(valueType, Object.class));
+		}
+		private static MethodHandle adaptSetter(MethodHandle setter, Class<?> valueType) {
+			return null == setter ? null : setter.asType(MethodType.methodType(void.class, Object.class, valueType));
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package qslv.common.kafka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the correlation ids of recently processed messages, so a consumer can drop a redelivered message
+ * in constant time, before its payload is deserialized, instead of asking the database.
+ *
+ * Only a 64 bit fingerprint of each correlation id is kept, in primitive open-addressed tables: 48 to 80 bytes an
+ * entry, with no objects per entry. A new id matching a remembered fingerprint is possible but, with a million
+ * entries held, the odds are about one in ten trillion per message. Entries leave oldest first, once maxEntries
+ * are held or when older than the time to live. The tables are split into segments, each with its own lock, so
+ * consumer threads rarely contend.
+ *
+ * The correlation id is read from the record's trace headers when present, see TraceHeaders, else from a decoded
+ * TraceableMessage or ResponseMessage. A message that fails processing can be forgotten, so its redelivery is
+ * processed again.
+ *
+ * Ex: DuplicateFilter seen = new DuplicateFilter(1000000, TimeUnit.HOURS.toMillis(1));
+ *     seen.restore(new File("/var/lib/qslv/deposit.dedup"));
+ *     if (seen.isDuplicate(record)) { reply(ResponseMessage.CONFLICT); }
+ *     seen.snapshot(new File("/var/lib/qslv/deposit.dedup"));
+ *
+ * @author SMS
+ *
+ */
+public class DuplicateFilter {
+	private static final Logger log = LoggerFactory.getLogger(DuplicateFilter.class);
+
+	public static final int DEFAULT_SEGMENTS = 16;
+	private static final int SNAPSHOT_MAGIC = 0x51444450;
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final long ttlMillis;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+
+	/**
+	 * @param maxEntries correlation ids remembered
+	 * @param ttlMillis how long an id is remembered, 0 for no limit
+	 */
+	public DuplicateFilter(int maxEntries, long ttlMillis) {
+		this(maxEntries, ttlMillis, DEFAULT_SEGMENTS);
+	}
+	public DuplicateFilter(int maxEntries, long ttlMillis, int segments) {
+		if (maxEntries <= 0 || segments <= 0 || ttlMillis < 0) {
+			throw new IllegalArgumentException("maxEntries and segments must be positive, ttlMillis not negative");
+		}
+		int count = Integer.highestOneBit(Math.min(segments, maxEntries));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			this.segments[i] = new Segment((maxEntries + count - 1) / count);
+		}
+		this.segmentMask = count - 1;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Records the correlation id as seen.
+	 * @return true when it was already seen, i.e. the message is a duplicate. False for a null id.
+	 */
+	public boolean isDuplicate(String correlationId) {
+		if (correlationId == null) {
+			return false;
+		}
+		long fingerprint = fingerprint(correlationId);
+		return segmentFor(fingerprint).checkAndAdd(fingerprint, System.currentTimeMillis());
+	}
+
+	/**
+	 * As isDuplicate(String), taking the correlation id from the trace headers, else from the decoded value.
+	 */
+	public boolean isDuplicate(ConsumerRecord<?, ?> record) {
+		return isDuplicate(correlationId(record));
+	}
+
+	/**
+	 * @return true when the correlation id was seen, without recording it
+	 */
+	public boolean contains(String correlationId) {
+		if (correlationId == null) {
+			return false;
+		}
+		long fingerprint = fingerprint(correlationId);
+		return segmentFor(fingerprint).contains(fingerprint, System.currentTimeMillis());
+	}
+
+	/**
+	 * Forget the correlation id, so a redelivery is processed again. For messages that failed processing.
+	 */
+	public void forget(String correlationId) {
+		if (correlationId != null) {
+			long fingerprint = fingerprint(correlationId);
+			segmentFor(fingerprint).forget(fingerprint);
+		}
+	}
+
+	/**
+	 * Duplicates found.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+	/**
+	 * Correlation ids seen for the first time.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+	/**
+	 * Entries dropped to stay within maxEntries.
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	/**
+	 * Entries dropped after the time to live.
+	 */
+	public long getExpirations() {
+		return expirations.sum();
+	}
+	public int getSize() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.tableSize;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Write the remembered fingerprints to the file, replacing it atomically. Each segment is copied under its
+	 * lock, so the snapshot is consistent per segment while other threads keep filtering.
+	 */
+	public void snapshot(File file) throws IOException {
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		CRC32 crc = new CRC32();
+		int written = 0;
+		try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), crc))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			for (Segment segment : segments) {
+				long[] entries;
+				synchronized (segment) {
+					entries = segment.live();
+				}
+				out.writeInt(entries.length / 2);
+				for (long value : entries) {
+					out.writeLong(value);
+				}
+				written += entries.length / 2;
+			}
+			out.writeInt(-1);
+			out.flush();
+			out.writeLong(crc.getValue());
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.debug("Snapshot of {} correlation ids written to {}", written, file);
+	}
+
+	/**
+	 * Load a snapshot written by snapshot(). Entries past the time to live are skipped. A missing file loads
+	 * nothing; a damaged one is logged and ignored.
+	 * @return the number of entries loaded
+	 */
+	public int restore(File file) throws IOException {
+		if (false == file.exists()) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		CRC32 crc = new CRC32();
+		int loaded = 0;
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				log.warn("{} is not a correlation id snapshot, ignored", file);
+				return 0;
+			}
+			// read everything before applying, a damaged file must not half load
+			long[] entries = new long[0];
+			int count = 0;
+			long remaining = file.length() - 8L;
+			for (int n = in.readInt(); n != -1; n = in.readInt()) {
+				// the count is read before the CRC can vouch for it, it must fit in what is left of the file
+				remaining -= 4L;
+				if (n < 0 || n > remaining / 16L || (count + (long) n) * 2L > Integer.MAX_VALUE - 8) {
+					log.warn("Correlation id snapshot {} is damaged, ignored", file);
+					return 0;
+				}
+				remaining -= n * 16L;
+				if (entries.length < (count + n) * 2) {
+					entries = Arrays.copyOf(entries, Math.max(entries.length * 2, (count + n) * 2));
+				}
+				for (int i = 0; i < n * 2; i++) {
+					entries[count * 2 + i] = in.readLong();
+				}
+				count += n;
+			}
+			long expected = crc.getValue();
+			if (in.readLong() != expected) {
+				log.warn("Correlation id snapshot {} is damaged, ignored", file);
+				return 0;
+			}
+			for (int i = 0; i < count; i++) {
+				long fingerprint = entries[i * 2];
+				long time = entries[i * 2 + 1];
+				if (ttlMillis == 0L || time > now - ttlMillis) {
+					segmentFor(fingerprint).restore(fingerprint, time, now);
+					loaded++;
+				}
+			}
+		} catch (EOFException ex) {
+			log.warn("Correlation id snapshot {} is truncated, ignored", file);
+			return 0;
+		}
+		log.debug("Restored {} correlation ids from {}", loaded, file);
+		return loaded;
+	}
+
+	private Segment segmentFor(long fingerprint) {
+		return segments[(int) (fingerprint >>> 40) & segmentMask];
+	}
+
+	static String correlationId(ConsumerRecord<?, ?> record) {
+		String correlationId = TraceHeaders.correlationId(record.headers());
+		if (correlationId != null) {
+			return correlationId;
+		}
+		Object value = record.value();
+		if (value instanceof TraceableMessage) {
+			return ((TraceableMessage<?>) value).getCorrelationId();
+		}
+		if (value instanceof ResponseMessage) {
+			return ((ResponseMessage<?, ?>) value).getCorrelationId();
+		}
+		return null;
+	}
+
+	/**
+	 * 64 bit FNV-1a over the chars, then the murmur3 finalizer to spread the bits. Never 0, which marks an empty slot.
+	 */
+	static long fingerprint(String correlationId) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < correlationId.length(); i++) {
+			hash ^= correlationId.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0L ? 1L : hash;
+	}
+
+	/**
+	 * A linear-probing table of fingerprints and their insert times, plus a ring of the same in insert order.
+	 * The ring's head is the oldest entry, the next to expire or be evicted.
+	 */
+	private final class Segment {
+		private final long[] keys;
+		private final long[] times;
+		private final int mask;
+		private final long[] ringKeys;
+		private final long[] ringTimes;
+		private int head = 0;
+		private int ringSize = 0;
+		int tableSize = 0;
+
+		Segment(int maxEntries) {
+			int capacity = Integer.highestOneBit(Math.max(2, maxEntries * 2 - 1)) << 1;
+			keys = new long[capacity];
+			times = new long[capacity];
+			mask = capacity - 1;
+			ringKeys = new long[maxEntries];
+			ringTimes = new long[maxEntries];
+		}
+
+		synchronized boolean checkAndAdd(long fingerprint, long now) {
+			expire(now);
+			if (find(fingerprint) >= 0) {
+				hits.increment();
+				return true;
+			}
+			misses.increment();
+			add(fingerprint, now);
+			return false;
+		}
+
+		synchronized boolean contains(long fingerprint, long now) {
+			expire(now);
+			return find(fingerprint) >= 0;
+		}
+
+		synchronized void forget(long fingerprint) {
+			int slot = find(fingerprint);
+			if (slot >= 0) {
+				delete(slot);
+			}
+		}
+
+		synchronized void restore(long fingerprint, long time, long now) {
+			expire(now);
+			if (find(fingerprint) < 0) {
+				add(fingerprint, time);
+			}
+		}
+
+		/**
+		 * Fingerprint and time pairs still in the table, oldest first.
+		 */
+		long[] live() {
+			long[] entries = new long[tableSize * 2];
+			int count = 0;
+			for (int i = 0; i < ringSize && count < tableSize; i++) {
+				int index = (head + i) % ringKeys.length;
+				int slot = find(ringKeys[index]);
+				if (slot >= 0 && times[slot] == ringTimes[index]) {
+					entries[count * 2] = ringKeys[index];
+					entries[count * 2 + 1] = ringTimes[index];
+					count++;
+				}
+			}
+			return count * 2 == entries.length ? entries : Arrays.copyOf(entries, count * 2);
+		}
+
+		private void add(long fingerprint, long time) {
+			if (ringSize == ringKeys.length) {
+				if (removeHead()) {
+					evictions.increment();
+				}
+			}
+			int tail = (head + ringSize) % ringKeys.length;
+			ringKeys[tail] = fingerprint;
+			ringTimes[tail] = time;
+			ringSize++;
+			int slot = (int) fingerprint & mask;
+			while (keys[slot] != 0L) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = fingerprint;
+			times[slot] = time;
+			tableSize++;
+		}
+
+		private void expire(long now) {
+			if (ttlMillis == 0L) {
+				return;
+			}
+			long oldest = now - ttlMillis;
+			while (ringSize > 0 && ringTimes[head] <= oldest) {
+				if (removeHead()) {
+					expirations.increment();
+				}
+			}
+		}
+
+		/**
+		 * Drops the ring's head, and its table entry unless that was forgotten or re-added since.
+		 * @return true when a table entry was removed
+		 */
+		private boolean removeHead() {
+			long fingerprint = ringKeys[head];
+			long time = ringTimes[head];
+			head = (head + 1) % ringKeys.length;
+			ringSize--;
+			int slot = find(fingerprint);
+			if (slot >= 0 && times[slot] == time) {
+				delete(slot);
+				return true;
+			}
+			return false;
+		}
+
+		private int find(long fingerprint) {
+			for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+				long key = keys[slot];
+				if (key == fingerprint) {
+					return slot;
+				}
+				if (key == 0L) {
+					return -1;
+				}
+			}
+		}
+
+		/**
+		 * Backward shift deletion, so probes never need tombstones.
+		 */
+		private void delete(int slot) {
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (keys[next] != 0L) {
+				int home = (int) keys[next] & mask;
+				// the entry may fill the hole unless its home lies cyclically in (hole, next]
+				boolean stays = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+				if (false == stays) {
+					keys[hole] = keys[next];
+					times[hole] = times[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			keys[hole] = 0L;
+			times[hole] = 0L;
+			tableSize--;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package qslv.common.kafka;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.avro.Schema;
+import org.apache.kafka.common.errors.SerializationException;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Decodes the envelope fields of a TraceableMessage straight from the Avro bytes and leaves the payload
+ * as an undecoded slice. The field plan is computed once per writer schema; decoding a record is then a
+ * single pass over the bytes, skipping fields the envelope does not know. A decoder holds nothing but what the
+ * schema determines, so one is shared by every deserializer of a context; each passes its own payload readers.
+ * 
+ * @author SMS
+ *
+ */
+final class EnvelopeDecoder {
+	private static final int OTHER = 0;
+	private static final int PRODUCER_AIT = 1;
+	private static final int BUSINESS_TAXONOMY_ID = 2;
+	private static final int CORRELATION_ID = 3;
+	private static final int CREATION_TIME = 4;
+	private static final int COMPLETION_TIME = 5;
+	private static final int PAYLOAD = 6;
+
+	private final int[] kinds;
+	private final Schema[] fieldSchemas;
+	// per field, null when its strings are not cached
+	private final Utf8StringCache[] stringCaches;
+
+	/**
+	 * @param writerSchema the TraceableMessage record schema the bytes were written with
+	 * @param caches supplies the string cache of a class's field, or null
+	 */
+	EnvelopeDecoder(Schema writerSchema, BiFunction<Class<?>, String, Utf8StringCache> caches) {
+		if (writerSchema.getType() != Schema.Type.RECORD) {
+			throw new SerializationException("Envelope schema is not a record: " + writerSchema.getFullName());
+		}
+		List<Schema.Field> fields = writerSchema.getFields();
+		this.kinds = new int[fields.size()];
+		this.fieldSchemas = new Schema[fields.size()];
+		this.stringCaches = new Utf8StringCache[fields.size()];
+		for (int ii = 0; ii < fields.size(); ii++) {
+			kinds[ii] = kind(fields.get(ii).name());
+			fieldSchemas[ii] = fields.get(ii).schema();
+			if (kinds[ii] == PRODUCER_AIT || kinds[ii] == BUSINESS_TAXONOMY_ID || kinds[ii] == CORRELATION_ID) {
+				stringCaches[ii] = caches.apply(LazyTraceableMessage.class, fields.get(ii).name());
+			}
+		}
+	}
+
+	/**
+	 * @param payloadReaders supplies the calling deserializer's reader for a payload schema
+	 */
+	<T> LazyTraceableMessage<T> decode(byte[] data, int offset, int length, Function<Schema, ObjectReader> payloadReaders) {
+		AvroBinaryCursor cursor = new AvroBinaryCursor(data, offset, length);
+		LazyTraceableMessage<T> message = new LazyTraceableMessage<>();
+		message.setMessageCreationTime(null);
+		for (int ii = 0; ii < kinds.length; ii++) {
+			switch (kinds[ii]) {
+			case PRODUCER_AIT:
+				message.setProducerAit(readString(cursor, fieldSchemas[ii], stringCaches[ii]));
+				break;
+			case BUSINESS_TAXONOMY_ID:
+				message.setBusinessTaxonomyId(readString(cursor, fieldSchemas[ii], stringCaches[ii]));
+				break;
+			case CORRELATION_ID:
+				message.setCorrelationId(readString(cursor, fieldSchemas[ii], stringCaches[ii]));
+				break;
+			case CREATION_TIME:
+				message.setMessageCreationTime(readTime(cursor, fieldSchemas[ii]));
+				break;
+			case COMPLETION_TIME:
+				message.setMessageCompletionTime(readTime(cursor, fieldSchemas[ii]));
+				break;
+			case PAYLOAD:
+				readPayload(cursor, fieldSchemas[ii], message, payloadReaders);
+				break;
+			default:
+				cursor.skip(fieldSchemas[ii]);
+			}
+		}
+		return message;
+	}
+
+	private static <T> void readPayload(AvroBinaryCursor cursor, Schema schema, LazyTraceableMessage<T> message,
+			Function<Schema, ObjectReader> payloadReaders) {
+		if (schema.getType() == Schema.Type.UNION) {
+			schema = cursor.branch(schema);
+		}
+		if (schema.getType() == Schema.Type.NULL) {
+			message.setPayload(null);
+			return;
+		}
+		int start = cursor.position();
+		cursor.skip(schema);
+		message.setRawPayload(cursor.array(), start, cursor.position() - start, payloadReaders.apply(schema));
+	}
+
+	private static String readString(AvroBinaryCursor cursor, Schema schema, Utf8StringCache cache) {
+		if (schema.getType() == Schema.Type.UNION) {
+			schema = cursor.branch(schema);
+		}
+		if (schema.getType() == Schema.Type.STRING) {
+			return cache == null ? cursor.readString() : cursor.readString(cache);
+		}
+		cursor.skip(schema);
+		return null;
+	}
+
+	private static LocalDateTime readTime(AvroBinaryCursor cursor, Schema schema) {
+		if (schema.getType() == Schema.Type.UNION) {
+			schema = cursor.branch(schema);
+		}
+		if (schema.getType() == Schema.Type.STRING) {
+			return LocalDateTime.parse(cursor.readString());
+		}
+		if (schema.getType() == Schema.Type.LONG) {
+			return AvroTimestampModule.localDateTimeFromMicros(cursor.readLong());
+		}
+		cursor.skip(schema);
+		return null;
+	}
+
+	private static int kind(String fieldName) {
+		switch (fieldName) {
+		case "producerAit":
+			return PRODUCER_AIT;
+		case "businessTaxonomyId":
+			return BUSINESS_TAXONOMY_ID;
+		case "correlationId":
+			return CORRELATION_ID;
+		case "messageCreationTime":
+			return CREATION_TIME;
+		case "messageCompletionTime":
+			return COMPLETION_TIME;
+		case "payload":
+			return PAYLOAD;
+		default:
+			return OTHER;
+		}
+	}
+}
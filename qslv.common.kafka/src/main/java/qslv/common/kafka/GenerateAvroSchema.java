@@ -0,0 +1,19 @@
+package qslv.common.kafka;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose Avro schema the qslv-common-kafka-maven-plugin generates at build time. The .avsc file
+ * is written next to the class, where JacksonAvroSerializer looks for a matching schema file, so the serializer
+ * never generates the schema at runtime. See AvroSchemaGenerator.
+ * 
+ * @author SMS
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface GenerateAvroSchema {
+}
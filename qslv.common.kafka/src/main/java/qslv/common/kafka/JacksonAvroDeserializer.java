@@ -1,26 +1,39 @@
 package qslv.common.kafka;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificData;
 import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.avro.AvroFactory;
 import com.fasterxml.jackson.dataformat.avro.AvroMapper;
 import com.fasterxml.jackson.dataformat.avro.AvroParser;
 import com.fasterxml.jackson.dataformat.avro.AvroSchema;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
 import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
 import io.confluent.kafka.serializers.AbstractKafkaAvroDeserializer;
 import io.confluent.kafka.serializers.KafkaAvroDeserializerConfig;
@@ -37,6 +50,15 @@ import io.confluent.kafka.serializers.KafkaAvroDeserializerConfig;
  *     jad.configure(props, false);
  *     DefaultKafkaConsumerFactory<String, MyClass> factory = new DefaultKafkaConsumerFactory<>(props, new StringDeserializer(), jad);
  *     
+ * The target class is resolved per schema id, so one deserializer can read a topic carrying several record
+ * types. See TypeMapper.
+ * 
+ * In tolerant mode a record that cannot be decoded gets a null value and a DeserializationFailure.HEADER naming
+ * the reason, and is handed to the DeadLetterHandler, instead of failing the poll. See CONFIG_TOLERANT.
+ * 
+ * Once configured, one instance may be shared by any number of consumer threads. Deserializers configured alike
+ * share their mapper and compiled readers, see SerdeContext. Call close() when done.
+ *     
  * @author SMS
  *
  * @param <T>The class to deserialize
@@ -46,33 +68,188 @@ public class JacksonAvroDeserializer<T> extends AbstractKafkaAvroDeserializer im
 
 	
 	private final AvroFactory factory = new AvroFactory();
-	private AvroMapper mapper = new AvroMapper(new AvroFactory());
+	private volatile SerdeContext context = null;
+	private volatile AvroMapper mapper = null;
+	// the context to release on close(), guarded by this
+	private SerdeContext acquired = null;
+	private SchemaRegistryClient injectedSchemaRegistry = null;
 	
-	{
-		mapper.registerModule(new JavaTimeModule());
-		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+	// internal caches, safe for use by many consumer threads. Those keyed by schema id are in the context,
+	// except the readers resolved against this instance's reader schema.
+	private final ConcurrentMap<Integer,ObjectReader> schemaIdReaderMap = new ConcurrentHashMap<>();
+	private volatile Set<String> codecClasses = Collections.emptySet();
+	// target class and decode path per schema id
+	private final SchemaIdTable<TypeBinding<T>> schemaIdTypeTable = new SchemaIdTable<>();
+	private volatile TypeMapper typeMapper = TypeMapper.NONE;
+	// the first class resolved, for later schemas that name no loadable class
+	volatile Class <T> classType = null;
+	private volatile Map<String, Schema> configuredReaderSchemaMap = Collections.emptyMap();
+	private volatile boolean deriveReaderSchema = false;
+	private volatile SchemaRegistryResolver resolver = null;
+	// lazy envelope mode, see LazyTraceableMessage
+	private volatile boolean lazyEnvelope = false;
+	private volatile Class<?> lazyPayloadType = null;
+	// handed to the context's shared envelope decoders on each decode
+	private final Function<Schema, ObjectReader> payloadReaders = this::getPayloadReader;
+	private volatile Map<String, Long> warmupTimings = Collections.emptyMap();
+	private volatile SerdeMetrics metrics = SerdeMetrics.NOOP;
+	// tolerant mode, see DeserializationFailure
+	private volatile boolean tolerant = false;
+	private volatile DeadLetterHandler deadLetterHandler = DeadLetterHandler.NONE;
+	private final RateLimitedLogger failureLog = new RateLimitedLogger(log, RateLimitedLogger.DEFAULT_INTERVAL_MS);
+	// schema ids that failed to resolve, to the time they may be retried, so a burst of them skips the registry
+	private final SchemaIdCache<AtomicLong> unresolvedSchemaIds = new SchemaIdCache<>(UNRESOLVED_MAX_ENTRIES);
+	// ids the registry did not know, in a row; past a few, new ids are not looked up until lookupsPausedUntil
+	private final AtomicInteger unknownInARow = new AtomicInteger();
+	private volatile long lookupsPausedUntil = System.nanoTime();
+	private static final int UNRESOLVED_MAX_ENTRIES = 1024;
+	private static final long UNRESOLVED_RETRY_NANOS = TimeUnit.SECONDS.toNanos(10L);
+	private static final int UNKNOWN_BEFORE_PAUSE = 3;
+	private static final long PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(500L);
+	private static final long PAUSE_MAX_NANOS = TimeUnit.SECONDS.toNanos(30L);
+
+	public JacksonAvroDeserializer() {
+	}
+	/**
+	 * Supply the schema registry client directly, e.g. Confluent's MockSchemaRegistryClient for
+	 * tests and benchmarks. The superclass only builds a REST client when none is set.
+	 */
+	public JacksonAvroDeserializer(SchemaRegistryClient schemaRegistry) {
+		this.schemaRegistry = schemaRegistry;
+		this.injectedSchemaRegistry = schemaRegistry;
 	}
-	
-	// internal caches
-	private Map<Integer,ObjectReader> schemaIdReaderMap = new HashMap<>();
-	//private Map<Integer, Class<T>> schemaIdTypeMap = new HashMap<>();
-	Class <T> classType = null;
 
 	/**
 	 * provided to provide isKey attribute. This is needed for schema subject lookup
 	 */
 	public void configure(Map<String, ?> config) {
-		super.configure(new KafkaAvroDeserializerConfig(config));
-		JacksonAvroSerdeConfig.configureMixins(config, mapper);
+		SerdeContext shared = SerdeContext.acquire(SerdeContext.Role.DESERIALIZER, config, injectedSchemaRegistry, null);
+		try {
+			// null lets the superclass build the REST client, which the context then keeps for the next instance
+			super.schemaRegistry = injectedSchemaRegistry != null ? injectedSchemaRegistry : shared.getSchemaRegistry();
+			super.configure(new KafkaAvroDeserializerConfig(config));
+			shared.adoptSchemaRegistry(super.schemaRegistry);
+			mapper = shared.getMapper();
+		} catch (RuntimeException ex) {
+			SerdeContext.release(shared);
+			throw ex;
+		}
+		context = shared;
+		// a second configure() releases the first context
+		close();
+		synchronized (this) {
+			acquired = shared;
+		}
+		resolver = new SchemaRegistryResolver(super.schemaRegistry, config, shared.registryRequests);
+		setMetrics(SerdeMetrics.configure(config));
+		configuredReaderSchemaMap = JacksonAvroSerdeConfig.configureReaderSchemas(config);
+		deriveReaderSchema = JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_READER_PROJECTION, false);
+		codecClasses = Collections.unmodifiableSet(new HashSet<>(JacksonAvroSerdeConfig.getList(config, JacksonAvroSerdeConfig.CONFIG_CODEC_CLASSES)));
+		lazyEnvelope = JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_LAZY_ENVELOPE, false);
+		lazyPayloadType = JacksonAvroSerdeConfig.getClass(config, JacksonAvroSerdeConfig.CONFIG_LAZY_PAYLOAD_TYPE);
+		typeMapper = TypeMapper.configure(config);
+		tolerant = JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_TOLERANT, false);
+		deadLetterHandler = DeadLetterHandler.configure(config);
+		schemaIdTypeTable.clear();
+		prewarm(JacksonAvroSerdeConfig.getList(config, JacksonAvroSerdeConfig.CONFIG_PREWARM_SUBJECTS),
+				JacksonAvroSerdeConfig.getInt(config, JacksonAvroSerdeConfig.CONFIG_PREWARM_VERSIONS, 1));
 	}
 	public void configure(Map<String, ?> config, boolean isKey) {
 		configure(config);
 	}
 
+	/**
+	 * Releases the shared context. The last deserializer to close drops its mapper and caches.
+	 */
+	@Override
+	public void close() {
+		SerdeContext shared;
+		synchronized (this) {
+			shared = acquired;
+			acquired = null;
+		}
+		if (shared != null) {
+			SerdeContext.release(shared);
+		}
+	}
+
+	/**
+	 * Export deserialize timings, sizes, registry calls and cache hits. NOOP by default.
+	 */
+	public void setMetrics(SerdeMetrics metrics) {
+		this.metrics = metrics == null ? SerdeMetrics.NOOP : metrics;
+		if (resolver != null) {
+			resolver.setMetrics(this.metrics);
+		}
+	}
+
+	/**
+	 * Choose the target class per writer schema. Applies to schema ids not yet seen; set it before the first record.
+	 */
+	public void setTypeMapper(TypeMapper typeMapper) {
+		this.typeMapper = typeMapper == null ? TypeMapper.NONE : typeMapper;
+	}
+
+	/**
+	 * Called with each record tolerant mode could not decode.
+	 */
+	public void setDeadLetterHandler(DeadLetterHandler deadLetterHandler) {
+		this.deadLetterHandler = deadLetterHandler == null ? DeadLetterHandler.NONE : deadLetterHandler;
+	}
+
+	/**
+	 * Warm up time per configured subject, in microseconds, measured at configure().
+	 */
+	public Map<String, Long> getWarmupTimings() {
+		return warmupTimings;
+	}
+
+	/**
+	 * Fetch the latest versions of each configured subject and compile their readers up front, so the
+	 * first records after a deploy or rebalance do not wait on the registry. Registry calls go through the
+	 * resolver, so each is bounded by the registry timeout. A failure is logged and left for the first record
+	 * to retry; it does not fail configuration.
+	 * @param subjects
+	 * @param versions number of latest versions per subject
+	 */
+	private void prewarm(List<String> subjects, int versions) {
+		if (subjects.isEmpty()) {
+			return;
+		}
+		Map<String, Long> timings = new LinkedHashMap<>();
+		long totalStart = System.nanoTime();
+		for (String subject : subjects) {
+			long start = System.nanoTime();
+			try {
+				List<Integer> allVersions = resolver.getAllVersions(subject);
+				List<Integer> latest = allVersions.subList(Math.max(0, allVersions.size() - Math.max(1, versions)), allVersions.size());
+				for (Integer version : latest) {
+					int schemaId = resolver.getVersionId(subject, version);
+					TypeBinding<T> binding = getBinding(schemaId);
+					if (binding.envelope) {
+						getEnvelopeDecoder(schemaId);
+					} else if (getCodec(schemaId, binding) == null) {
+						getReader(schemaId, binding);
+					}
+					log.debug("Prewarmed subject {} version {} schema id {}", subject, version, schemaId);
+				}
+				long elapsed = (System.nanoTime() - start) / 1000L;
+				timings.put(subject, elapsed);
+				log.info("Prewarmed subject {}, {} versions in {}us", subject, latest.size(), elapsed);
+			} catch (Exception ex) {
+				log.warn("Could not prewarm subject {}. {}", subject, ex.getMessage());
+			}
+		}
+		log.info("Prewarmed {} of {} subjects in {}us", timings.size(), subjects.size(), (System.nanoTime() - totalStart) / 1000L);
+		warmupTimings = Collections.unmodifiableMap(timings);
+	}
+
 	
 	/**
 	 * The superclass AbstractKafkaAvroDeserializer maintains a cache of the schemas, 
-	 * looked up in the schemaRegristry which is accessed via REST calls.
+	 * looked up in the schemaRegristry which is accessed via REST calls. Concurrent
+	 * lookups of the same id share one call, bounded by the configured timeout. A failure is left to the
+	 * caller to log: deserialize() in strict mode, the rate limited failure log in tolerant mode.
 	 * @param schemaId
 	 * @return
 	 */
@@ -80,53 +257,217 @@ public class JacksonAvroDeserializer<T> extends AbstractKafkaAvroDeserializer im
 		log.debug("getSchema for {}", schemaId);
 		Schema schema = null;
 		try {
-			schema = super.schemaRegistry.getById(schemaId);
-		} catch (IOException | RestClientException ex) {
-			log.error("Error getting schema from Schema Registry. schema id: {}" + schemaId, ex);
-			throw new SerializationException("Error getting schema from Schema Registry. schema id: " + schemaId, ex);
+			schema = resolver.getById(schemaId);
+		} catch (SerializationException ex) {
+			log.debug("Error getting schema from Schema Registry. schema id: {}. {}", schemaId, ex.getMessage());
+			throw ex;
 		}
-		log.debug("Schema retrieved for id {} {}", schemaId, schema.toString());
+		log.debug("Schema retrieved for id {} {}", schemaId, schema.getFullName());
 		return schema;
 	}
+	/**
+	 * The direct codec for a class listed in CONFIG_CODEC_CLASSES, built against the writer schema. Reader
+	 * schema projection is Jackson's, so a class with a reader schema is always decoded by Jackson.
+	 * @return null when Jackson decodes the class
+	 */
+	private DirectCodec getCodec(int schemaId, TypeBinding<T> binding) {
+		if (false == binding.codec) {
+			return null;
+		}
+		Class<T> readType = binding.type;
+		SchemaIdCache<DirectCodec> codecs = context.codecs;
+		DirectCodec codec = codecs.get(schemaId);
+		if (codec == null) {
+			// fetch outside the cache lock, the registry call may be slow
+			Schema schema = getSchema(schemaId);
+			codec = codecs.get(schemaId, k -> DirectCodec.forReading(mapper, mapper.constructType(readType), schema, context::stringCache));
+		}
+		return codec.handles(readType) ? codec : null;
+	}
 	/**
 	 * Looks up the cached reader for the schema id.  The deserializer could be called
-	 * with many schemas on the same topic, slowly versioning up.
+	 * with many schemas on the same topic, slowly versioning up. The reader schema is fixed
+	 * by the class type, so the schema id alone keys the resolved reader. Plain readers are
+	 * shared through the context; readers resolved against a reader schema stay with this instance.
 	 * @param schemaId
 	 * @return The Jackson Avro reader
 	 */
-	private ObjectReader getReader(int schemaId) {
-		return schemaIdReaderMap.computeIfAbsent(schemaId, this::computeReader);
+	private ObjectReader getReader(int schemaId, TypeBinding<T> binding) {
+		Schema projection = binding.readerSchema;
+		if (projection != null) {
+			ObjectReader reader = schemaIdReaderMap.get(schemaId);
+			if (reader != null) {
+				metrics.recordCacheHit(SerdeMetrics.CACHE_READER);
+				return reader;
+			}
+			metrics.recordCacheMiss(SerdeMetrics.CACHE_READER);
+			// fetch outside the cache lock, the registry call may be slow
+			Schema schema = getSchema(schemaId);
+			return schemaIdReaderMap.computeIfAbsent(schemaId, k -> computeReader(schema, projection));
+		}
+		SchemaIdCache<ObjectReader> readers = context.readers;
+		ObjectReader reader = readers.get(schemaId);
+		if (reader != null) {
+			metrics.recordCacheHit(SerdeMetrics.CACHE_READER);
+			return reader;
+		}
+		metrics.recordCacheMiss(SerdeMetrics.CACHE_READER);
+		Schema schema = getSchema(schemaId);
+		return readers.get(schemaId, k -> computeReader(schema, null));
+	}
+	private ObjectReader computeReader(Schema schema, Schema projection) {
+		if (projection == null) {
+			return mapper.reader(new AvroSchema(schema));
+		}
+		try {
+			// fields the reader schema lacks are skipped in the byte stream, never materialized
+			return mapper.reader(new AvroSchema(schema).withReaderSchema(new AvroSchema(projection)));
+		} catch (IOException ex) {
+			log.warn("Reader schema {} cannot resolve writer schema {}, decoding all fields. {}", 
+					projection.getFullName(), schema.getFullName(), ex.getMessage());
+			return mapper.reader(new AvroSchema(schema));
+		}
 	}
-	private ObjectReader computeReader(int schemaId) {
-		return mapper.reader(new AvroSchema(getSchema(schemaId)));
+
+	/**
+	 * The reader schema for the class: configured, derived by Jackson from the class and its mixins,
+	 * or none.
+	 * @param clazz
+	 * @return
+	 */
+	private Schema loadReaderSchema(Class<?> clazz) {
+		Schema schema = configuredReaderSchemaMap.get(clazz.getCanonicalName());
+		if (schema != null) {
+			log.debug("Using configured reader schema for class {}", clazz.getCanonicalName());
+			return schema;
+		}
+		if (deriveReaderSchema) {
+			try {
+				schema = mapper.schemaFor(clazz).getAvroSchema();
+				log.debug("Using Jackson generated reader schema for class {}", clazz.getCanonicalName());
+				return schema;
+			} catch (IOException ex) {
+				log.warn("Could not generate reader schema for class {}, decoding all fields. {}", clazz.getCanonicalName(), ex.getMessage());
+			}
+		}
+		return null;
 	}
 	
 	/**
-	 * Looks up the cached data type for the schema id.  The cache is loaded 
-	 * from the data type defined in the schema.  We cache these in a map
-	 * in the off chance that a message has a schemaid of another type.
-	 * But that would certainly cause a problem. All messages must be of type T.
+	 * The class for the schema id: the TypeMapper's choice, else the class the schema names. A schema naming no
+	 * loadable class decodes into the first class resolved, as when the class was pinned by the first record.
 	 * @param schemaId
 	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private Class<T> resolveType(int schemaId) {
+		log.debug("resolveType {}", schemaId);
+		Schema schema = getSchema(schemaId);
+		Class<?> clazz = typeMapper.resolve(schemaId, schema);
+		if (clazz == null) {
+			try {
+				clazz = Class.forName(SpecificData.getClassName(schema), true, Utils.getContextOrKafkaClassLoader());
+			} catch (ClassNotFoundException ex) {
+				clazz = classType;
+				if (clazz == null) {
+					log.debug("Error loading class for schemaId {}. {}", schemaId, ex);
+					throw new SerializationException("Error loading class for schema id " + schemaId, ex);
+				}
+				log.debug("No class for schema {}, schema id {} decodes into {}", schema.getFullName(), schemaId, clazz.getCanonicalName());
+			}
+		}
+		log.debug("Class Type identified for Schema Id {}, class name {}", schemaId, clazz.getCanonicalName());
+		return (Class<T>) clazz;
+	}
 
-	private Class<T> getDataType(int schemaId) {
-		return schemaIdTypeMap.computeIfAbsent(schemaId, this::loadDataType);
+	private static boolean isLazyEnvelope(Class<?> readType) {
+		return readType == TraceableMessage.class || readType == LazyTraceableMessage.class;
 	}
-	*/
-	@SuppressWarnings("unchecked")
-	private Class<T> loadDataType(int schemaId) {
-		log.debug("loadDataType {}", schemaId);
-		Class<T> clazz = null;
-		try {
-			Schema schema = getSchema(schemaId);
-			clazz = (Class<T>) Class.forName(SpecificData.getClassName(schema), true, Utils.getContextOrKafkaClassLoader());
-			//schemaIdTypeMap.put(schemaId, clazz);
-			log.debug("Class Type identified for Schema Id {}, class name {}", schemaId, clazz.getCanonicalName());
-		} catch (ClassNotFoundException ex) {
-			log.debug("Error loading class for schemaId {}. {}", schemaId, ex);
-			throw new SerializationException("Error loading class for schema id " + schemaId, ex);
+	private EnvelopeDecoder getEnvelopeDecoder(int schemaId) {
+		SchemaIdCache<EnvelopeDecoder> envelopes = context.envelopes;
+		EnvelopeDecoder decoder = envelopes.get(schemaId);
+		if (decoder != null) {
+			return decoder;
 		}
-		return clazz;
+		Schema schema = getSchema(schemaId);
+		SerdeContext shared = context;
+		return envelopes.get(schemaId, k -> new EnvelopeDecoder(schema, shared::stringCache));
+	}
+	private ObjectReader getPayloadReader(Schema payloadSchema) {
+		return SerdeCaches.get(context.payloadReaders, payloadSchema, this::computePayloadReader);
+	}
+	/**
+	 * The payload class is the configured lazy payload type, else the class named by the payload schema.
+	 * When neither is available the payload decodes to Jackson's natural mapping (maps and lists).
+	 */
+	private ObjectReader computePayloadReader(Schema payloadSchema) {
+		Class<?> payloadType = lazyPayloadType;
+		if (payloadType == null && (payloadSchema.getType() == Schema.Type.RECORD || payloadSchema.getType() == Schema.Type.ENUM)) {
+			try {
+				payloadType = Class.forName(SpecificData.getClassName(payloadSchema), true, Utils.getContextOrKafkaClassLoader());
+			} catch (ClassNotFoundException ex) {
+				log.debug("No class for payload schema {}, decoding to maps", payloadSchema.getFullName());
+			}
+		}
+		return mapper.readerFor(payloadType == null ? Object.class : payloadType).with(new AvroSchema(payloadSchema));
+	}
+
+	/**
+	 * The class type and decode path for the schema id. Resolved once, then read from the dispatch table
+	 * with no locking.
+	 * @param schemaId
+	 * @return
+	 */
+	private TypeBinding<T> getBinding(int schemaId) {
+		TypeBinding<T> binding = schemaIdTypeTable.get(schemaId);
+		if (binding != null) {
+			return binding;
+		}
+		// resolve outside the table lock, the registry call may be slow
+		Class<T> readType = resolveType(schemaId);
+		Schema projection = loadReaderSchema(readType);
+		binding = schemaIdTypeTable.putIfAbsent(schemaId, new TypeBinding<>(readType, projection,
+				lazyEnvelope && isLazyEnvelope(readType),
+				projection == null && codecClasses.contains(readType.getName())));
+		if (classType == null) {
+			synchronized (this) {
+				if (classType == null) {
+					classType = binding.type;
+				}
+			}
+		}
+		return binding;
+	}
+
+	/**
+	 * The precomputed decode path for one schema id.
+	 */
+	private static final class TypeBinding<T> {
+		final Class<T> type;
+		// null to decode with the writer schema alone
+		final Schema readerSchema;
+		// decode only the envelope, see LazyTraceableMessage
+		final boolean envelope;
+		// decode with a direct codec when it handles the writer schema
+		final boolean codec;
+
+		TypeBinding(Class<T> type, Schema readerSchema, boolean envelope, boolean codec) {
+			this.type = type;
+			this.readerSchema = readerSchema;
+			this.envelope = envelope;
+			this.codec = codec;
+		}
+	}
+
+	/**
+	 * In tolerant mode, a record that cannot be decoded is marked with DeserializationFailure.HEADER.
+	 */
+	@Override
+	public T deserialize(String topic, Headers headers, byte[] data) {
+		if (tolerant && data != null) {
+			return deserializeTolerant(topic, headers, data);
+		}
+		return deserialize(topic, data);
 	}
 
 	/**
@@ -138,34 +479,165 @@ public class JacksonAvroDeserializer<T> extends AbstractKafkaAvroDeserializer im
 		if (data == null) {
 			return null;
 		}
+		if (tolerant) {
+			return deserializeTolerant(topic, null, data);
+		}
+		SerdeMetrics metrics = this.metrics;
+		boolean timed = metrics.isEnabled();
+		long start = timed ? System.nanoTime() : 0L;
 		T object = null;
 		int schemaId = -1;
 		try {
-			ByteBuffer buffer = ByteBuffer.wrap(data);
-			byte magicByte = buffer.get();
-			if (AbstractKafkaAvroDeserializer.MAGIC_BYTE != magicByte) {
+			if (data.length < WireFormat.HEADER_SIZE || AbstractKafkaAvroDeserializer.MAGIC_BYTE != data[0]) {
 				log.error( "Expected magic byte not found. Topic {}", topic);
 				throw new SerializationException("Expected magic byte not found. Topic " + topic);
 			}
-			schemaId = buffer.getInt();
-			//Class<T> readType = getDataType(schemaId);
-			if (classType == null) {
-				classType = loadDataType(schemaId);
-			}
-			
-			int length = buffer.limit() -1 - AbstractKafkaAvroDeserializer.idSize;
-			int start = buffer.position() + buffer.arrayOffset();
-			AvroParser parser = factory.createParser( buffer.array(), start, length);
-			Object readObject = getReader(schemaId).readValue(parser, classType);
-			object = classType.cast(readObject);
-			
+			schemaId = WireFormat.readSchemaId(data, 1);
+			object = decode(schemaId, getBinding(schemaId), data);
 		} catch (SerializationException ex) {
-			log.error("Error deserializeing for topic {} and schema id {}", topic, schemaId);
+			log.error("Error deserializeing for topic {} and schema id {}. {}", topic, schemaId, ex.getMessage());
 			throw ex;
 		} catch (IOException ex) {
 			log.error("IO Exception deserializing for topic {} and schema id {}", topic, schemaId);
 			throw new SerializationException("IO Exception deserializing for topic " + topic + " and schema id " + schemaId, ex);
 		}
+		if (timed) {
+			metrics.recordDeserialize(topic, schemaId, System.nanoTime() - start, data.length);
+		}
 		return object;
 	}
+
+	private T decode(int schemaId, TypeBinding<T> binding, byte[] data) throws IOException {
+		Class<T> readType = binding.type;
+		DirectCodec codec;
+		if (binding.envelope) {
+			return readType.cast(getEnvelopeDecoder(schemaId).decode(data, WireFormat.HEADER_SIZE, data.length - WireFormat.HEADER_SIZE,
+					payloadReaders));
+		} else if ((codec = getCodec(schemaId, binding)) != null) {
+			return readType.cast(codec.decode(new AvroBinaryCursor(data, WireFormat.HEADER_SIZE, data.length - WireFormat.HEADER_SIZE)));
+		}
+		AvroParser parser = factory.createParser(data, WireFormat.HEADER_SIZE, data.length - WireFormat.HEADER_SIZE);
+		return readType.cast(getReader(schemaId, binding).readValue(parser, readType));
+	}
+
+	/**
+	 * Tolerant mode: framing is checked up front rather than caught, schema ids that just failed to resolve are
+	 * not retried for a while, and a failure is logged at most once per interval. Corrupt bytes after a valid
+	 * magic byte read as random schema ids; once a few in a row are unknown to the registry, new ids are not
+	 * looked up for a backoff period, so a poison burst costs no network call per record.
+	 */
+	private T deserializeTolerant(String topic, Headers headers, byte[] data) {
+		if (data.length < WireFormat.HEADER_SIZE) {
+			return failure(topic, headers, data, -1, DeserializationFailure.Reason.TRUNCATED, null);
+		}
+		if (AbstractKafkaAvroDeserializer.MAGIC_BYTE != data[0]) {
+			return failure(topic, headers, data, -1, DeserializationFailure.Reason.BAD_MAGIC_BYTE, null);
+		}
+		int schemaId = WireFormat.readSchemaId(data, 1);
+		SerdeMetrics metrics = this.metrics;
+		boolean timed = metrics.isEnabled();
+		long start = timed ? System.nanoTime() : 0L;
+		TypeBinding<T> binding = schemaIdTypeTable.get(schemaId);
+		if (binding == null) {
+			long now = System.nanoTime();
+			AtomicLong retryAt = unresolvedSchemaIds.get(schemaId);
+			if ((retryAt != null && now - retryAt.get() < 0L) || now - lookupsPausedUntil < 0L) {
+				return failure(topic, headers, data, schemaId, DeserializationFailure.Reason.UNKNOWN_SCHEMA, null);
+			}
+			try {
+				binding = getBinding(schemaId);
+				unknownInARow.set(0);
+			} catch (RuntimeException ex) {
+				unresolvedSchemaIds.get(schemaId, k -> new AtomicLong()).set(now + UNRESOLVED_RETRY_NANOS);
+				if (isNotFound(ex)) {
+					int unknown = unknownInARow.incrementAndGet();
+					if (unknown >= UNKNOWN_BEFORE_PAUSE) {
+						long pause = Math.min(PAUSE_MAX_NANOS, PAUSE_NANOS << Math.min(unknown - UNKNOWN_BEFORE_PAUSE, 10));
+						lookupsPausedUntil = now + pause;
+						failureLog.warn("{} unknown schema ids in a row, registry lookups paused for {}ms", unknown, pause / 1000000L);
+					}
+				}
+				return failure(topic, headers, data, schemaId, DeserializationFailure.Reason.UNKNOWN_SCHEMA, ex.getMessage());
+			}
+		}
+		T object;
+		try {
+			object = decode(schemaId, binding, data);
+		} catch (IOException | RuntimeException ex) {
+			return failure(topic, headers, data, schemaId, DeserializationFailure.Reason.CORRUPT_PAYLOAD, ex.getMessage());
+		}
+		if (timed) {
+			metrics.recordDeserialize(topic, schemaId, System.nanoTime() - start, data.length);
+		}
+		return object;
+	}
+
+	/**
+	 * Reports the failure to the dead letter handler and in the record's headers, when there are any. The value is null.
+	 */
+	private T failure(String topic, Headers headers, byte[] data, int schemaId, DeserializationFailure.Reason reason, String detail) {
+		DeserializationFailure failure = new DeserializationFailure(topic, data, schemaId, reason, detail);
+		failureLog.warn("Could not deserialize a record. {}", failure);
+		if (headers != null) {
+			try {
+				headers.add(DeserializationFailure.HEADER, reason.name().getBytes(StandardCharsets.UTF_8));
+			} catch (IllegalStateException ex) {
+				failureLog.warn("Headers of a record from topic {} are read only. {}", topic, ex.getMessage());
+			}
+		}
+		try {
+			deadLetterHandler.handle(failure);
+		} catch (RuntimeException ex) {
+			failureLog.warn("Dead letter handler failed for topic {}. {}", topic, ex.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * The registry answered that it has no such schema, as it does for the random ids of corrupt bytes.
+	 */
+	private static boolean isNotFound(Throwable ex) {
+		for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+			if (cause instanceof RestClientException && ((RestClientException) cause).getStatus() == 404) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Non-blocking variant of deserialize. If the record's schema id has not been seen before, the schema is
+	 * fetched in the background and the record is decoded on the common ForkJoinPool once it arrives.
+	 * The calling thread never waits on the schema registry.
+	 * @param topic
+	 * @param data
+	 * @return
+	 */
+	public CompletableFuture<T> deserializeAsync(String topic, byte[] data) {
+		return deserializeAsync(topic, data, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * As deserializeAsync, decoding on the given executor once the schema arrives, so the Avro decoding never
+	 * occupies the schema registry threads.
+	 * @param topic
+	 * @param data
+	 * @param executor
+	 * @return
+	 */
+	public CompletableFuture<T> deserializeAsync(String topic, byte[] data, Executor executor) {
+		if (data != null && data.length >= WireFormat.HEADER_SIZE) {
+			int schemaId = WireFormat.readSchemaId(data, 1);
+			if (schemaIdTypeTable.get(schemaId) == null) {
+				return resolver.getByIdAsync(schemaId).thenApplyAsync(schema -> deserialize(topic, data), executor);
+			}
+		}
+		try {
+			return CompletableFuture.completedFuture(deserialize(topic, data));
+		} catch (SerializationException ex) {
+			CompletableFuture<T> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+	}
 }
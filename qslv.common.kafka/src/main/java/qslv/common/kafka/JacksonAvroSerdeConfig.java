@@ -2,11 +2,16 @@ package qslv.common.kafka;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.avro.Schema;
 import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.ClassPathResource;
@@ -37,6 +42,90 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * 
  * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_SCHEMA + "qslv.common.kafka.Pojo5", "\\qslv\\common\\kafka\\MyCustomPojoFile.avsc");
  * 
+ * A consumer that needs only some of the fields can decode with a reader schema. The writer schema of each record
+ * is resolved against it, and fields missing from the reader schema are skipped without being decoded. Supply the
+ * reader schema file per class, or let Jackson derive it from the target class and its mixins.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_READER_SCHEMA + "qslv.common.kafka.Pojo5", "\\qslv\\common\\kafka\\Pojo5Narrow.avsc");
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_READER_PROJECTION, "true");
+ * 
+ * A consumer of TraceableMessage can decode only the envelope and leave the payload undecoded until getPayload()
+ * is first called. See LazyTraceableMessage. The payload class defaults to the class named by the payload schema.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_LAZY_ENVELOPE, "true");
+ *     props.put(JacksonAvroSerdeConfig.CONFIG_LAZY_PAYLOAD_TYPE, "qslv.data.DepositRequest");
+ * 
+ * java.time values are written as ISO strings. The serializer can instead write them as Avro timestamp-micros and
+ * local-timestamp-micros longs. Deserializers read both forms, so switch consumers over first. See AvroTimestampModule.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_TIMESTAMPS_BINARY, "true");
+ * 
+ * The serializer writes into a per-thread pooled buffer. Set CONFIG_BUFFER_POOLED to false to give each call
+ * its own buffer, sized by CONFIG_BUFFER_INITIAL_SIZE.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_BUFFER_POOLED, "false");
+ * 
+ * Schema registry calls are coalesced, bounded by a timeout and retried with jittered backoff. See SchemaRegistryResolver.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_REGISTRY_TIMEOUT_MS, "5000");
+ * 
+ * Resolved schemas can be kept in a local file cache, so restarts and registry outages need no network calls.
+ * See SchemaFileCache.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_CACHE_DIR, "/var/cache/qslv/schemas");
+ * 
+ * Schemas, readers and writers can be resolved at configure() time rather than on the first message. The serializer
+ * takes a class per topic; the deserializer takes a list of subjects and how many of their latest versions to load.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_PREWARM_TOPIC + "deposit.request", "qslv.data.DepositRequest");
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_PREWARM_SUBJECTS, "deposit.request-value, deposit.reply-value");
+ *     props.put(JacksonAvroSerdeConfig.CONFIG_PREWARM_VERSIONS, "2");
+ * 
+ * The hottest classes can be encoded and decoded by direct codecs instead of Jackson databind. A codec is built per
+ * class and schema from Jackson's view of the class, mixins included, and writes the same bytes. Shapes it cannot
+ * reproduce, such as custom serializers, formats or collections, stay with Jackson. See DirectCodec.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_CODEC_CLASSES, "qslv.data.DepositRequest, qslv.data.DepositResponse");
+ * 
+ * The serializer can also write the trace fields of TraceableMessage and ResponseMessage as record headers, so
+ * consumers, interceptors and the tracing aspect can read them without decoding the body. See TraceHeaders.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_HEADERS_TRACE, "true");
+ * 
+ * Serialize and deserialize timings, payload sizes, registry calls and cache hit ratios can be exported to Micrometer.
+ * Pass a MeterRegistry, or any SerdeMetrics. Nothing is measured when the property is absent.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_METRICS_REGISTRY, meterRegistry);
+ * 
+ * A topic may carry several record types. The deserializer resolves the target class once per schema id: a TypeMapper
+ * first, then a mapping from the writer schema's full name, then the class the schema names. The choice, and the decode
+ * path that follows from it, is kept in a dispatch table, so mixed records cost no more than uniform ones.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_TYPE_MAPPING + "qslv.legacy.Deposit", "qslv.data.DepositRequest");
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_TYPE_MAPPER, "qslv.data.EventTypeMapper");
+ * 
+ * In tolerant mode the deserializer returns null for a record it cannot decode, with a DeserializationFailure.HEADER
+ * naming the reason, instead of throwing and stalling the partition. The DeserializationFailure is given to the
+ * DeadLetterHandler, e.g. a DeadLetterPublisher.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_TOLERANT, "true");
+ *     props.put(JacksonAvroSerdeConfig.CONFIG_DEAD_LETTER_HANDLER, new DeadLetterPublisher(dltProducer));
+ * 
+ * Envelope fields such as producerAit and businessTaxonomyId take a handful of values across millions of records.
+ * List them per class and the deserializer returns one shared String per value, matched against the UTF-8 bytes so
+ * that a lazy envelope or direct codec allocates nothing on a hit. Each field gets its own bounded cache of
+ * CONFIG_STRING_CACHE_SIZE entries. See Utf8StringCache.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_STRING_CACHE_FIELDS + "qslv.common.kafka.TraceableMessage", "producerAit, businessTaxonomyId");
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_STRING_CACHE_FIELDS + "qslv.common.kafka.ResponseMessage", "producerAit, responderAit, businessTaxonomyId");
+ * 
+ * Serializers, and deserializers, configured alike share one mapper, schema registry client and set of compiled
+ * readers and writers across the JVM. The caches keyed by schema id hold at most CONFIG_CONTEXT_CACHE_MAX entries,
+ * dropping the least recently used. close() releases the shared context. See SerdeContext.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_CONTEXT_SHARED, "false");
+ *     props.put(JacksonAvroSerdeConfig.CONFIG_CONTEXT_CACHE_MAX, "200");
+ * 
  * @author SMS
  *
  */
@@ -45,13 +134,46 @@ public class JacksonAvroSerdeConfig {
 
 	public static final String CONFIG_MIXINS = "mapper.mixins.";
 	public static final String CONFIG_SCHEMA = "mapper.schema.";
+	public static final String CONFIG_READER_SCHEMA = "mapper.reader.schema.";
+	public static final String CONFIG_READER_PROJECTION = "mapper.reader.projection";
+	public static final String CONFIG_LAZY_ENVELOPE = "mapper.lazy.envelope";
+	public static final String CONFIG_LAZY_PAYLOAD_TYPE = "mapper.lazy.payload.type";
+	public static final String CONFIG_TIMESTAMPS_BINARY = "mapper.timestamps.binary";
+	public static final String CONFIG_BUFFER_POOLED = "mapper.buffer.pooled";
+	public static final String CONFIG_BUFFER_INITIAL_SIZE = "mapper.buffer.initial.size";
+	public static final String CONFIG_REGISTRY_TIMEOUT_MS = "mapper.registry.timeout.ms";
+	public static final String CONFIG_REGISTRY_RETRIES = "mapper.registry.retries";
+	public static final String CONFIG_REGISTRY_BACKOFF_MS = "mapper.registry.backoff.ms";
+	public static final String CONFIG_REGISTRY_BACKOFF_MAX_MS = "mapper.registry.backoff.max.ms";
+	public static final String CONFIG_CACHE_DIR = "mapper.cache.dir";
+	public static final String CONFIG_CACHE_MAX_BYTES = "mapper.cache.max.bytes";
+	public static final String CONFIG_PREWARM_TOPIC = "mapper.prewarm.topic.";
+	public static final String CONFIG_PREWARM_SUBJECTS = "mapper.prewarm.subjects";
+	public static final String CONFIG_PREWARM_VERSIONS = "mapper.prewarm.versions";
+	public static final String CONFIG_METRICS_REGISTRY = "mapper.metrics.registry";
+	public static final String CONFIG_HEADERS_TRACE = "mapper.headers.trace";
+	public static final String CONFIG_CODEC_CLASSES = "mapper.codec.classes";
+	public static final String CONFIG_CONTEXT_SHARED = "mapper.context.shared";
+	public static final String CONFIG_CONTEXT_CACHE_MAX = "mapper.context.cache.max";
+	public static final String CONFIG_TYPE_MAPPING = "mapper.type.mapping.";
+	public static final String CONFIG_TYPE_MAPPER = "mapper.type.mapper";
+	public static final String CONFIG_TOLERANT = "mapper.tolerant";
+	public static final String CONFIG_DEAD_LETTER_HANDLER = "mapper.dead.letter.handler";
+	public static final String CONFIG_STRING_CACHE_FIELDS = "mapper.string.cache.fields.";
+	public static final String CONFIG_STRING_CACHE_SIZE = "mapper.string.cache.size";
 	
 	public static Map<String, Schema>  configureSchemas(Map<String,?> props) {
+		return configureSchemas(props, CONFIG_SCHEMA);
+	}
+	public static Map<String, Schema>  configureReaderSchemas(Map<String,?> props) {
+		return configureSchemas(props, CONFIG_READER_SCHEMA);
+	}
+	private static Map<String, Schema>  configureSchemas(Map<String,?> props, String prefix) {
 		Map<String, Schema> configuredSchemaMap  = new HashMap<String, Schema>();
 		props.forEach((key,value) -> {
 			try {
-				if (key.startsWith(CONFIG_SCHEMA)) {
-					String classname = key.substring(CONFIG_SCHEMA.length()).trim();
+				if (key.startsWith(prefix)) {
+					String classname = key.substring(prefix.length()).trim();
 					if ( false == configuredSchemaMap.containsKey(classname)) {
 						Schema schema = loadSchema(value.toString().trim());
 						if ( schema == null ) {
@@ -74,8 +196,8 @@ public class JacksonAvroSerdeConfig {
 		props.forEach((key,value) -> {
 			try {
 				if (key.startsWith(CONFIG_MIXINS)) {
-					Class<?> clazz = Class.forName(key.substring(CONFIG_MIXINS.length()).trim());
-					Class<?> mixinClazz = Class.forName(value.toString().trim());
+					Class<?> clazz = Class.forName(key.substring(CONFIG_MIXINS.length()).trim(), true, Utils.getContextOrKafkaClassLoader());
+					Class<?> mixinClazz = Class.forName(value.toString().trim(), true, Utils.getContextOrKafkaClassLoader());
 					mapper.addMixIn(clazz,mixinClazz);
 					log.debug("Config: Class " + clazz.getCanonicalName() + " with mixin class "+ mixinClazz.getCanonicalName());
 				}
@@ -86,6 +208,117 @@ public class JacksonAvroSerdeConfig {
 		});
 		return ;
 	}
+	public static Map<String, String> configurePrewarmTopics(Map<String,?> props) {
+		Map<String, String> topics = new LinkedHashMap<>();
+		props.forEach((key,value) -> {
+			if (key.startsWith(CONFIG_PREWARM_TOPIC)) {
+				String topic = key.substring(CONFIG_PREWARM_TOPIC.length()).trim();
+				topics.put(topic, value.toString().trim());
+				log.debug("Config: prewarm topic " + topic + " with class " + value.toString().trim());
+			}
+		});
+		return topics;
+	}
+	public static Map<String, Class<?>> configureTypeMappings(Map<String,?> props) {
+		Map<String, Class<?>> mappings = new HashMap<>();
+		props.forEach((key,value) -> {
+			if (key.startsWith(CONFIG_TYPE_MAPPING)) {
+				String schemaName = key.substring(CONFIG_TYPE_MAPPING.length()).trim();
+				try {
+					mappings.put(schemaName, value instanceof Class ? (Class<?>) value 
+							: Class.forName(value.toString().trim(), true, Utils.getContextOrKafkaClassLoader()));
+					log.debug("Config: schema " + schemaName + " with class " + value);
+				} catch ( ClassNotFoundException ex) {
+					log.error(ex.getLocalizedMessage());
+					throw new SerializationException("Mapped class for schema " + schemaName + " not found.", ex);
+				}
+			}
+		});
+		return mappings;
+	}
+	public static Map<String, List<String>> configureStringCacheFields(Map<String,?> props) {
+		Map<String, List<String>> fields = new HashMap<>();
+		props.forEach((key,value) -> {
+			if (key.startsWith(CONFIG_STRING_CACHE_FIELDS)) {
+				String classname = key.substring(CONFIG_STRING_CACHE_FIELDS.length()).trim();
+				fields.put(classname, getList(props, key));
+				log.debug("Config: class " + classname + " with cached string fields " + value);
+			}
+		});
+		return fields;
+	}
+	public static List<String> getList(Map<String,?> props, String key) {
+		Object value = props.get(key);
+		List<String> list = new ArrayList<>();
+		if (value == null) {
+			return list;
+		}
+		if (value instanceof Collection) {
+			((Collection<?>) value).forEach(item -> list.add(item.toString().trim()));
+		} else {
+			for (String item : value.toString().split(",")) {
+				if (false == item.trim().isEmpty()) {
+					list.add(item.trim());
+				}
+			}
+		}
+		return list;
+	}
+	public static Class<?> getClass(Map<String,?> props, String key) {
+		Object value = props.get(key);
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Class) {
+			return (Class<?>) value;
+		}
+		try {
+			return Class.forName(value.toString().trim());
+		} catch (ClassNotFoundException ex) {
+			log.error(ex.getLocalizedMessage());
+			throw new SerializationException("Configured class for " + key + " not found.", ex);
+		}
+	}
+	public static boolean getBoolean(Map<String,?> props, String key, boolean defaultValue) {
+		Object value = props.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		return Boolean.parseBoolean(value.toString().trim());
+	}
+	public static int getInt(Map<String,?> props, String key, int defaultValue) {
+		Object value = props.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		try {
+			return Integer.parseInt(value.toString().trim());
+		} catch (NumberFormatException ex) {
+			log.error("Config: {} is not a number: {}", key, value);
+			throw new SerializationException("Configured value for " + key + " is not a number.", ex);
+		}
+	}
+	public static long getLong(Map<String,?> props, String key, long defaultValue) {
+		Object value = props.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException ex) {
+			log.error("Config: {} is not a number: {}", key, value);
+			throw new SerializationException("Configured value for " + key + " is not a number.", ex);
+		}
+	}
 	public static Schema loadSchema(String resourceName) throws IOException {
 		ClassPathResource classPathResource = new ClassPathResource(resourceName);
 		if (classPathResource.exists()) {
@@ -1,30 +1,40 @@
 package qslv.common.kafka;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.avro.Schema;
-import org.apache.avro.io.BinaryEncoder;
-import org.apache.avro.io.EncoderFactory;
 import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SequenceWriter;
 import com.fasterxml.jackson.databind.type.TypeFactory;
-import com.fasterxml.jackson.dataformat.avro.AvroFactory;
 import com.fasterxml.jackson.dataformat.avro.AvroMapper;
 import com.fasterxml.jackson.dataformat.avro.AvroSchema;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerializer;
 import io.confluent.kafka.serializers.KafkaAvroSerializerConfig;
 
@@ -40,6 +50,18 @@ import io.confluent.kafka.serializers.KafkaAvroSerializerConfig;
  *     jas.configure(props, false);
  *     new DefaultKafkaProducerFactory<String, MyClass>(props, new StringSerializer(), jas);
  *     
+ * Once configured, one instance may be shared by any number of threads.
+ * 
+ * The header and Avro body are written into a reused per-thread buffer, and copied once into the
+ * returned array. Hot paths that own their output can skip that copy with serialize(topic, object, ByteBuffer).
+ * 
+ * Producers emitting many records for one topic can use serializeBatch, which resolves the schema id and writer
+ * once and writes the whole batch through one buffer.
+ * 
+ * Classes listed in CONFIG_CODEC_CLASSES are written by a DirectCodec instead of Jackson, when their shape allows.
+ * 
+ * Serializers configured alike share their mapper and compiled writers, see SerdeContext. Call close() when done.
+ *     
  * @author SMS
  *
  * @param <T>The class to serialize
@@ -47,22 +69,35 @@ import io.confluent.kafka.serializers.KafkaAvroSerializerConfig;
 public class JacksonAvroSerializer<T> extends AbstractKafkaAvroSerializer implements Serializer<T> {
 	private static final Logger log = LoggerFactory.getLogger(JacksonAvroSerializer.class);
 	
-	private static String AVRO_FILE_EXTENSION = ".avsc";
-
-	private static AvroFactory avroFactory = new AvroFactory();
-	private AvroMapper mapper = new AvroMapper(avroFactory);
+	private volatile SerdeContext context = null;
+	// the context to release on close(), guarded by this
+	private SerdeContext acquired = null;
+	private SchemaRegistryClient injectedSchemaRegistry = null;
+	private volatile AvroMapper mapper = null;
 	private boolean isKey = false;
 	private JavaType type = null;
+	private boolean pooledBuffers = true;
+	private int initialBufferSize = SerializationBuffer.DEFAULT_INITIAL_SIZE;
+	private boolean binaryTimestamps = false;
+	private boolean traceHeaders = false;
 	
-	// internal caches
-	private Map<Integer,Schema> schemaIdSchemaMap = new HashMap<>();
-	private Map<String,Integer> topicSchemaIdMap = new HashMap<>();
-	private Map<Integer, ObjectWriter> schemaIdWriterMap = new HashMap<>();
-	private Map<String, Schema> configuredSchemaMap = null;
+	// internal caches, safe for use by many producer threads. Those keyed by schema id are in the context.
+	private final ConcurrentMap<String,CompletableFuture<Integer>> topicSchemaIdMap = new ConcurrentHashMap<>();
+	private volatile Set<String> codecClasses = Collections.emptySet();
+	private volatile Map<String, Schema> configuredSchemaMap = null;
+	private volatile SchemaRegistryResolver resolver = null;
+	private volatile Map<String, Long> warmupTimings = Collections.emptyMap();
+	private volatile SerdeMetrics metrics = SerdeMetrics.NOOP;
 
-	{
-		mapper.registerModule(new JavaTimeModule());
-		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+	public JacksonAvroSerializer() {
+	}
+	/**
+	 * Supply the schema registry client directly, e.g. Confluent's MockSchemaRegistryClient for
+	 * tests and benchmarks. The superclass only builds a REST client when none is set.
+	 */
+	public JacksonAvroSerializer(SchemaRegistryClient schemaRegistry) {
+		this.schemaRegistry = schemaRegistry;
+		this.injectedSchemaRegistry = schemaRegistry;
 	}
 	
 	/**
@@ -71,16 +106,74 @@ public class JacksonAvroSerializer<T> extends AbstractKafkaAvroSerializer implem
 	public void configure(Map<String, ?> config, boolean isKey) {
 		log.debug("config {} {}", config, isKey);
 		this.isKey = isKey;
-		super.configure(new KafkaAvroSerializerConfig(config));
+		SerdeContext shared = SerdeContext.acquire(SerdeContext.Role.SERIALIZER, config, injectedSchemaRegistry, type);
+		try {
+			// null lets the superclass build the REST client, which the context then keeps for the next instance
+			super.schemaRegistry = injectedSchemaRegistry != null ? injectedSchemaRegistry : shared.getSchemaRegistry();
+			super.configure(new KafkaAvroSerializerConfig(config));
+			shared.adoptSchemaRegistry(super.schemaRegistry);
+			mapper = shared.getMapper();
+		} catch (RuntimeException ex) {
+			SerdeContext.release(shared);
+			throw ex;
+		}
+		context = shared;
+		// a second configure() releases the first context
+		close();
+		synchronized (this) {
+			acquired = shared;
+		}
 		configuredSchemaMap = JacksonAvroSerdeConfig.configureSchemas(config);
-		JacksonAvroSerdeConfig.configureMixins(config, mapper);
+		binaryTimestamps = JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_TIMESTAMPS_BINARY, false);
+		resolver = new SchemaRegistryResolver(super.schemaRegistry, config, shared.registryRequests);
+		setMetrics(SerdeMetrics.configure(config));
+		codecClasses = Collections.unmodifiableSet(new HashSet<>(JacksonAvroSerdeConfig.getList(config, JacksonAvroSerdeConfig.CONFIG_CODEC_CLASSES)));
+		traceHeaders = JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_HEADERS_TRACE, false);
+		pooledBuffers = JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_BUFFER_POOLED, true);
+		initialBufferSize = JacksonAvroSerdeConfig.getInt(config, JacksonAvroSerdeConfig.CONFIG_BUFFER_INITIAL_SIZE, 
+				SerializationBuffer.DEFAULT_INITIAL_SIZE);
+		prewarm(JacksonAvroSerdeConfig.configurePrewarmTopics(config));
 	}
 	public void configure(Map<String, ?> config, boolean isKey, JavaType type) {
 		this.type = type;
 		configure(config, isKey);
 	}
+	/**
+	 * Warm up time per configured topic, in microseconds, measured at configure().
+	 */
+	public Map<String, Long> getWarmupTimings() {
+		return warmupTimings;
+	}
+	/**
+	 * Export serialize timings, sizes, registry calls and cache hits. NOOP by default.
+	 */
+	public void setMetrics(SerdeMetrics metrics) {
+		this.metrics = metrics == null ? SerdeMetrics.NOOP : metrics;
+		if (resolver != null) {
+			resolver.setMetrics(this.metrics);
+		}
+	}
+	/**
+	 * Usable before configure(), to build the JavaType passed to it.
+	 */
 	public TypeFactory getTypeFactory() {
-		return mapper.getTypeFactory();
+		AvroMapper mapper = this.mapper;
+		return mapper == null ? TypeFactory.defaultInstance() : mapper.getTypeFactory();
+	}
+
+	/**
+	 * Releases the shared context. The last serializer to close drops its mapper and caches.
+	 */
+	@Override
+	public void close() {
+		SerdeContext shared;
+		synchronized (this) {
+			shared = acquired;
+			acquired = null;
+		}
+		if (shared != null) {
+			SerdeContext.release(shared);
+		}
 	}
 
 	public byte[] serialize(String topic, T object) {
@@ -89,110 +182,435 @@ public class JacksonAvroSerializer<T> extends AbstractKafkaAvroSerializer implem
 			return null;
 		}
 
+		SerdeMetrics metrics = this.metrics;
+		boolean timed = metrics.isEnabled();
+		long start = timed ? System.nanoTime() : 0L;
 		int schemaId = getSchemaId(topic, object);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		BinaryEncoder be = EncoderFactory.get().directBinaryEncoder(bos, null);
+		SerializationBuffer buffer = pooledBuffers ? SerializationBuffer.acquire() : new SerializationBuffer(initialBufferSize);
 		try {
-			bos.write(AbstractKafkaAvroSerializer.MAGIC_BYTE);
-			bos.write(ByteBuffer.allocate(AbstractKafkaAvroSerializer.idSize).putInt(schemaId).array());
-			getWriter(schemaId).writeValue(bos, object);
-			be.flush();
-			bos.close();
+			buffer.writeHeader(schemaId);
+			writeValue(schemaId, object, buffer);
+			byte[] serialized = buffer.toByteArray();
+			if (timed) {
+				metrics.recordSerialize(topic, schemaId, System.nanoTime() - start, serialized.length);
+			}
+			return serialized;
 		} catch (SerializationException ex) {
 			log.debug(ex.getLocalizedMessage());
 			throw ex;
 		} catch (Exception ex) {
 			log.error("Error Serializing " + object.getClass() + ex);
 			throw new SerializationException("Error Serializing " + object.getClass(), ex);
+		} finally {
+			buffer.release();
 		}
-		return bos.toByteArray();
-		//TODO: how to measure communication to kafka?
 	}
 
-	private ObjectWriter getWriter(int schemaId) {
-		return schemaIdWriterMap.computeIfAbsent(schemaId, this::computeWriter);
+	/**
+	 * Serialize many objects for one topic. The schema id, writer and codec are resolved once, every record is
+	 * written into the same buffer by the same generator, and each is copied out to an exact size array. Null
+	 * objects give null.
+	 * 
+	 * Ex: List<byte[]> values = jas.serializeBatch(topic, transfers);
+	 * 
+	 * @param topic
+	 * @param objects
+	 * @return the serialized records, in the order given
+	 */
+	public List<byte[]> serializeBatch(String topic, List<? extends T> objects) {
+		List<byte[]> serialized = new ArrayList<>(objects.size());
+		int[] ends = new int[objects.size()];
+		SerializationBuffer buffer = pooledBuffers ? SerializationBuffer.acquire() : new SerializationBuffer(initialBufferSize);
+		try {
+			writeBatch(topic, objects, buffer, ends);
+			byte[] array = buffer.array();
+			int start = 0;
+			for (int ii = 0; ii < ends.length; ii++) {
+				if (ends[ii] < 0) {
+					serialized.add(null);
+				} else {
+					serialized.add(Arrays.copyOfRange(array, start, ends[ii]));
+					start = ends[ii];
+				}
+			}
+		} finally {
+			buffer.release();
+		}
+		return serialized;
 	}
-	private ObjectWriter computeWriter(int schemaId) {
-		return mapper.writer(new AvroSchema(schemaIdSchemaMap.get(schemaId)));
+
+	/**
+	 * As serializeBatch, but the whole batch is copied into one exact size array and each record is a slice of it,
+	 * one allocation for the batch instead of one per record. Null objects give null.
+	 * 
+	 * Ex: List<ByteBuffer> values = jas.serializeBatchSlices(topic, transfers);
+	 * 
+	 * @param topic
+	 * @param objects
+	 * @return a read only slice per record, in the order given
+	 */
+	public List<ByteBuffer> serializeBatchSlices(String topic, List<? extends T> objects) {
+		List<ByteBuffer> serialized = new ArrayList<>(objects.size());
+		int[] ends = new int[objects.size()];
+		SerializationBuffer buffer = pooledBuffers ? SerializationBuffer.acquire() : new SerializationBuffer(initialBufferSize);
+		try {
+			writeBatch(topic, objects, buffer, ends);
+			ByteBuffer whole = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.size())).asReadOnlyBuffer();
+			int start = 0;
+			for (int ii = 0; ii < ends.length; ii++) {
+				if (ends[ii] < 0) {
+					serialized.add(null);
+				} else {
+					whole.limit(ends[ii]).position(start);
+					serialized.add(whole.slice());
+					start = ends[ii];
+				}
+			}
+		} finally {
+			buffer.release();
+		}
+		return serialized;
 	}
 
-	private int getSchemaId(String topic, T object) {
-		return topicSchemaIdMap.computeIfAbsent(topic, k->calculateSchemaId(topic,object));
+	/**
+	 * Writes the records back to back. ends[ii] is where record ii ends in the buffer, or -1 for a null object.
+	 * Records without a codec go through one SequenceWriter, so its generator and encoder serve the whole batch;
+	 * it is flushed after each record to mark the record's end, and before the next header goes in.
+	 */
+	private void writeBatch(String topic, List<? extends T> objects, SerializationBuffer buffer, int[] ends) {
+		log.debug("serializeBatch {} {} records", topic, objects.size());
+		SerdeMetrics metrics = this.metrics;
+		boolean timed = metrics.isEnabled();
+		int schemaId = 0;
+		ObjectWriter writer = null;
+		Class<?> codecClass = null;
+		DirectCodec codec = null;
+		SequenceWriter values = null;
+		try {
+			for (int ii = 0; ii < ends.length; ii++) {
+				T object = objects.get(ii);
+				if (object == null) {
+					ends[ii] = -1;
+					continue;
+				}
+				long start = timed ? System.nanoTime() : 0L;
+				int from = buffer.size();
+				try {
+					if (writer == null) {
+						schemaId = getSchemaId(topic, object);
+						writer = getWriter(schemaId);
+					}
+					if (object.getClass() != codecClass) {
+						codecClass = object.getClass();
+						codec = getCodec(schemaId, codecClass);
+					}
+					buffer.writeHeader(schemaId);
+					if (codec != null) {
+						codec.encode(object, buffer);
+					} else {
+						if (values == null) {
+							values = writer.writeValues(buffer);
+						}
+						values.write(object);
+						values.flush();
+					}
+				} catch (SerializationException ex) {
+					log.debug(ex.getLocalizedMessage());
+					throw ex;
+				} catch (Exception ex) {
+					log.error("Error Serializing " + object.getClass() + ex);
+					throw new SerializationException("Error Serializing " + object.getClass(), ex);
+				}
+				ends[ii] = buffer.size();
+				if (timed) {
+					metrics.recordSerialize(topic, schemaId, System.nanoTime() - start, ends[ii] - from);
+				}
+			}
+		} finally {
+			closeQuietly(values);
+		}
+	}
+
+	private static void closeQuietly(SequenceWriter values) {
+		if (values != null) {
+			try {
+				values.close();
+			} catch (IOException ex) {
+				log.debug("Closing batch writer failed. {}", ex.getMessage());
+			}
+		}
 	}
 
 	/**
-	 * For a new topic encountered, register or retrieve the schema and return the
-	 * associated schema Id.
+	 * Non-blocking variant of serialize. When the topic's schema id is already known the returned future is
+	 * complete. Otherwise the schema is registered or looked up in the background, and the object is serialized
+	 * on the common ForkJoinPool once the id arrives. The calling thread never waits on the schema registry.
 	 * @param topic
-	 * @param obj
+	 * @param object
 	 * @return
 	 */
-	private int calculateSchemaId(String topic, T obj) {
-		log.debug("calculateSchemaId {} {}", topic, obj.getClass().getCanonicalName());
-		Schema schema = loadSchema(topic, obj);
+	public CompletableFuture<byte[]> serializeAsync(String topic, T object) {
+		return serializeAsync(topic, object, ForkJoinPool.commonPool());
+	}
 
-		String subject = super.getSubjectName(topic, this.isKey, null, schema );
-		int schemaId = 0;
+	/**
+	 * As serializeAsync, serializing on the given executor once the schema id arrives, so the Avro encoding never
+	 * occupies the schema registry threads.
+	 * @param topic
+	 * @param object
+	 * @param executor
+	 * @return
+	 */
+	public CompletableFuture<byte[]> serializeAsync(String topic, T object, Executor executor) {
+		if (object == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Integer> schemaId;
 		try {
-			// TODO: add monitor timer and log
-			if (super.autoRegisterSchema) {
-				schemaId = super.schemaRegistry.register(subject, schema);
-			} else {
-				schemaId = super.schemaRegistry.getId(subject, schema);
+			schemaId = schemaIdFuture(topic, object);
+		} catch (SerializationException ex) {
+			CompletableFuture<byte[]> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+		if (schemaId.isDone() && false == schemaId.isCompletedExceptionally()) {
+			try {
+				return CompletableFuture.completedFuture(serialize(topic, object));
+			} catch (SerializationException ex) {
+				CompletableFuture<byte[]> failed = new CompletableFuture<>();
+				failed.completeExceptionally(ex);
+				return failed;
+			}
+		}
+		return schemaId.whenComplete((id, ex) -> {
+			if (ex != null) {
+				topicSchemaIdMap.remove(topic, schemaId);
 			}
+		}).thenApplyAsync(id -> serialize(topic, object), executor);
+	}
+
+	/**
+	 * With CONFIG_HEADERS_TRACE set, the trace fields of a TraceableMessage or ResponseMessage are also
+	 * written as record headers. See TraceHeaders.
+	 */
+	@Override
+	public byte[] serialize(String topic, Headers headers, T object) {
+		if (traceHeaders && headers != null && object != null) {
+			TraceHeaders.write(headers, object);
+		}
+		return serialize(topic, object);
+	}
+
+	/**
+	 * Serialize straight into a caller-supplied buffer, starting at its current position. No intermediate
+	 * array is created. On success the position is advanced past the message; on failure it is restored.
+	 * @param topic
+	 * @param object
+	 * @param target
+	 * @return the number of bytes written, 0 for a null object
+	 */
+	public int serialize(String topic, T object, ByteBuffer target) {
+		log.debug("serialize {} {} into ByteBuffer", topic, object);
+		if (object == null) {
+			return 0;
+		}
+
+		SerdeMetrics metrics = this.metrics;
+		boolean timed = metrics.isEnabled();
+		long startTime = timed ? System.nanoTime() : 0L;
+		int schemaId = getSchemaId(topic, object);
+		int start = target.position();
+		try {
+			// byte by byte, the schema id is big endian whatever order the caller's buffer is set to
+			target.put(AbstractKafkaAvroSerializer.MAGIC_BYTE);
+			target.put((byte) (schemaId >>> 24)).put((byte) (schemaId >>> 16)).put((byte) (schemaId >>> 8)).put((byte) schemaId);
+			writeValue(schemaId, object, new ByteBufferOutputStream(target));
+		} catch (BufferOverflowException ex) {
+			target.position(start);
+			log.debug("ByteBuffer too small serializing {} for topic {}", object.getClass(), topic);
+			throw new SerializationException("ByteBuffer too small serializing " + object.getClass() + " for topic " + topic, ex);
+		} catch (SerializationException ex) {
+			target.position(start);
+			log.debug(ex.getLocalizedMessage());
+			throw ex;
 		} catch (Exception ex) {
-			log.warn("Error registering or retrieving Avro Schema: " + subject, ex);
-			throw new SerializationException("Error retrieving Avro schema" + subject, ex);
+			target.position(start);
+			if (ex.getCause() instanceof BufferOverflowException) {
+				log.debug("ByteBuffer too small serializing {} for topic {}", object.getClass(), topic);
+				throw new SerializationException("ByteBuffer too small serializing " + object.getClass() + " for topic " + topic, ex);
+			}
+			log.error("Error Serializing " + object.getClass() + ex);
+			throw new SerializationException("Error Serializing " + object.getClass(), ex);
 		}
-		log.debug("Schema Id {} registered for subject {}", schemaId, subject);
-		log.debug(schema.toString());
-	
-		schemaIdSchemaMap.putIfAbsent(schemaId, schema);
-		return schemaId;
+		int written = target.position() - start;
+		if (timed) {
+			metrics.recordSerialize(topic, schemaId, System.nanoTime() - startTime, written);
+		}
+		return written;
+	}
+
+	/**
+	 * Resolve, register and compile the writer for each configured topic up front, so the first
+	 * message does not pay for schema generation and the registry round trip. A failure is logged
+	 * and left for the first message to retry; it does not fail configuration.
+	 * @param topicClasses topic to class name
+	 */
+	private void prewarm(Map<String, String> topicClasses) {
+		if (topicClasses.isEmpty()) {
+			return;
+		}
+		Map<String, Long> timings = new LinkedHashMap<>();
+		long totalStart = System.nanoTime();
+		topicClasses.forEach((topic, classname) -> {
+			long start = System.nanoTime();
+			try {
+				Class<?> clazz = Class.forName(classname, true, Utils.getContextOrKafkaClassLoader());
+				CompletableFuture<Integer> future = SerdeCaches.get(topicSchemaIdMap, topic, k->calculateSchemaId(topic, clazz));
+				int schemaId;
+				try {
+					schemaId = SchemaRegistryResolver.await(future, "Error retrieving Avro schema for topic " + topic);
+				} catch (SerializationException ex) {
+					topicSchemaIdMap.remove(topic, future);
+					throw ex;
+				}
+				getWriter(schemaId);
+				getCodec(schemaId, clazz);
+				long elapsed = (System.nanoTime() - start) / 1000L;
+				timings.put(topic, elapsed);
+				log.info("Prewarmed topic {} class {} schema id {} in {}us", topic, classname, schemaId, elapsed);
+			} catch (ClassNotFoundException | SerializationException ex) {
+				log.warn("Could not prewarm topic {} class {}. {}", topic, classname, ex.getMessage());
+			}
+		});
+		log.info("Prewarmed {} of {} topics in {}us", timings.size(), topicClasses.size(), (System.nanoTime() - totalStart) / 1000L);
+		warmupTimings = Collections.unmodifiableMap(timings);
+	}
+
+	/**
+	 * Writes the Avro body with the class's direct codec when it has one, else with Jackson.
+	 */
+	private void writeValue(int schemaId, T object, OutputStream out) throws IOException {
+		DirectCodec codec = getCodec(schemaId, object.getClass());
+		if (codec != null) {
+			codec.encode(object, out);
+		} else {
+			getWriter(schemaId).writeValue(out, object);
+		}
+	}
+	private DirectCodec getCodec(int schemaId, Class<?> clazz) {
+		if (codecClasses.isEmpty() || false == codecClasses.contains(clazz.getName())) {
+			return null;
+		}
+		DirectCodec codec = context.codecs.get(schemaId, k -> DirectCodec.forWriting(mapper, 
+				type != null && type.getRawClass() == clazz ? type : mapper.constructType(clazz), getSchema(schemaId)));
+		return codec.handles(clazz) ? codec : null;
+	}
+	private ObjectWriter getWriter(int schemaId) {
+		return context.writers.get(schemaId, this::computeWriter, metrics, SerdeMetrics.CACHE_WRITER);
+	}
+	private ObjectWriter computeWriter(int schemaId) {
+		return mapper.writer(new AvroSchema(getSchema(schemaId)));
+	}
+	/**
+	 * Recorded when the id was registered. Once evicted, the registry returns it by id.
+	 */
+	private Schema getSchema(int schemaId) {
+		return context.schemas.get(schemaId, resolver::getById);
+	}
+
+	private int getSchemaId(String topic, T object) {
+		CompletableFuture<Integer> schemaId = schemaIdFuture(topic, object);
+		if (schemaId.isDone() && false == schemaId.isCompletedExceptionally()) {
+			return schemaId.join();
+		}
+		try {
+			return SchemaRegistryResolver.await(schemaId, "Error retrieving Avro schema for topic " + topic);
+		} catch (SerializationException ex) {
+			// forget the failure so the next message tries again
+			topicSchemaIdMap.remove(topic, schemaId);
+			throw ex;
+		}
+	}
+	private CompletableFuture<Integer> schemaIdFuture(String topic, T object) {
+		return SerdeCaches.get(topicSchemaIdMap, topic, k->calculateSchemaId(topic,schemaClass(object)), metrics, SerdeMetrics.CACHE_SCHEMA_ID);
+	}
+	/**
+	 * A lazily decoded message is re-published under its envelope's schema.
+	 */
+	private static Class<?> schemaClass(Object object) {
+		return object instanceof LazyTraceableMessage ? TraceableMessage.class : object.getClass();
+	}
+
+	/**
+	 * For a new topic encountered, register or retrieve the schema. The registry call is
+	 * made by the resolver, so no cache lock is held while it is outstanding.
+	 * @param topic
+	 * @param clazz
+	 * @return the future associated schema Id
+	 */
+	private CompletableFuture<Integer> calculateSchemaId(String topic, Class<?> clazz) {
+		log.debug("calculateSchemaId {} {}", topic, clazz.getCanonicalName());
+		Schema schema = loadSchema(topic, clazz);
+
+		String subject = super.getSubjectName(topic, this.isKey, null, schema );
+		CompletableFuture<Integer> schemaId = super.autoRegisterSchema 
+				? resolver.registerAsync(subject, schema) 
+				: resolver.getIdAsync(subject, schema);
+		return schemaId.handle((id, ex) -> {
+			if (ex != null) {
+				log.warn("Error registering or retrieving Avro Schema: " + subject, ex);
+				throw new SerializationException("Error retrieving Avro schema " + subject, ex);
+			}
+			log.debug("Schema Id {} registered for subject {}", id, subject);
+			log.debug(schema.toString());
+			context.schemas.putIfAbsent(id, schema);
+			return id;
+		});
 	}
 	/**
 	 * Loads a schema from one of three sources: 1) configured, 2) an avsc file that matches
 	 * the class name, and 3) Jackson will build it. The schema is saved in a mapped cache.
 	 * @param topic
-	 * @param object
+	 * @param clazz
 	 * @return
 	 */
-	private Schema loadSchema(String topic, T object) {
-		log.debug("loadSchema {} {}", topic, object.getClass().getCanonicalName());
+	private Schema loadSchema(String topic, Class<?> clazz) {
+		log.debug("loadSchema {} {}", topic, clazz.getCanonicalName());
 		// first try the list of configured schemas
-		Schema schema = configuredSchemaMap.get(object.getClass().getCanonicalName());
+		Schema schema = configuredSchemaMap.get(clazz.getCanonicalName());
 		if (schema != null ) {
-			log.debug("Using configured schema for topic {} for class {}", topic, object.getClass().getCanonicalName());
+			log.debug("Using configured schema for topic {} for class {}", topic, clazz.getCanonicalName());
 			return schema;
 		}
 		
 		// second lookup the schema file, using the class name with an .avsc extension
-		String filename = new String(object.getClass().getCanonicalName()).replace('.',File.separatorChar).concat(AVRO_FILE_EXTENSION);
+		String filename = AvroSchemaGenerator.resourceName(clazz);
 		try {
 			schema = JacksonAvroSerdeConfig.loadSchema( filename );
 		} catch (IOException ex) {
-			log.error("Error reading matching .avsc file for {} for class {}", topic, object.getClass().getCanonicalName());
+			log.error("Error reading matching .avsc file for {} for class {}", topic, clazz.getCanonicalName());
 			throw new SerializationException("Could not read matching .avsc file for " + topic + " for class " 
-					+ object.getClass().getCanonicalName(), ex);
+					+ clazz.getCanonicalName(), ex);
 		}
 		if ( schema != null ) {
-			log.debug("Using matching .avsc file for topic {} for class {}", topic, object.getClass().getCanonicalName());
+			log.debug("Using matching .avsc file for topic {} for class {}", topic, clazz.getCanonicalName());
+			Long generated = AvroSchemaGenerator.indexedFingerprint(clazz);
+			if (generated != null && generated.longValue() != AvroSchemaGenerator.fingerprint(schema)) {
+				log.warn("Schema file for class {} differs from the one generated at build time", clazz.getCanonicalName());
+			}
 			return schema;
 		}
 		
 		// finally, build the schema using Jackson. Mixins should have already been configured.
 		try {
-			if (this.type == null ) {
-				schema = this.mapper.schemaFor(object.getClass()).getAvroSchema();
-			} else {
-				schema = this.mapper.schemaFor(this.type).getAvroSchema();
-			}
+			JavaType schemaType = this.type == null ? this.mapper.constructType(clazz) : this.type;
+			schema = AvroSchemaGenerator.generate(this.mapper, schemaType, binaryTimestamps);
 		} catch (JsonMappingException ex) {
-			log.error("Could not generate schema for topic {} class {}", topic, object.getClass().getCanonicalName());
+			log.error("Could not generate schema for topic {} class {}", topic, clazz.getCanonicalName());
 			throw new SerializationException("Could not generate schema for topic " + topic + " for class " 
-					+ object.getClass().getCanonicalName(), ex);
+					+ clazz.getCanonicalName(), ex);
 		}
-		log.debug("Using Jackson generated schema for topic {} for class {}", topic, object.getClass().getCanonicalName());
+		log.debug("Using Jackson generated schema for topic {} for class {}", topic, clazz.getCanonicalName());
 		return schema;
 	}
 }
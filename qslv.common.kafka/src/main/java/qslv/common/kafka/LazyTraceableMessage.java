@@ -0,0 +1,89 @@
+package qslv.common.kafka;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.errors.SerializationException;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * A TraceableMessage whose envelope fields are decoded but whose payload is still the undecoded Avro bytes.
+ * The payload is decoded, with the deserializer's cached reader, on the first call to getPayload(). Records
+ * that are only traced, routed, filtered or dropped never allocate a payload.
+ * 
+ * Produced by JacksonAvroDeserializer when CONFIG_LAZY_ENVELOPE is set. Listeners keep using the
+ * TraceableMessage type.
+ * 
+ * @author SMS
+ *
+ * @param <T> The payload class
+ */
+public class LazyTraceableMessage<T> extends TraceableMessage<T> {
+	private byte[] data = null;
+	private int payloadOffset = 0;
+	private int payloadLength = 0;
+	private ObjectReader payloadReader = null;
+	private volatile boolean payloadDecoded = true;
+
+	public LazyTraceableMessage() {
+	}
+
+	void setRawPayload(byte[] data, int offset, int length, ObjectReader payloadReader) {
+		this.data = data;
+		this.payloadOffset = offset;
+		this.payloadLength = length;
+		this.payloadReader = payloadReader;
+		this.payloadDecoded = false;
+	}
+
+	@Override
+	public T getPayload() {
+		if (false == payloadDecoded) {
+			decodePayload();
+		}
+		return super.getPayload();
+	}
+	@Override
+	public void setPayload(T payload) {
+		super.setPayload(payload);
+		payloadDecoded = true;
+		data = null;
+		payloadReader = null;
+	}
+
+	/**
+	 * @return true once the payload has been decoded or set
+	 */
+	@JsonIgnore
+	public boolean isPayloadDecoded() {
+		return payloadDecoded;
+	}
+
+	/**
+	 * The Avro binary encoded payload, without decoding it. Null once the payload has been replaced,
+	 * or when the payload was null.
+	 */
+	@JsonIgnore
+	public ByteBuffer getRawPayload() {
+		byte[] raw = data;
+		if (raw == null) {
+			return null;
+		}
+		return ByteBuffer.wrap(raw, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+	}
+
+	private synchronized void decodePayload() {
+		if (payloadDecoded) {
+			return;
+		}
+		try {
+			T payload = payloadReader.readValue(data, payloadOffset, payloadLength);
+			super.setPayload(payload);
+			payloadDecoded = true;
+		} catch (IOException ex) {
+			throw new SerializationException("Error decoding lazy payload for correlation id " + getCorrelationId(), ex);
+		}
+	}
+}
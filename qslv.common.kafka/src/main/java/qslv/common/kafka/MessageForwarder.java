@@ -0,0 +1,321 @@
+package qslv.common.kafka;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.kafka.common.errors.SerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerializer;
+import io.confluent.kafka.serializers.KafkaAvroSerializerConfig;
+
+/**
+ * Relays Confluent-framed Avro messages between topics without decoding and re-encoding them.
+ * 
+ * forward() checks that the message's writer schema is acceptable to the target topic's subject, registering
+ * it there when auto registration is on, and rewrites only the 5 byte header when the target uses a different
+ * schema id. When the id is the same the original array is returned untouched.
+ * 
+ * spliceResponse() builds a ResponseMessage from a received TraceableMessage without decoding its payload:
+ * the response is serialized with an empty request, and the raw payload bytes are spliced into the request field.
+ * Where the payload and request fields sit is worked out once per schema id, so a relayed message costs only the
+ * skips over the fields before them.
+ * 
+ * Usage: configure with the same properties as the JacksonAvroSerializer of the target topic.
+ * 
+ * Ex: MessageForwarder forwarder = new MessageForwarder();
+ *     forwarder.configure(props, false);
+ *     producer.send(new ProducerRecord<>("audit.topic", record.key(), forwarder.forward(record.value(), "audit.topic")));
+ *     
+ * @author SMS
+ *
+ */
+public class MessageForwarder extends AbstractKafkaAvroSerializer {
+	private static final Logger log = LoggerFactory.getLogger(MessageForwarder.class);
+
+	private static final String PAYLOAD_FIELD = "payload";
+	private static final String REQUEST_FIELD = "request";
+
+	private boolean isKey = false;
+	private volatile SchemaRegistryResolver resolver = null;
+	private final ConcurrentMap<TargetKey, Integer> targetSchemaIdMap = new ConcurrentHashMap<>();
+	// payload field of a received TraceableMessage, per its schema id
+	private final SchemaIdCache<FieldPlan> payloadPlans = new SchemaIdCache<>(SchemaIdCache.DEFAULT_MAX_ENTRIES);
+	// request field of a serialized ResponseMessage, per its schema id
+	private final SchemaIdCache<FieldPlan> requestPlans = new SchemaIdCache<>(SchemaIdCache.DEFAULT_MAX_ENTRIES);
+
+	public MessageForwarder() {
+	}
+	public MessageForwarder(SchemaRegistryClient schemaRegistry) {
+		this.schemaRegistry = schemaRegistry;
+	}
+
+	public void configure(Map<String, ?> config, boolean isKey) {
+		log.debug("config {} {}", config, isKey);
+		this.isKey = isKey;
+		super.configure(new KafkaAvroSerializerConfig(config));
+		resolver = new SchemaRegistryResolver(super.schemaRegistry, config);
+	}
+
+	/**
+	 * Re-frame a message for the target topic. Returns the original array when the schema id does not change,
+	 * else a copy with the target's schema id.
+	 * @param data Confluent-framed Avro message
+	 * @param targetTopic
+	 * @return
+	 */
+	public byte[] forward(byte[] data, String targetTopic) {
+		if (data == null) {
+			return null;
+		}
+		int sourceId = readSchemaId(data);
+		int targetId = getTargetSchemaId(sourceId, targetTopic);
+		if (targetId == sourceId) {
+			return data;
+		}
+		byte[] forwarded = data.clone();
+		WireFormat.writeSchemaId(forwarded, 1, targetId);
+		return forwarded;
+	}
+
+	/**
+	 * Like forward, but rewrites the header of the given array instead of copying it.
+	 * @param data Confluent-framed Avro message, modified in place
+	 * @param targetTopic
+	 * @return data
+	 */
+	public byte[] forwardInPlace(byte[] data, String targetTopic) {
+		if (data == null) {
+			return null;
+		}
+		int sourceId = readSchemaId(data);
+		int targetId = getTargetSchemaId(sourceId, targetTopic);
+		if (targetId != sourceId) {
+			WireFormat.writeSchemaId(data, 1, targetId);
+		}
+		return data;
+	}
+
+	/**
+	 * Build a response carrying the received request's payload bytes as its request, without decoding them.
+	 * 
+	 * The response must have a null request; copy the envelope with the ResponseMessage clone constructors.
+	 * The serializer must be configured with the full ResponseMessage type, so its schema's request field
+	 * holds the payload schema.
+	 * 
+	 * Ex: ResponseMessage<Request, Reply> response = new ResponseMessage<>(message, null, reply);
+	 *     byte[] value = forwarder.spliceResponse(record.value(), "reply.topic", response, replySerializer);
+	 *     
+	 * @param tracedRequest the Confluent-framed TraceableMessage received
+	 * @param targetTopic
+	 * @param response
+	 * @param serializer serializer for the response topic
+	 * @return Confluent-framed ResponseMessage
+	 */
+	public <T, R> byte[] spliceResponse(byte[] tracedRequest, String targetTopic, ResponseMessage<T, R> response, 
+			JacksonAvroSerializer<ResponseMessage<T, R>> serializer) {
+		if (response.getRequest() != null) {
+			throw new IllegalArgumentException("The response request must be null; it is spliced from the traced request.");
+		}
+		// locate the payload in the received message
+		FieldPlan payloadPlan = payloadPlans.get(readSchemaId(tracedRequest), id -> FieldPlan.of(resolver.getById(id), PAYLOAD_FIELD));
+		AvroBinaryCursor requestCursor = new AvroBinaryCursor(tracedRequest, WireFormat.HEADER_SIZE, tracedRequest.length - WireFormat.HEADER_SIZE);
+		Schema payloadSchema = payloadPlan.seek(requestCursor);
+		if (payloadSchema.getType() == Schema.Type.UNION) {
+			payloadSchema = requestCursor.branch(payloadSchema);
+		}
+		int payloadStart = requestCursor.position();
+		requestCursor.skip(payloadSchema);
+		int payloadEnd = requestCursor.position();
+
+		// serialize the response around an empty request, then locate that request
+		byte[] framed = serializer.serialize(targetTopic, response);
+		FieldPlan requestPlan = requestPlans.get(readSchemaId(framed), id -> requestPlan(resolver.getById(id)));
+		AvroBinaryCursor responseCursor = new AvroBinaryCursor(framed, WireFormat.HEADER_SIZE, framed.length - WireFormat.HEADER_SIZE);
+		Schema requestField = requestPlan.seek(responseCursor);
+		int nullStart = responseCursor.position();
+		responseCursor.skip(requestField);
+		int nullEnd = responseCursor.position();
+		int branch = requestPlan.branchOf(payloadSchema);
+
+		byte[] index = new byte[5];
+		int indexLength = writeInt(branch, index);
+		int payloadLength = payloadEnd - payloadStart;
+		byte[] spliced = new byte[framed.length - (nullEnd - nullStart) + indexLength + payloadLength];
+		System.arraycopy(framed, 0, spliced, 0, nullStart);
+		System.arraycopy(index, 0, spliced, nullStart, indexLength);
+		System.arraycopy(tracedRequest, payloadStart, spliced, nullStart + indexLength, payloadLength);
+		System.arraycopy(framed, nullEnd, spliced, nullStart + indexLength + payloadLength, framed.length - nullEnd);
+		return spliced;
+	}
+
+	private int getTargetSchemaId(int sourceId, String targetTopic) {
+		TargetKey key = new TargetKey(sourceId, targetTopic);
+		Integer targetId = targetSchemaIdMap.get(key);
+		if (targetId != null) {
+			return targetId;
+		}
+		// registry calls are made outside the cache lock; the resolver coalesces concurrent ones
+		targetId = calculateTargetSchemaId(key);
+		Integer existing = targetSchemaIdMap.putIfAbsent(key, targetId);
+		return existing == null ? targetId : existing;
+	}
+
+	/**
+	 * The target subject must accept the writer schema. With auto registration the registry enforces its
+	 * compatibility rules on register; otherwise the compatibility is tested and the existing id looked up.
+	 */
+	private Integer calculateTargetSchemaId(TargetKey key) {
+		Schema schema = resolver.getById(key.sourceId);
+		String subject = super.getSubjectName(key.targetTopic, isKey, null, schema);
+		if (super.autoRegisterSchema) {
+			int targetId = resolver.register(subject, schema);
+			log.debug("Forwarding schema id {} as {} for subject {}", key.sourceId, targetId, subject);
+			return targetId;
+		}
+		try {
+			if (false == super.schemaRegistry.testCompatibility(subject, schema)) {
+				log.warn("Schema id {} is not compatible with subject {}", key.sourceId, subject);
+				throw new SerializationException("Schema id " + key.sourceId + " is not compatible with subject " + subject);
+			}
+		} catch (SerializationException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			log.warn("Error testing compatibility of schema id {} with subject {}", key.sourceId, subject);
+			throw new SerializationException("Error testing compatibility of schema id " + key.sourceId + " with subject " + subject, ex);
+		}
+		int targetId = resolver.getId(subject, schema);
+		log.debug("Forwarding schema id {} as {} for subject {}", key.sourceId, targetId, subject);
+		return targetId;
+	}
+
+	private static int readSchemaId(byte[] data) {
+		if (data.length < WireFormat.HEADER_SIZE || data[0] != WireFormat.MAGIC_BYTE) {
+			throw new SerializationException("Expected magic byte not found.");
+		}
+		return WireFormat.readSchemaId(data, 1);
+	}
+
+	private static FieldPlan requestPlan(Schema responseSchema) {
+		FieldPlan plan = FieldPlan.of(responseSchema, REQUEST_FIELD);
+		if (plan.field.getType() != Schema.Type.UNION) {
+			throw new SerializationException("Response schema " + responseSchema.getFullName() + " request field is not nullable");
+		}
+		return plan;
+	}
+
+	private static int branchIndex(Schema union, Schema branch) {
+		long fingerprint = SchemaNormalization.parsingFingerprint64(branch);
+		List<Schema> types = union.getTypes();
+		for (int ii = 0; ii < types.size(); ii++) {
+			if (types.get(ii).getType() == branch.getType() && SchemaNormalization.parsingFingerprint64(types.get(ii)) == fingerprint) {
+				return ii;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Avro zig-zag varint encoding of an int. Returns the number of bytes written.
+	 */
+	private static int writeInt(int value, byte[] out) {
+		int encoded = (value << 1) ^ (value >> 31);
+		int length = 0;
+		while ((encoded & ~0x7f) != 0) {
+			out[length++] = (byte) ((encoded & 0x7f) | 0x80);
+			encoded >>>= 7;
+		}
+		out[length++] = (byte) encoded;
+		return length;
+	}
+
+	/**
+	 * Where a named field sits in a record schema: the fields written before it and its own schema.
+	 */
+	private static final class FieldPlan {
+		final Schema record;
+		final Schema[] preceding;
+		final Schema field;
+		// for a union field, the branch index of each payload schema spliced into it
+		final ConcurrentMap<Schema, Integer> branches = new ConcurrentHashMap<>();
+
+		private FieldPlan(Schema record, Schema[] preceding, Schema field) {
+			this.record = record;
+			this.preceding = preceding;
+			this.field = field;
+		}
+
+		static FieldPlan of(Schema record, String name) {
+			if (record.getType() != Schema.Type.RECORD) {
+				throw new SerializationException("Schema " + record.getFullName() + " is not a record");
+			}
+			List<Schema.Field> fields = record.getFields();
+			for (int ii = 0; ii < fields.size(); ii++) {
+				if (fields.get(ii).name().equals(name)) {
+					Schema[] preceding = new Schema[ii];
+					for (int jj = 0; jj < ii; jj++) {
+						preceding[jj] = fields.get(jj).schema();
+					}
+					return new FieldPlan(record, preceding, fields.get(ii).schema());
+				}
+			}
+			throw new SerializationException("Schema " + record.getFullName() + " has no field " + name);
+		}
+
+		/**
+		 * Advance the cursor to the start of the field and return its schema.
+		 */
+		Schema seek(AvroBinaryCursor cursor) {
+			for (Schema schema : preceding) {
+				cursor.skip(schema);
+			}
+			return field;
+		}
+
+		int branchOf(Schema payloadSchema) {
+			Integer branch = branches.get(payloadSchema);
+			if (branch == null) {
+				int index = branchIndex(field, payloadSchema);
+				if (index < 0) {
+					throw new SerializationException("Request payload schema " + payloadSchema.getFullName() 
+						+ " does not match the request field of response schema " + record.getFullName());
+				}
+				branches.putIfAbsent(payloadSchema, index);
+				branch = index;
+			}
+			return branch;
+		}
+	}
+
+	private static final class TargetKey {
+		private final int sourceId;
+		private final String targetTopic;
+
+		TargetKey(int sourceId, String targetTopic) {
+			this.sourceId = sourceId;
+			this.targetTopic = targetTopic;
+		}
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof TargetKey)) {
+				return false;
+			}
+			TargetKey that = (TargetKey) other;
+			return sourceId == that.sourceId && targetTopic.equals(that.targetTopic);
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hash(sourceId, targetTopic);
+		}
+	}
+}
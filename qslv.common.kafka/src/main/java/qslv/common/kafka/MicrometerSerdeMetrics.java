@@ -0,0 +1,147 @@
+package qslv.common.kafka;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.errors.SerializationException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer export of the serde metrics.
+ * 
+ * qslv.serde.serialize, qslv.serde.deserialize: timers tagged by topic and schema.id
+ * qslv.serde.serialize.bytes, qslv.serde.deserialize.bytes: message size summaries tagged by topic and schema.id
+ * qslv.serde.registry.calls: timer tagged by operation and outcome
+ * qslv.serde.registry.errors: counter tagged by operation
+ * qslv.serde.cache.hits, qslv.serde.cache.misses: counters tagged by cache
+ * qslv.serde.cache.hit.ratio: gauge tagged by cache
+ * 
+ * Meters are resolved once per topic and schema id and held, so recording takes no registry lookups.
+ * One instance is thread-safe and may be shared. Every meter lives in the MeterRegistry, so instances built for
+ * the same registry, one per configured serde, add up into the same meters.
+ * 
+ * @author SMS
+ *
+ */
+public class MicrometerSerdeMetrics implements SerdeMetrics {
+	private final MeterRegistry registry;
+	// topic to its meters per schema id
+	private final ConcurrentMap<String, SchemaIdTable<TopicMeters>> serializeMeters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, SchemaIdTable<TopicMeters>> deserializeMeters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, RegistryMeters> registryMeters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CacheMeters> cacheMeters = new ConcurrentHashMap<>();
+
+	public MicrometerSerdeMetrics(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	static SerdeMetrics forRegistry(Object registry) {
+		if (registry instanceof MeterRegistry) {
+			return new MicrometerSerdeMetrics((MeterRegistry) registry);
+		}
+		throw new SerializationException("Configured metrics registry is not a MeterRegistry: " + registry.getClass());
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+
+	@Override
+	public void recordSerialize(String topic, int schemaId, long nanos, int bytes) {
+		record(serializeMeters, "qslv.serde.serialize", topic, schemaId, nanos, bytes);
+	}
+
+	@Override
+	public void recordDeserialize(String topic, int schemaId, long nanos, int bytes) {
+		record(deserializeMeters, "qslv.serde.deserialize", topic, schemaId, nanos, bytes);
+	}
+
+	@Override
+	public void recordRegistryCall(String operation, long nanos, boolean success) {
+		RegistryMeters meters = SerdeCaches.get(registryMeters, operation, RegistryMeters::new);
+		if (success) {
+			meters.success.record(nanos, TimeUnit.NANOSECONDS);
+		} else {
+			meters.failure.record(nanos, TimeUnit.NANOSECONDS);
+			meters.errors.increment();
+		}
+	}
+
+	@Override
+	public void recordCacheHit(String cache) {
+		SerdeCaches.get(cacheMeters, cache, CacheMeters::new).hits.increment();
+	}
+
+	@Override
+	public void recordCacheMiss(String cache) {
+		SerdeCaches.get(cacheMeters, cache, CacheMeters::new).misses.increment();
+	}
+
+	private void record(ConcurrentMap<String, SchemaIdTable<TopicMeters>> topics, String name, String topic, int schemaId, long nanos, int bytes) {
+		SchemaIdTable<TopicMeters> bySchemaId = SerdeCaches.get(topics, topic, k -> new SchemaIdTable<>());
+		TopicMeters meters = bySchemaId.get(schemaId);
+		if (meters == null) {
+			meters = bySchemaId.putIfAbsent(schemaId, new TopicMeters(name, topic, schemaId));
+		}
+		meters.timer.record(nanos, TimeUnit.NANOSECONDS);
+		meters.bytes.record(bytes);
+	}
+
+	private final class TopicMeters {
+		final Timer timer;
+		final DistributionSummary bytes;
+
+		TopicMeters(String name, String topic, int schemaId) {
+			String id = Integer.toString(schemaId);
+			this.timer = Timer.builder(name).tag("topic", topic).tag("schema.id", id)
+					.register(registry);
+			this.bytes = DistributionSummary.builder(name + ".bytes").baseUnit("bytes").tag("topic", topic).tag("schema.id", id)
+					.register(registry);
+		}
+	}
+
+	private final class RegistryMeters {
+		final Timer success;
+		final Timer failure;
+		final Counter errors;
+
+		RegistryMeters(String operation) {
+			this.success = Timer.builder("qslv.serde.registry.calls").tag("operation", operation).tag("outcome", "success")
+					.register(registry);
+			this.failure = Timer.builder("qslv.serde.registry.calls").tag("operation", operation).tag("outcome", "failure")
+					.register(registry);
+			this.errors = Counter.builder("qslv.serde.registry.errors").tag("operation", operation)
+					.register(registry);
+		}
+	}
+
+	/**
+	 * The registry hands every instance the same counters, so the ratio gauge, registered by the first instance,
+	 * covers them all and holds nothing that instance owns.
+	 */
+	private final class CacheMeters {
+		final Counter hits;
+		final Counter misses;
+
+		CacheMeters(String cache) {
+			this.hits = Counter.builder("qslv.serde.cache.hits").tag("cache", cache).register(registry);
+			this.misses = Counter.builder("qslv.serde.cache.misses").tag("cache", cache).register(registry);
+			Counter[] counters = { hits, misses };
+			Gauge.builder("qslv.serde.cache.hit.ratio", counters, MicrometerSerdeMetrics::hitRatio).tag("cache", cache).strongReference(true)
+					.register(registry);
+		}
+	}
+
+	private static double hitRatio(Counter[] counters) {
+		double hit = counters[0].count();
+		double total = hit + counters[1].count();
+		return total == 0 ? 0.0 : hit / total;
+	}
+}
@@ -0,0 +1,290 @@
+package qslv.common.kafka;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes polled records on many cores while keeping each partition's order. Consume with byte array
+ * deserializers, then pass each poll's records here: they are split into chunks, the chunks are decoded on an
+ * executor, the common ForkJoinPool by default, and the typed records come back partition by partition in offset
+ * order.
+ *
+ * Ex: ParallelDeserializer<String, Object> stage = new ParallelDeserializer<>(new StringDeserializer(), jad);
+ *     ConsumerRecords<String, Object> records = stage.deserialize(consumer.poll(Duration.ofMillis(100)));
+ *
+ * To overlap decoding with the next poll, submit() each batch and drain() what is ready. At most maxInFlight
+ * records are held between submit and drain. When the stage is full, submit() waits for the oldest chunks and
+ * returns their records to make room, so a single thread can both submit and drain without blocking itself.
+ *
+ * Ex: process(stage.submit(consumer.poll(Duration.ofMillis(100))));
+ *     process(stage.drain());
+ *
+ * A record that fails to deserialize is reported, as KafkaConsumer.poll would, by a SerializationException
+ * from the next drain() or deserialize() after the records before it have been returned. The record is then
+ * skipped, and the records after it stay queued for the following call. A tolerant JacksonAvroDeserializer
+ * never throws; it returns a null value marked with DeserializationFailure.HEADER instead.
+ *
+ * The key and value deserializers must be safe for use by many threads, as the JacksonAvro ones are.
+ *
+ * @author SMS
+ *
+ * @param <K> the key
+ * @param <V> the value
+ */
+public class ParallelDeserializer<K, V> {
+	private static final Logger log = LoggerFactory.getLogger(ParallelDeserializer.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8192;
+
+	private final Deserializer<K> keyDeserializer;
+	private final Deserializer<V> valueDeserializer;
+	private final Executor executor;
+	private final int chunkSize;
+	private final int maxInFlight;
+	private final Semaphore permits;
+	// chunks per partition in offset order, the records they hold and failures still to report, guarded by this
+	private final Map<TopicPartition, ArrayDeque<Chunk<K, V>>> partitions = new LinkedHashMap<>();
+	private int pending = 0;
+	private final ArrayDeque<SerializationException> deferred = new ArrayDeque<>();
+
+	public ParallelDeserializer(Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer) {
+		this(keyDeserializer, valueDeserializer, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IN_FLIGHT);
+	}
+	/**
+	 * @param keyDeserializer
+	 * @param valueDeserializer
+	 * @param executor runs the decoding
+	 * @param chunkSize records decoded per task, large enough to amortize the hand off
+	 * @param maxInFlight records submitted and not yet drained, at most
+	 */
+	public ParallelDeserializer(Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer, Executor executor,
+			int chunkSize, int maxInFlight) {
+		if (chunkSize <= 0 || maxInFlight <= 0) {
+			throw new IllegalArgumentException("chunkSize and maxInFlight must be positive");
+		}
+		this.keyDeserializer = keyDeserializer;
+		this.valueDeserializer = valueDeserializer;
+		this.executor = executor;
+		this.chunkSize = Math.min(chunkSize, maxInFlight);
+		this.maxInFlight = maxInFlight;
+		this.permits = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Decode the batch and wait for all of it. Records still in flight from submit() come first. Should a record
+	 * fail, the records before it are returned and the SerializationException is thrown by the next call; the
+	 * records after it are returned by the call after that, or by drain().
+	 * @return typed records, per partition in offset order
+	 */
+	public ConsumerRecords<K, V> deserialize(ConsumerRecords<byte[], byte[]> records) {
+		List<ConsumerRecord<K, V>> ready = new ArrayList<>(submit(records));
+		try {
+			while (pending() > 0) {
+				awaitHeads();
+				ready.addAll(drain());
+			}
+		} catch (SerializationException ex) {
+			if (ready.isEmpty()) {
+				throw ex;
+			}
+			// the oldest failure, it is reported first next time
+			synchronized (this) {
+				deferred.addFirst(ex);
+			}
+		}
+		Map<TopicPartition, List<ConsumerRecord<K, V>>> typed = new LinkedHashMap<>();
+		for (ConsumerRecord<K, V> record : ready) {
+			typed.computeIfAbsent(new TopicPartition(record.topic(), record.partition()), k -> new ArrayList<>()).add(record);
+		}
+		return new ConsumerRecords<>(typed);
+	}
+
+	/**
+	 * Start decoding the batch. When it would take more than maxInFlight records undrained, waits for the oldest
+	 * chunks and drains them to make room.
+	 * @return the records drained to make room, to be processed before those of the next drain(); usually empty
+	 */
+	public List<ConsumerRecord<K, V>> submit(ConsumerRecords<byte[], byte[]> records) {
+		List<ConsumerRecord<K, V>> drained = new ArrayList<>();
+		for (TopicPartition partition : records.partitions()) {
+			List<ConsumerRecord<byte[], byte[]>> raw = records.records(partition);
+			for (int from = 0; from < raw.size(); from += chunkSize) {
+				List<ConsumerRecord<byte[], byte[]>> slice = raw.subList(from, Math.min(raw.size(), from + chunkSize));
+				makeRoom(slice.size(), drained);
+				Chunk<K, V> chunk = new Chunk<>(slice);
+				synchronized (this) {
+					partitions.computeIfAbsent(partition, k -> new ArrayDeque<>()).addLast(chunk);
+					pending += slice.size();
+				}
+				try {
+					chunk.done = CompletableFuture.runAsync(() -> decode(chunk), executor);
+				} catch (RejectedExecutionException ex) {
+					log.debug("Executor rejected a chunk, decoding on the calling thread. {}", ex.getMessage());
+					decode(chunk);
+					chunk.done = CompletableFuture.completedFuture(null);
+				}
+			}
+		}
+		return drained;
+	}
+
+	/**
+	 * The records decoded so far that can be returned without breaking partition order. Never waits. Hands their
+	 * room back to submit().
+	 * @throws SerializationException for the next record that failed, once the records before it are returned
+	 */
+	public synchronized List<ConsumerRecord<K, V>> drain() {
+		if (false == deferred.isEmpty()) {
+			throw deferred.pollFirst();
+		}
+		return drainReady();
+	}
+
+	private synchronized List<ConsumerRecord<K, V>> drainReady() {
+		List<ConsumerRecord<K, V>> out = new ArrayList<>();
+		int released = 0;
+		try {
+			Iterator<ArrayDeque<Chunk<K, V>>> queues = partitions.values().iterator();
+			while (queues.hasNext()) {
+				ArrayDeque<Chunk<K, V>> queue = queues.next();
+				Chunk<K, V> chunk;
+				while ((chunk = queue.peekFirst()) != null && chunk.done != null && chunk.done.isDone()) {
+					while (chunk.position < chunk.typed.length) {
+						RuntimeException error = chunk.errors == null ? null : chunk.errors[chunk.position];
+						if (error != null) {
+							if (out.isEmpty()) {
+								chunk.position++;
+								released++;
+								removeIfFinished(queue, chunk);
+								throw error instanceof SerializationException ? (SerializationException) error
+										: new SerializationException(error.getMessage(), error);
+							}
+							return out;
+						}
+						out.add(chunk.typed[chunk.position++]);
+						released++;
+					}
+					removeIfFinished(queue, chunk);
+				}
+				if (queue.isEmpty()) {
+					queues.remove();
+				}
+			}
+			return out;
+		} finally {
+			pending -= released;
+			permits.release(released);
+		}
+	}
+
+	/**
+	 * Records submitted and not yet drained.
+	 */
+	public synchronized int pending() {
+		return pending;
+	}
+
+	/**
+	 * Takes room for the records, draining the oldest chunks into drained while the stage is full. A failure met
+	 * on the way is kept for the next drain(), so the rest of the batch is still submitted.
+	 */
+	private void makeRoom(int records, List<ConsumerRecord<K, V>> drained) {
+		try {
+			while (false == permits.tryAcquire(records)) {
+				if (pending() == 0) {
+					// another thread holds the room and drains it
+					permits.acquire(records);
+					return;
+				}
+				awaitHeads();
+				try {
+					drained.addAll(drainReady());
+				} catch (SerializationException ex) {
+					synchronized (this) {
+						deferred.addLast(ex);
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptException(ex);
+		}
+	}
+
+	private static <K, V> void removeIfFinished(ArrayDeque<Chunk<K, V>> queue, Chunk<K, V> chunk) {
+		if (chunk.position == chunk.typed.length) {
+			queue.pollFirst();
+		}
+	}
+
+	/**
+	 * Waits for the oldest chunk of every partition, so the next drain() makes progress.
+	 */
+	private void awaitHeads() {
+		List<CompletableFuture<Void>> heads = new ArrayList<>();
+		synchronized (this) {
+			for (ArrayDeque<Chunk<K, V>> queue : partitions.values()) {
+				Chunk<K, V> chunk = queue.peekFirst();
+				if (chunk != null && chunk.done != null) {
+					heads.add(chunk.done);
+				}
+			}
+		}
+		// decode() records its failures, so join() only returns
+		CompletableFuture.allOf(heads.toArray(new CompletableFuture<?>[0])).join();
+	}
+
+	private void decode(Chunk<K, V> chunk) {
+		for (int i = 0; i < chunk.raw.size(); i++) {
+			ConsumerRecord<byte[], byte[]> record = chunk.raw.get(i);
+			try {
+				K key = keyDeserializer.deserialize(record.topic(), record.headers(), record.key());
+				V value = valueDeserializer.deserialize(record.topic(), record.headers(), record.value());
+				chunk.typed[i] = new ConsumerRecord<>(record.topic(), record.partition(), record.offset(), record.timestamp(),
+						record.timestampType(), null, record.serializedKeySize(), record.serializedValueSize(), key, value,
+						record.headers(), record.leaderEpoch());
+			} catch (RuntimeException ex) {
+				log.debug("Could not deserialize {}-{} offset {}. {}", record.topic(), record.partition(), record.offset(), ex.getMessage());
+				if (chunk.errors == null) {
+					chunk.errors = new RuntimeException[chunk.raw.size()];
+				}
+				chunk.errors[i] = ex;
+			}
+		}
+	}
+
+	private static final class Chunk<K, V> {
+		final List<ConsumerRecord<byte[], byte[]>> raw;
+		final ConsumerRecord<K, V>[] typed;
+		// written by the decoding task, read after done completes
+		RuntimeException[] errors;
+		volatile CompletableFuture<Void> done;
+		// only touched by drain, under the stage's lock
+		int position = 0;
+
+		@SuppressWarnings("unchecked")
+		Chunk(List<ConsumerRecord<byte[], byte[]>> raw) {
+			this.raw = raw;
+			this.typed = new ConsumerRecord[raw.size()];
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package qslv.common.kafka;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+/**
+ * Logs at most one warning per interval and counts the rest, so a burst of bad records cannot flood the log or
+ * spend its time formatting. The next line logged reports how many were suppressed.
+ *
+ * @author SMS
+ *
+ */
+final class RateLimitedLogger {
+	static final long DEFAULT_INTERVAL_MS = 10000L;
+
+	private final Logger log;
+	private final long intervalNanos;
+	private final AtomicLong nextLog = new AtomicLong(System.nanoTime());
+	private final LongAdder suppressed = new LongAdder();
+
+	RateLimitedLogger(Logger log, long intervalMillis) {
+		this.log = log;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+	}
+
+	void warn(String format, Object arg) {
+		if (due()) {
+			long skipped = suppressed.sumThenReset();
+			if (skipped > 0L) {
+				log.warn(format + " {} similar messages suppressed.", arg, skipped);
+			} else {
+				log.warn(format, arg);
+			}
+		}
+	}
+
+	void warn(String format, Object first, Object second) {
+		if (due()) {
+			long skipped = suppressed.sumThenReset();
+			if (skipped > 0L) {
+				log.warn(format + " {} similar messages suppressed.", first, second, skipped);
+			} else {
+				log.warn(format, first, second);
+			}
+		}
+	}
+
+	/**
+	 * One caller per interval wins the right to log; the others are counted.
+	 */
+	private boolean due() {
+		long now = System.nanoTime();
+		long next = nextLog.get();
+		if (now - next < 0L || false == nextLog.compareAndSet(next, now + intervalNanos)) {
+			suppressed.increment();
+			return false;
+		}
+		return true;
+	}
+}
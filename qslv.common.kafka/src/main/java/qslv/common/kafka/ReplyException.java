@@ -0,0 +1,76 @@
+package qslv.common.kafka;
+
+import org.apache.kafka.common.KafkaException;
+
+/**
+ * A ResponseMessage with a status other than SUCCESS, as the failure of a RequestReplyClient future. Each known
+ * status has its own subclass, so callers can catch or match the cases they handle.
+ *
+ * Ex: client.send(key, request).exceptionally(ex -> ex instanceof ReplyException.InsufficientFunds ? decline() : retry());
+ *
+ * @author SMS
+ *
+ */
+public class ReplyException extends KafkaException {
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+	private final transient ResponseMessage<?, ?> response;
+
+	public ReplyException(ResponseMessage<?, ?> response) {
+		super("Request " + response.getCorrelationId() + " failed with status " + response.getStatus()
+			+ (response.getErrorMessage() == null ? "" : ". " + response.getErrorMessage()));
+		this.status = response.getStatus();
+		this.response = response;
+	}
+
+	/**
+	 * The typed failure for the response's status.
+	 */
+	public static ReplyException forResponse(ResponseMessage<?, ?> response) {
+		switch (response.getStatus()) {
+		case ResponseMessage.INSUFFICIENT_FUNDS:
+			return new InsufficientFunds(response);
+		case ResponseMessage.MALFORMED_MESSAGE:
+			return new MalformedMessage(response);
+		case ResponseMessage.CONFLICT:
+			return new Conflict(response);
+		case ResponseMessage.INTERNAL_ERROR:
+			return new InternalFailure(response);
+		default:
+			return new ReplyException(response);
+		}
+	}
+
+	public int getStatus() {
+		return status;
+	}
+	public ResponseMessage<?, ?> getResponse() {
+		return response;
+	}
+
+	public static class InsufficientFunds extends ReplyException {
+		private static final long serialVersionUID = 1L;
+		public InsufficientFunds(ResponseMessage<?, ?> response) {
+			super(response);
+		}
+	}
+	public static class MalformedMessage extends ReplyException {
+		private static final long serialVersionUID = 1L;
+		public MalformedMessage(ResponseMessage<?, ?> response) {
+			super(response);
+		}
+	}
+	public static class Conflict extends ReplyException {
+		private static final long serialVersionUID = 1L;
+		public Conflict(ResponseMessage<?, ?> response) {
+			super(response);
+		}
+	}
+	public static class InternalFailure extends ReplyException {
+		private static final long serialVersionUID = 1L;
+		public InternalFailure(ResponseMessage<?, ?> response) {
+			super(response);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package qslv.common.kafka;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qslv.util.HashedWheelTimer;
+
+/**
+ * Sends TraceableMessage requests and completes each returned future with the ResponseMessage carrying the same
+ * correlation id. A request without a correlation id is given a random one.
+ *
+ * The client does not own a consumer. The application polls its reply topic and passes the records to dispatch(),
+ * and replies complete their futures on that thread, so dependent stages should be short or use the *Async variants.
+ * Timeouts complete theirs on the completion executor, the common ForkJoinPool unless one is given, never on the
+ * timer thread, so a slow stage does not delay the timeouts of other requests.
+ *
+ * Pending requests sit in a ConcurrentHashMap keyed by correlation id, and their timeouts on a HashedWheelTimer,
+ * so no thread waits per request. A reply and a timeout race to remove the entry; the loser does nothing. At most
+ * maxInFlight requests are pending: send() waits up to the request timeout for a slot, then fails.
+ *
+ * A SUCCESS reply completes the future normally. Any other status fails it with the ReplyException for that
+ * status, a timeout with Kafka's TimeoutException, and a failed send with the producer's exception.
+ *
+ * Ex: RequestReplyClient<String, DepositRequest, DepositResponse> client = new RequestReplyClient<>(producer, "deposit.request");
+ *     client.send(accountId, request).thenAccept(reply -> ...);
+ *     // reply consumer thread
+ *     client.dispatch(consumer.poll(Duration.ofMillis(100)));
+ *
+ * @author SMS
+ *
+ * @param <K> the request key
+ * @param <T> the request payload
+ * @param <R> the response
+ */
+public class RequestReplyClient<K, T, R> implements AutoCloseable {
+	private static final Logger log = LoggerFactory.getLogger(RequestReplyClient.class);
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 10000;
+	public static final long DEFAULT_TIMEOUT_MS = 30000L;
+
+	private final Producer<K, TraceableMessage<T>> producer;
+	private final String requestTopic;
+	private final int maxInFlight;
+	private final long timeoutMs;
+	private final Semaphore permits;
+	private final HashedWheelTimer timer;
+	private final boolean ownsTimer;
+	private final Executor completions;
+	private final ConcurrentMap<String, Pending<T, R>> pending = new ConcurrentHashMap<>();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder unmatched = new LongAdder();
+	private volatile boolean closed = false;
+
+	public RequestReplyClient(Producer<K, TraceableMessage<T>> producer, String requestTopic) {
+		this(producer, requestTopic, DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT_MS);
+	}
+	public RequestReplyClient(Producer<K, TraceableMessage<T>> producer, String requestTopic, int maxInFlight, long timeoutMs) {
+		this(producer, requestTopic, maxInFlight, timeoutMs, new HashedWheelTimer("request-reply-" + requestTopic), true,
+				ForkJoinPool.commonPool());
+	}
+	/**
+	 * Share one timer between clients. The timer is not closed with the client.
+	 */
+	public RequestReplyClient(Producer<K, TraceableMessage<T>> producer, String requestTopic, int maxInFlight, long timeoutMs,
+			HashedWheelTimer timer) {
+		this(producer, requestTopic, maxInFlight, timeoutMs, timer, false, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Share one timer between clients, and complete timed out requests on the given executor.
+	 */
+	public RequestReplyClient(Producer<K, TraceableMessage<T>> producer, String requestTopic, int maxInFlight, long timeoutMs,
+			HashedWheelTimer timer, Executor completions) {
+		this(producer, requestTopic, maxInFlight, timeoutMs, timer, false, completions);
+	}
+	private RequestReplyClient(Producer<K, TraceableMessage<T>> producer, String requestTopic, int maxInFlight, long timeoutMs,
+			HashedWheelTimer timer, boolean ownsTimer, Executor completions) {
+		this.producer = producer;
+		this.requestTopic = requestTopic;
+		this.maxInFlight = maxInFlight;
+		this.timeoutMs = timeoutMs;
+		this.permits = new Semaphore(maxInFlight);
+		this.timer = timer;
+		this.ownsTimer = ownsTimer;
+		this.completions = completions;
+	}
+
+	public CompletableFuture<ResponseMessage<T, R>> send(K key, TraceableMessage<T> request) {
+		return send(key, request, timeoutMs);
+	}
+
+	/**
+	 * @param key
+	 * @param request
+	 * @param timeoutMs for the reply, including any wait for an in-flight slot
+	 * @return completed on the reply consumer thread, or failed by timeout on the completion executor
+	 */
+	public CompletableFuture<ResponseMessage<T, R>> send(K key, TraceableMessage<T> request, long timeoutMs) {
+		CompletableFuture<ResponseMessage<T, R>> future = new CompletableFuture<>();
+		if (closed) {
+			future.completeExceptionally(new KafkaException("Request reply client for " + requestTopic + " is closed"));
+			return future;
+		}
+		long start = System.nanoTime();
+		try {
+			if (false == permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+				future.completeExceptionally(new TimeoutException("No request slot free within " + timeoutMs + "ms, "
+						+ maxInFlight + " requests in flight to " + requestTopic));
+				return future;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(new InterruptException(ex));
+			return future;
+		}
+		String correlationId = request.getCorrelationId();
+		if (correlationId == null) {
+			correlationId = UUID.randomUUID().toString();
+			request.setCorrelationId(correlationId);
+		}
+		Pending<T, R> entry = new Pending<>(correlationId, future);
+		if (pending.putIfAbsent(correlationId, entry) != null) {
+			permits.release();
+			future.completeExceptionally(new KafkaException("A request with correlation id " + correlationId + " is already in flight"));
+			return future;
+		}
+		long remainingMs = Math.max(1L, timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		try {
+			entry.timeout = timer.schedule(() -> expire(entry, timeoutMs), remainingMs, TimeUnit.MILLISECONDS);
+		} catch (IllegalStateException ex) {
+			// close() stopped the timer while this request was being published
+			fail(entry, new KafkaException("Request reply client for " + requestTopic + " closed", ex));
+			return future;
+		}
+		if (closed) {
+			// published after close() failed the pending requests, so no one else would
+			fail(entry, new KafkaException("Request reply client for " + requestTopic + " closed"));
+			return future;
+		}
+		try {
+			producer.send(new ProducerRecord<>(requestTopic, key, request), (metadata, ex) -> {
+				if (ex != null) {
+					fail(entry, ex);
+				}
+			});
+		} catch (RuntimeException ex) {
+			fail(entry, ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Completes the pending request with the reply's correlation id, on the calling thread.
+	 * @return false for a reply to no pending request: late, duplicated, or another client's
+	 */
+	public boolean onReply(ResponseMessage<T, R> reply) {
+		Pending<T, R> entry = reply == null || reply.getCorrelationId() == null ? null : pending.remove(reply.getCorrelationId());
+		if (entry == null) {
+			unmatched.increment();
+			log.debug("No pending request for reply {}", reply == null ? null : reply.getCorrelationId());
+			return false;
+		}
+		release(entry);
+		if (reply.getStatus() == ResponseMessage.SUCCESS) {
+			entry.future.complete(reply);
+		} else {
+			entry.future.completeExceptionally(ReplyException.forResponse(reply));
+		}
+		return true;
+	}
+
+	/**
+	 * Completes the pending requests answered by a poll of the reply topic.
+	 * @return the number of replies matched
+	 */
+	public int dispatch(ConsumerRecords<?, ? extends ResponseMessage<T, R>> records) {
+		int matched = 0;
+		for (ConsumerRecord<?, ? extends ResponseMessage<T, R>> record : records) {
+			if (onReply(record.value())) {
+				matched++;
+			}
+		}
+		return matched;
+	}
+
+	public int getInFlight() {
+		return pending.size();
+	}
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+	public long getUnmatched() {
+		return unmatched.sum();
+	}
+
+	/**
+	 * Fails every pending request. Closes the timer unless it was supplied.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		KafkaException ex = new KafkaException("Request reply client for " + requestTopic + " closed");
+		pending.values().forEach(entry -> fail(entry, ex));
+		if (ownsTimer) {
+			timer.close();
+		}
+	}
+
+	/**
+	 * Runs on the timer thread, so the future is completed elsewhere and its stages cannot hold up other timeouts.
+	 */
+	private void expire(Pending<T, R> entry, long timeoutMs) {
+		if (pending.remove(entry.correlationId, entry)) {
+			permits.release();
+			timedOut.increment();
+			TimeoutException ex = new TimeoutException("No reply for correlation id " + entry.correlationId
+					+ " within " + timeoutMs + "ms");
+			try {
+				completions.execute(() -> entry.future.completeExceptionally(ex));
+			} catch (RejectedExecutionException rejected) {
+				entry.future.completeExceptionally(ex);
+			}
+		}
+	}
+	private void fail(Pending<T, R> entry, Throwable ex) {
+		if (pending.remove(entry.correlationId, entry)) {
+			release(entry);
+			log.debug("Request {} to {} failed. {}", entry.correlationId, requestTopic, ex.getMessage());
+			entry.future.completeExceptionally(ex);
+		}
+	}
+	private void release(Pending<T, R> entry) {
+		permits.release();
+		HashedWheelTimer.Timeout timeout = entry.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	private static final class Pending<T, R> {
+		final String correlationId;
+		final CompletableFuture<ResponseMessage<T, R>> future;
+		// set just after the entry is published; a reply before then leaves the timeout to find nothing to remove
+		volatile HashedWheelTimer.Timeout timeout;
+
+		Pending(String correlationId, CompletableFuture<ResponseMessage<T, R>> future) {
+			this.correlationId = correlationId;
+			this.future = future;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package qslv.common.kafka;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.kafka.common.errors.SerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
+
+/**
+ * Local, file-backed cache of schemas resolved from the schema registry. With it configured, a restart
+ * resolves every schema it has seen before without a network call, and a registry outage does not stop
+ * known producers and consumers from starting.
+ * 
+ * The cache is a single append-only log in the configured directory, one log per schema registry URL, since schema
+ * ids are only unique within a registry. Each record is length-prefixed and
+ * CRC checked; on open the file is memory-mapped and scanned into an in-memory index of offsets, and a torn
+ * record left by a crash is truncated away. Two kinds of records are kept: schema id to schema text, and
+ * subject plus schema fingerprint to schema id. Appends are forced to disk and guarded by a file lock, so
+ * several JVMs may share a directory. Once the file reaches the size bound, new entries are no longer written. The
+ * bound may not exceed 2GB, the reach of a single mapped buffer.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_CACHE_DIR, "/var/cache/qslv/schemas");
+ *     props.put(JacksonAvroSerdeConfig.CONFIG_CACHE_MAX_BYTES, "16777216");
+ * 
+ * @author SMS
+ *
+ */
+public class SchemaFileCache {
+	private static final Logger log = LoggerFactory.getLogger(SchemaFileCache.class);
+
+	// the log of a registry with no URL, such as an injected client; others are schemas-<url crc>.log
+	public static final String FILE_NAME = "schemas.log";
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+	private static final byte TYPE_SCHEMA = 1;
+	private static final byte TYPE_SUBJECT = 2;
+	// length prefix and crc suffix
+	private static final int RECORD_OVERHEAD = 8;
+
+	// one instance per log file within a JVM
+	private static final ConcurrentMap<String, SchemaFileCache> openCaches = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final long maxBytes;
+	private final FileChannel channel;
+	private volatile MappedByteBuffer mapped;
+	private volatile long scannedEnd = 0L;
+	private boolean full = false;
+
+	// schema id to offset of the schema text within the mapped file
+	private final ConcurrentMap<Integer, Long> schemaOffsets = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Integer, Schema> schemas = new ConcurrentHashMap<>();
+	private final ConcurrentMap<SubjectKey, Integer> subjectIds = new ConcurrentHashMap<>();
+
+	/**
+	 * The cache for the configured directory and schema registry, or null when none is configured or it cannot
+	 * be opened.
+	 */
+	public static SchemaFileCache configure(Map<String, ?> config) {
+		Object dir = config.get(JacksonAvroSerdeConfig.CONFIG_CACHE_DIR);
+		if (dir == null || dir.toString().trim().isEmpty()) {
+			return null;
+		}
+		long maxBytes = JacksonAvroSerdeConfig.getLong(config, JacksonAvroSerdeConfig.CONFIG_CACHE_MAX_BYTES, DEFAULT_MAX_BYTES);
+		if (maxBytes > Integer.MAX_VALUE) {
+			throw new SerializationException("Configured value for " + JacksonAvroSerdeConfig.CONFIG_CACHE_MAX_BYTES
+					+ " exceeds " + Integer.MAX_VALUE + " bytes.");
+		}
+		Object url = config.get(AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG);
+		try {
+			return open(new File(dir.toString().trim()), url == null ? null : url.toString(), maxBytes);
+		} catch (IOException ex) {
+			log.warn("Schema file cache unavailable in {}. {}", dir, ex.getMessage());
+			return null;
+		}
+	}
+
+	public static SchemaFileCache open(File directory, long maxBytes) throws IOException {
+		return open(directory, null, maxBytes);
+	}
+
+	/**
+	 * @param registryUrl the schema registry the ids come from, or null for none
+	 */
+	public static SchemaFileCache open(File directory, String registryUrl, long maxBytes) throws IOException {
+		if (maxBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Schema file cache bound " + maxBytes + " exceeds " + Integer.MAX_VALUE + " bytes");
+		}
+		File file = new File(directory, fileName(registryUrl));
+		String key = file.getCanonicalPath();
+		SchemaFileCache cache = openCaches.get(key);
+		if (cache != null) {
+			return cache;
+		}
+		synchronized (openCaches) {
+			cache = openCaches.get(key);
+			if (cache == null) {
+				cache = new SchemaFileCache(directory, file, maxBytes);
+				openCaches.put(key, cache);
+			}
+		}
+		return cache;
+	}
+
+	private static String fileName(String registryUrl) {
+		if (registryUrl == null || registryUrl.trim().isEmpty()) {
+			return FILE_NAME;
+		}
+		CRC32 crc = new CRC32();
+		byte[] url = registryUrl.trim().getBytes(StandardCharsets.UTF_8);
+		crc.update(url, 0, url.length);
+		return String.format("schemas-%08x.log", crc.getValue());
+	}
+
+	private SchemaFileCache(File directory, File file, long maxBytes) throws IOException {
+		if (false == directory.isDirectory() && false == directory.mkdirs()) {
+			throw new IOException("Cannot create schema cache directory " + directory);
+		}
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		synchronized (this) {
+			try (FileLock lock = channel.lock()) {
+				scan();
+			}
+		}
+		log.info("Schema file cache {} opened with {} schemas and {} subject entries", file, schemaOffsets.size(), subjectIds.size());
+	}
+
+	public Schema getById(int schemaId) {
+		Schema schema = schemas.get(schemaId);
+		if (schema != null) {
+			return schema;
+		}
+		Long offset = schemaOffsets.get(schemaId);
+		if (offset == null) {
+			refresh();
+			offset = schemaOffsets.get(schemaId);
+			if (offset == null) {
+				return null;
+			}
+		}
+		return schemas.computeIfAbsent(schemaId, k -> readSchema(offset));
+	}
+
+	public Integer getId(String subject, Schema schema) {
+		SubjectKey key = new SubjectKey(subject, SchemaNormalization.parsingFingerprint64(schema));
+		Integer schemaId = subjectIds.get(key);
+		if (schemaId == null) {
+			refresh();
+			schemaId = subjectIds.get(key);
+		}
+		return schemaId;
+	}
+
+	public void putSchema(int schemaId, Schema schema) {
+		if (schemaOffsets.containsKey(schemaId)) {
+			schemas.putIfAbsent(schemaId, schema);
+			return;
+		}
+		byte[] text = schema.toString().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(1 + 4 + text.length);
+		body.put(TYPE_SCHEMA).putInt(schemaId).put(text);
+		long offset = append(body.array());
+		// the schema before its offset, which lies past the current mapping until the next scan
+		schemas.putIfAbsent(schemaId, schema);
+		if (offset >= 0) {
+			schemaOffsets.putIfAbsent(schemaId, offset + 1 + 4);
+		}
+	}
+
+	public void putSubject(String subject, Schema schema, int schemaId) {
+		long fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+		SubjectKey key = new SubjectKey(subject, fingerprint);
+		if (subjectIds.containsKey(key)) {
+			return;
+		}
+		byte[] name = subject.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(1 + 4 + 8 + name.length);
+		body.put(TYPE_SUBJECT).putInt(schemaId).putLong(fingerprint).put(name);
+		append(body.array());
+		subjectIds.putIfAbsent(key, schemaId);
+		putSchema(schemaId, schema);
+	}
+
+	/**
+	 * Append one record. Returns the offset of the record body, or -1 when not written.
+	 */
+	private synchronized long append(byte[] body) {
+		if (full) {
+			return -1L;
+		}
+		try (FileLock lock = channel.lock()) {
+			// pick up records other processes appended, so offsets stay consistent
+			scan();
+			long position = channel.size();
+			if (position + body.length + RECORD_OVERHEAD > maxBytes) {
+				full = true;
+				log.warn("Schema file cache {} reached its size bound of {} bytes, new schemas are not cached", file, maxBytes);
+				return -1L;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			ByteBuffer record = ByteBuffer.allocate(body.length + RECORD_OVERHEAD);
+			record.putInt(body.length).put(body).putInt((int) crc.getValue());
+			record.flip();
+			long writeAt = position;
+			while (record.hasRemaining()) {
+				writeAt += channel.write(record, writeAt);
+			}
+			channel.force(false);
+			scannedEnd = writeAt;
+			return position + 4;
+		} catch (IOException ex) {
+			log.warn("Could not append to schema file cache {}. {}", file, ex.getMessage());
+			return -1L;
+		}
+	}
+
+	/**
+	 * Scan records appended since the last scan, by this or another process.
+	 */
+	private void refresh() {
+		try {
+			if (channel.size() > scannedEnd) {
+				synchronized (this) {
+					try (FileLock lock = channel.lock()) {
+						scan();
+					}
+				}
+			}
+		} catch (IOException ex) {
+			log.warn("Could not refresh schema file cache {}. {}", file, ex.getMessage());
+		}
+	}
+
+	/**
+	 * Map the file and index every valid record past scannedEnd. The first torn or corrupt
+	 * record marks the end of the log; anything after it is truncated. Caller holds the file lock.
+	 */
+	private void scan() throws IOException {
+		long size = channel.size();
+		if (size <= scannedEnd) {
+			return;
+		}
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		// published before any offset it holds, readers may look one up as soon as it is indexed
+		mapped = buffer;
+		long position = scannedEnd;
+		CRC32 crc = new CRC32();
+		while (position + RECORD_OVERHEAD <= size) {
+			int length = buffer.getInt((int) position);
+			if (length < 1 || position + length + RECORD_OVERHEAD > size) {
+				break;
+			}
+			int bodyStart = (int) position + 4;
+			byte[] body = new byte[length];
+			ByteBuffer view = buffer.duplicate();
+			view.position(bodyStart);
+			view.get(body);
+			crc.reset();
+			crc.update(body, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(bodyStart + length)) {
+				break;
+			}
+			index(body, bodyStart);
+			position += length + RECORD_OVERHEAD;
+		}
+		if (position < size) {
+			log.warn("Schema file cache {} has a torn or corrupt record at {}, truncating {} bytes", file, position, size - position);
+			channel.truncate(position);
+			channel.force(true);
+		}
+		scannedEnd = position;
+	}
+
+	private void index(byte[] body, int bodyStart) {
+		ByteBuffer record = ByteBuffer.wrap(body);
+		byte type = record.get();
+		int schemaId = record.getInt();
+		if (type == TYPE_SCHEMA) {
+			schemaOffsets.putIfAbsent(schemaId, (long) bodyStart + 1 + 4);
+		} else if (type == TYPE_SUBJECT) {
+			long fingerprint = record.getLong();
+			String subject = new String(body, record.position(), record.remaining(), StandardCharsets.UTF_8);
+			subjectIds.putIfAbsent(new SubjectKey(subject, fingerprint), schemaId);
+		}
+	}
+
+	private Schema readSchema(long offset) {
+		ByteBuffer view = mapped.duplicate();
+		int bodyStart = (int) offset - 1 - 4;
+		int length = view.getInt(bodyStart - 4);
+		byte[] text = new byte[length - 1 - 4];
+		view.position((int) offset);
+		view.get(text);
+		return new Schema.Parser().parse(new String(text, StandardCharsets.UTF_8));
+	}
+
+	private static final class SubjectKey {
+		private final String subject;
+		private final long fingerprint;
+
+		SubjectKey(String subject, long fingerprint) {
+			this.subject = subject;
+			this.fingerprint = fingerprint;
+		}
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof SubjectKey)) {
+				return false;
+			}
+			SubjectKey that = (SubjectKey) other;
+			return fingerprint == that.fingerprint && subject.equals(that.subject);
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hash(subject, fingerprint);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package qslv.common.kafka;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * A read-mostly cache keyed by schema id, bounded by an approximate LRU. Lookups never lock; each
+ * entry carries the insert clock of its last use, written only when it changed, so a hot entry costs
+ * one volatile read per hit. When an insert takes the cache past its bound, the least recently used
+ * tenth is evicted in one pass.
+ *
+ * A schema id no longer seen, e.g. an old version after all producers moved on, ages out. An evicted
+ * entry is simply rebuilt on its next use.
+ *
+ * @author SMS
+ *
+ * @param <V> the cached value
+ */
+final class SchemaIdCache<V> {
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	private final ConcurrentMap<Integer, Node<V>> cache = new ConcurrentHashMap<>();
+	private final AtomicInteger clock = new AtomicInteger();
+	private final int maxEntries;
+
+	SchemaIdCache(int maxEntries) {
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @return the cached value, or null
+	 */
+	V get(int schemaId) {
+		Node<V> node = cache.get(schemaId);
+		if (node == null) {
+			return null;
+		}
+		node.touch(clock.get());
+		return node.value;
+	}
+
+	/**
+	 * A plain get first, the loader runs only on a miss and at most once per schema id.
+	 */
+	V get(int schemaId, IntFunction<? extends V> loader) {
+		V value = get(schemaId);
+		return value != null ? value : load(schemaId, loader);
+	}
+
+	/**
+	 * As get, also counting the hit or miss.
+	 */
+	V get(int schemaId, IntFunction<? extends V> loader, SerdeMetrics metrics, String name) {
+		V value = get(schemaId);
+		if (value != null) {
+			metrics.recordCacheHit(name);
+			return value;
+		}
+		metrics.recordCacheMiss(name);
+		return load(schemaId, loader);
+	}
+
+	void putIfAbsent(int schemaId, V value) {
+		if (null == cache.putIfAbsent(schemaId, new Node<>(value, clock.incrementAndGet()))) {
+			evictIfFull();
+		}
+	}
+
+	boolean containsKey(int schemaId) {
+		return cache.containsKey(schemaId);
+	}
+
+	int size() {
+		return cache.size();
+	}
+
+	private V load(int schemaId, IntFunction<? extends V> loader) {
+		boolean[] inserted = new boolean[1];
+		Node<V> node = cache.computeIfAbsent(schemaId, k -> {
+			inserted[0] = true;
+			return new Node<>(loader.apply(k), clock.incrementAndGet());
+		});
+		if (inserted[0]) {
+			evictIfFull();
+		}
+		return node.value;
+	}
+
+	private void evictIfFull() {
+		if (cache.size() <= maxEntries) {
+			return;
+		}
+		synchronized (this) {
+			int excess = cache.size() - (maxEntries - maxEntries / 10);
+			if (excess <= 0) {
+				return;
+			}
+			List<Map.Entry<Integer, Node<V>>> entries = new ArrayList<>(cache.entrySet());
+			entries.sort((a, b) -> Integer.compare(a.getValue().stamp, b.getValue().stamp));
+			for (int i = 0; i < excess && i < entries.size(); i++) {
+				Map.Entry<Integer, Node<V>> entry = entries.get(i);
+				cache.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static final class Node<V> {
+		final V value;
+		volatile int stamp;
+
+		Node(V value, int stamp) {
+			this.value = value;
+			this.stamp = stamp;
+		}
+
+		void touch(int now) {
+			if (stamp != now) {
+				stamp = now;
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package qslv.common.kafka;
+
+/**
+ * A copy-on-write table from schema id to a precomputed value, for the per-record dispatch. Reads are one volatile
+ * load and a linear probe over int keys, with no boxing and no locks. Writes copy the table; they happen once per
+ * schema id, so a topic's handful of ids costs a handful of copies over the life of the consumer.
+ *
+ * @author SMS
+ *
+ * @param <V> the value, never null
+ */
+final class SchemaIdTable<V> {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private volatile Table table = new Table(INITIAL_CAPACITY);
+
+	@SuppressWarnings("unchecked")
+	V get(int schemaId) {
+		Table current = table;
+		int mask = current.keys.length - 1;
+		for (int i = mix(schemaId) & mask; ; i = (i + 1) & mask) {
+			Object value = current.values[i];
+			if (value == null) {
+				return null;
+			}
+			if (current.keys[i] == schemaId) {
+				return (V) value;
+			}
+		}
+	}
+
+	/**
+	 * @return the value already present, else the one given
+	 */
+	synchronized V putIfAbsent(int schemaId, V value) {
+		V existing = get(schemaId);
+		if (existing != null) {
+			return existing;
+		}
+		Table current = table;
+		// at most half full, so probes stay short and always end on an empty slot
+		int capacity = (current.size + 1) * 2 > current.keys.length ? current.keys.length * 2 : current.keys.length;
+		Table next = new Table(capacity);
+		for (int i = 0; i < current.keys.length; i++) {
+			if (current.values[i] != null) {
+				next.insert(current.keys[i], current.values[i]);
+			}
+		}
+		next.insert(schemaId, value);
+		table = next;
+		return value;
+	}
+
+	synchronized void clear() {
+		table = new Table(INITIAL_CAPACITY);
+	}
+
+	int size() {
+		return table.size;
+	}
+
+	private static int mix(int schemaId) {
+		int h = schemaId * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static final class Table {
+		final int[] keys;
+		final Object[] values;
+		int size = 0;
+
+		Table(int capacity) {
+			keys = new int[capacity];
+			values = new Object[capacity];
+		}
+
+		void insert(int schemaId, Object value) {
+			int mask = keys.length - 1;
+			int i = mix(schemaId) & mask;
+			while (values[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = schemaId;
+			values[i] = value;
+			size++;
+		}
+	}
+}
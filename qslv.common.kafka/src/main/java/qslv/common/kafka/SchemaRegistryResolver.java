@@ -0,0 +1,320 @@
+package qslv.common.kafka;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.avro.Schema;
+import org.apache.kafka.common.errors.SerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+
+/**
+ * Asynchronous front end to the Confluent schema registry client, shared by the serializer and
+ * deserializer.
+ * 
+ * Concurrent requests for the same subject/schema or schema id are coalesced into a single registry
+ * call; resolvers built by serdes of one SerdeContext share their requests in flight. Calls run on a small
+ * shared pool of daemon threads, are bounded by a timeout, and are retried with jittered exponential backoff
+ * when the failure looks transient (I/O errors, HTTP 5xx and 429). Timeouts fire from their own thread, so
+ * they still fire when every pool thread is stuck on a slow registry.
+ * Callers either wait with the blocking methods, which raise SerializationException, or chain on the
+ * returned CompletableFuture.
+ * 
+ * With a SchemaFileCache configured, schemas and ids resolved earlier, by this or a previous run, are answered
+ * locally without a registry call, and every successful registry answer is written to the cache.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_REGISTRY_TIMEOUT_MS, "5000");
+ *     props.put(JacksonAvroSerdeConfig.CONFIG_REGISTRY_RETRIES, "5");
+ * 
+ * @author SMS
+ *
+ */
+public class SchemaRegistryResolver {
+	private static final Logger log = LoggerFactory.getLogger(SchemaRegistryResolver.class);
+
+	public static final long DEFAULT_TIMEOUT_MS = 10000L;
+	public static final int DEFAULT_RETRIES = 3;
+	public static final long DEFAULT_BACKOFF_MS = 100L;
+	public static final long DEFAULT_BACKOFF_MAX_MS = 5000L;
+	private static final int POOL_SIZE = 4;
+
+	private static final ScheduledExecutorService executor = createExecutor("qslv-schema-registry-", POOL_SIZE);
+	private static final ScheduledExecutorService timeouts = createExecutor("qslv-schema-registry-timeout-", 1);
+
+	private final SchemaRegistryClient schemaRegistry;
+	private final long timeoutMs;
+	private final int retries;
+	private final long backoffMs;
+	private final long backoffMaxMs;
+	private final SchemaFileCache fileCache;
+	private volatile SerdeMetrics metrics = SerdeMetrics.NOOP;
+	private final ConcurrentMap<Object, CompletableFuture<?>> inflight;
+
+	public SchemaRegistryResolver(SchemaRegistryClient schemaRegistry, Map<String, ?> config) {
+		this(schemaRegistry,
+			JacksonAvroSerdeConfig.getLong(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_TIMEOUT_MS, DEFAULT_TIMEOUT_MS),
+			JacksonAvroSerdeConfig.getInt(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_RETRIES, DEFAULT_RETRIES),
+			JacksonAvroSerdeConfig.getLong(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_BACKOFF_MS, DEFAULT_BACKOFF_MS),
+			JacksonAvroSerdeConfig.getLong(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_BACKOFF_MAX_MS, DEFAULT_BACKOFF_MAX_MS),
+			SchemaFileCache.configure(config), new ConcurrentHashMap<>());
+	}
+	/**
+	 * @param inflight requests in flight, shared with the resolvers of the same SerdeContext
+	 */
+	SchemaRegistryResolver(SchemaRegistryClient schemaRegistry, Map<String, ?> config, ConcurrentMap<Object, CompletableFuture<?>> inflight) {
+		this(schemaRegistry,
+			JacksonAvroSerdeConfig.getLong(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_TIMEOUT_MS, DEFAULT_TIMEOUT_MS),
+			JacksonAvroSerdeConfig.getInt(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_RETRIES, DEFAULT_RETRIES),
+			JacksonAvroSerdeConfig.getLong(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_BACKOFF_MS, DEFAULT_BACKOFF_MS),
+			JacksonAvroSerdeConfig.getLong(config, JacksonAvroSerdeConfig.CONFIG_REGISTRY_BACKOFF_MAX_MS, DEFAULT_BACKOFF_MAX_MS),
+			SchemaFileCache.configure(config), inflight);
+	}
+	public SchemaRegistryResolver(SchemaRegistryClient schemaRegistry, long timeoutMs, int retries, long backoffMs, long backoffMaxMs) {
+		this(schemaRegistry, timeoutMs, retries, backoffMs, backoffMaxMs, null);
+	}
+	public SchemaRegistryResolver(SchemaRegistryClient schemaRegistry, long timeoutMs, int retries, long backoffMs, long backoffMaxMs,
+			SchemaFileCache fileCache) {
+		this(schemaRegistry, timeoutMs, retries, backoffMs, backoffMaxMs, fileCache, new ConcurrentHashMap<>());
+	}
+	private SchemaRegistryResolver(SchemaRegistryClient schemaRegistry, long timeoutMs, int retries, long backoffMs, long backoffMaxMs,
+			SchemaFileCache fileCache, ConcurrentMap<Object, CompletableFuture<?>> inflight) {
+		this.schemaRegistry = schemaRegistry;
+		this.inflight = inflight;
+		this.fileCache = fileCache;
+		this.timeoutMs = timeoutMs;
+		this.retries = Math.max(0, retries);
+		this.backoffMs = Math.max(1L, backoffMs);
+		this.backoffMaxMs = Math.max(this.backoffMs, backoffMaxMs);
+	}
+
+	public CompletableFuture<Integer> registerAsync(String subject, Schema schema) {
+		Integer cached = fileCache == null ? null : fileCache.getId(subject, schema);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return singleFlight(new RequestKey(Operation.REGISTER, subject, schema, 0), () -> cacheId(subject, schema, schemaRegistry.register(subject, schema)));
+	}
+	public CompletableFuture<Integer> getIdAsync(String subject, Schema schema) {
+		Integer cached = fileCache == null ? null : fileCache.getId(subject, schema);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return singleFlight(new RequestKey(Operation.GET_ID, subject, schema, 0), () -> cacheId(subject, schema, schemaRegistry.getId(subject, schema)));
+	}
+	public CompletableFuture<Schema> getByIdAsync(int schemaId) {
+		Schema cached = fileCache == null ? null : fileCache.getById(schemaId);
+		if (cached != null) {
+			metrics.recordCacheHit(SerdeMetrics.CACHE_SCHEMA);
+			return CompletableFuture.completedFuture(cached);
+		}
+		metrics.recordCacheMiss(SerdeMetrics.CACHE_SCHEMA);
+		return singleFlight(new RequestKey(Operation.GET_BY_ID, null, null, schemaId), () -> cacheSchema(schemaId, schemaRegistry.getById(schemaId)));
+	}
+
+	/**
+	 * The versions of a subject, for prewarming. Not file cached, a restart should see versions added since.
+	 */
+	public CompletableFuture<List<Integer>> getAllVersionsAsync(String subject) {
+		return singleFlight(new RequestKey(Operation.GET_VERSIONS, subject, null, 0), () -> schemaRegistry.getAllVersions(subject));
+	}
+	public CompletableFuture<Integer> getVersionIdAsync(String subject, int version) {
+		return singleFlight(new RequestKey(Operation.GET_VERSION_ID, subject, null, version), 
+				() -> schemaRegistry.getSchemaMetadata(subject, version).getId());
+	}
+
+	private int cacheId(String subject, Schema schema, int schemaId) {
+		if (fileCache != null) {
+			fileCache.putSubject(subject, schema, schemaId);
+		}
+		return schemaId;
+	}
+	private Schema cacheSchema(int schemaId, Schema schema) {
+		if (fileCache != null) {
+			fileCache.putSchema(schemaId, schema);
+		}
+		return schema;
+	}
+
+	public int register(String subject, Schema schema) {
+		return await(registerAsync(subject, schema), "Error registering Avro schema for subject " + subject);
+	}
+	public int getId(String subject, Schema schema) {
+		return await(getIdAsync(subject, schema), "Error retrieving Avro schema id for subject " + subject);
+	}
+	public Schema getById(int schemaId) {
+		return await(getByIdAsync(schemaId), "Error getting schema from Schema Registry. schema id: " + schemaId);
+	}
+	public List<Integer> getAllVersions(String subject) {
+		return await(getAllVersionsAsync(subject), "Error retrieving versions of subject " + subject);
+	}
+	public int getVersionId(String subject, int version) {
+		return await(getVersionIdAsync(subject, version), "Error retrieving schema id of subject " + subject + " version " + version);
+	}
+
+	/**
+	 * Wait for a resolution, translating failures to SerializationException.
+	 */
+	public static <V> V await(CompletableFuture<V> future, String message) {
+		try {
+			return future.get();
+		} catch (ExecutionException | CompletionException ex) {
+			Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+			if (cause instanceof SerializationException) {
+				throw (SerializationException) cause;
+			}
+			throw new SerializationException(message, cause);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new SerializationException(message, ex);
+		}
+	}
+
+	public SchemaRegistryClient getSchemaRegistry() {
+		return schemaRegistry;
+	}
+	public void setMetrics(SerdeMetrics metrics) {
+		this.metrics = metrics == null ? SerdeMetrics.NOOP : metrics;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <V> CompletableFuture<V> singleFlight(RequestKey key, Callable<V> call) {
+		CompletableFuture<V> existing = (CompletableFuture<V>) inflight.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		CompletableFuture<V> result = new CompletableFuture<>();
+		existing = (CompletableFuture<V>) inflight.putIfAbsent(key, result);
+		if (existing != null) {
+			return existing;
+		}
+		result.whenComplete((value, ex) -> inflight.remove(key, result));
+		if (timeoutMs > 0) {
+			ScheduledFuture<?> timeout = timeouts.schedule(() -> result.completeExceptionally(
+					new TimeoutException("Schema registry " + key + " timed out after " + timeoutMs + "ms")),
+					timeoutMs, TimeUnit.MILLISECONDS);
+			result.whenComplete((value, ex) -> timeout.cancel(false));
+		}
+		executor.execute(() -> attempt(key, call, result, 0));
+		return result;
+	}
+
+	private <V> void attempt(RequestKey key, Callable<V> call, CompletableFuture<V> result, int attempt) {
+		if (result.isDone()) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			V value = call.call();
+			long elapsed = System.nanoTime() - start;
+			metrics.recordRegistryCall(key.operation.metricName, elapsed, true);
+			log.debug("Schema registry {} resolved in {}us", key, elapsed / 1000L);
+			result.complete(value);
+		} catch (Exception ex) {
+			metrics.recordRegistryCall(key.operation.metricName, System.nanoTime() - start, false);
+			if (attempt < retries && isRetryable(ex)) {
+				long delay = backoff(attempt);
+				log.warn("Schema registry {} failed, retry {} of {} in {}ms. {}", key, attempt + 1, retries, delay, ex.getMessage());
+				executor.schedule(() -> attempt(key, call, result, attempt + 1), delay, TimeUnit.MILLISECONDS);
+			} else {
+				log.warn("Schema registry {} failed after {} attempts. {}", key, attempt + 1, ex.getMessage());
+				result.completeExceptionally(ex);
+			}
+		}
+	}
+
+	/**
+	 * Full jitter: a random delay up to the exponential backoff ceiling.
+	 */
+	private long backoff(int attempt) {
+		long ceiling = Math.min(backoffMaxMs, backoffMs << Math.min(attempt, 20));
+		return 1L + ThreadLocalRandom.current().nextLong(ceiling);
+	}
+
+	private static boolean isRetryable(Exception ex) {
+		if (ex instanceof RestClientException) {
+			int status = ((RestClientException) ex).getStatus();
+			return status >= 500 || status == 429;
+		}
+		return ex instanceof IOException;
+	}
+
+	private static ScheduledExecutorService createExecutor(String name, int size) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = runnable -> {
+			Thread thread = new Thread(runnable, name + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(size, factory);
+		pool.setRemoveOnCancelPolicy(true);
+		return pool;
+	}
+
+	private enum Operation {
+		REGISTER("register"), GET_ID("getId"), GET_BY_ID("getById"), GET_VERSIONS("getAllVersions"),
+		GET_VERSION_ID("getSchemaMetadata");
+
+		final String metricName;
+
+		Operation(String metricName) {
+			this.metricName = metricName;
+		}
+	}
+
+	private static final class RequestKey {
+		private final Operation operation;
+		private final String subject;
+		private final Schema schema;
+		private final int schemaId;
+
+		RequestKey(Operation operation, String subject, Schema schema, int schemaId) {
+			this.operation = operation;
+			this.subject = subject;
+			this.schema = schema;
+			this.schemaId = schemaId;
+		}
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof RequestKey)) {
+				return false;
+			}
+			RequestKey that = (RequestKey) other;
+			return operation == that.operation && schemaId == that.schemaId
+					&& Objects.equals(subject, that.subject) && Objects.equals(schema, that.schema);
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hash(operation, subject, schema, schemaId);
+		}
+		@Override
+		public String toString() {
+			if (operation == Operation.GET_BY_ID) {
+				return operation + " id " + schemaId;
+			}
+			return operation == Operation.GET_VERSION_ID ? operation + " subject " + subject + " version " + schemaId
+					: operation + " subject " + subject;
+		}
+	}
+}
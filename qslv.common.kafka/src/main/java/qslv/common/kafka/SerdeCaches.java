@@ -0,0 +1,41 @@
+package qslv.common.kafka;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Helpers for the read-mostly caches held by the serializers and deserializers. The caches are
+ * ConcurrentHashMaps: lookups never lock, and a missing entry is loaded exactly once.
+ * 
+ * @author SMS
+ *
+ */
+final class SerdeCaches {
+	private SerdeCaches() {
+	}
+
+	/**
+	 * A plain get first. ConcurrentHashMap.computeIfAbsent locks the bin even when the key is
+	 * present, so the hot path only pays for it on a miss.
+	 */
+	static <K, V> V get(ConcurrentMap<K, V> cache, K key, Function<? super K, ? extends V> loader) {
+		V value = cache.get(key);
+		if (value != null) {
+			return value;
+		}
+		return cache.computeIfAbsent(key, loader);
+	}
+
+	/**
+	 * As get, also counting the hit or miss.
+	 */
+	static <K, V> V get(ConcurrentMap<K, V> cache, K key, Function<? super K, ? extends V> loader, SerdeMetrics metrics, String name) {
+		V value = cache.get(key);
+		if (value != null) {
+			metrics.recordCacheHit(name);
+			return value;
+		}
+		metrics.recordCacheMiss(name);
+		return cache.computeIfAbsent(key, loader);
+	}
+}
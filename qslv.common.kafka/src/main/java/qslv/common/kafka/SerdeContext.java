@@ -0,0 +1,235 @@
+package qslv.common.kafka;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.avro.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.avro.AvroFactory;
+import com.fasterxml.jackson.dataformat.avro.AvroMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+
+/**
+ * The mapper, schema registry client and compiled readers and writers shared by every serializer, or every
+ * deserializer, in the JVM with the same effective configuration: the schema registry connection and the mapper.*
+ * settings, such as mixins and schema overrides. Ten consumers of one topic then hold one mapper and compile each
+ * schema id once instead of ten times.
+ *
+ * Contexts are reference counted. configure() acquires one and close() releases it; the last release drops it.
+ * Instances built with their own schema registry client share only with instances given the same client. Set
+ * CONFIG_CONTEXT_SHARED to false to keep everything private to the instance, as before.
+ *
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_CONTEXT_SHARED, "false");
+ *
+ * The caches keyed by schema id are bounded by CONFIG_CONTEXT_CACHE_MAX. See SchemaIdCache.
+ * Deserializer contexts also hold the Utf8StringCache of each field named by CONFIG_STRING_CACHE_FIELDS.
+ *
+ * @author SMS
+ *
+ */
+final class SerdeContext {
+	private static final Logger log = LoggerFactory.getLogger(SerdeContext.class);
+
+	enum Role { SERIALIZER, DESERIALIZER }
+
+	// guarded by the class lock; acquire and release only run at configure and close
+	private static final Map<List<Object>, SerdeContext> contexts = new HashMap<>();
+
+	private final List<Object> key;
+	private final Role role;
+	private final AvroMapper mapper;
+	// class name and field name to its string cache, deserializers only
+	private final Map<String, Map<String, Utf8StringCache>> stringCaches;
+	private volatile SchemaRegistryClient schemaRegistry;
+	private int references = 0;
+
+	// serializer caches
+	final SchemaIdCache<Schema> schemas;
+	final SchemaIdCache<ObjectWriter> writers;
+	// deserializer caches
+	final SchemaIdCache<ObjectReader> readers;
+	final SchemaIdCache<EnvelopeDecoder> envelopes;
+	final ConcurrentMap<Schema, ObjectReader> payloadReaders = new ConcurrentHashMap<>();
+	// both
+	final SchemaIdCache<DirectCodec> codecs;
+	// schema registry requests in flight, so the instances sharing this context coalesce their calls
+	final ConcurrentMap<Object, CompletableFuture<?>> registryRequests = new ConcurrentHashMap<>();
+
+	private SerdeContext(List<Object> key, Role role, Map<String, ?> config, SchemaRegistryClient schemaRegistry) {
+		this.key = key;
+		this.role = role;
+		this.schemaRegistry = schemaRegistry;
+		this.stringCaches = buildStringCaches(role, config);
+		this.mapper = buildMapper(role, config, stringCaches.isEmpty() ? null : new StringCacheModule(this::stringCache));
+		int maxEntries = JacksonAvroSerdeConfig.getInt(config, JacksonAvroSerdeConfig.CONFIG_CONTEXT_CACHE_MAX, SchemaIdCache.DEFAULT_MAX_ENTRIES);
+		schemas = new SchemaIdCache<>(maxEntries);
+		writers = new SchemaIdCache<>(maxEntries);
+		readers = new SchemaIdCache<>(maxEntries);
+		envelopes = new SchemaIdCache<>(maxEntries);
+		codecs = new SchemaIdCache<>(maxEntries);
+	}
+
+	/**
+	 * The shared context for this configuration, created on first use.
+	 * @param role
+	 * @param config
+	 * @param schemaRegistry the client given to the instance's constructor, or null
+	 * @param type the serializer's configured type, or null
+	 * @return
+	 */
+	static SerdeContext acquire(Role role, Map<String, ?> config, SchemaRegistryClient schemaRegistry, JavaType type) {
+		if (false == JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_CONTEXT_SHARED, true)) {
+			SerdeContext context = new SerdeContext(null, role, config, schemaRegistry);
+			context.references = 1;
+			return context;
+		}
+		List<Object> key = key(role, config, schemaRegistry, type);
+		synchronized (SerdeContext.class) {
+			SerdeContext context = contexts.get(key);
+			if (context == null) {
+				context = new SerdeContext(key, role, config, schemaRegistry);
+				contexts.put(key, context);
+				log.debug("Created {} context, {} shared", role, contexts.size());
+			}
+			context.references++;
+			return context;
+		}
+	}
+
+	/**
+	 * Drops the context with its last reference. Safe to call once per acquire.
+	 */
+	static void release(SerdeContext context) {
+		synchronized (SerdeContext.class) {
+			if (--context.references == 0 && context.key != null) {
+				contexts.remove(context.key, context);
+				log.debug("Released {} context, {} shared", context.role, contexts.size());
+			}
+		}
+	}
+
+	/**
+	 * The number of shared contexts alive in the JVM.
+	 */
+	static int size() {
+		synchronized (SerdeContext.class) {
+			return contexts.size();
+		}
+	}
+
+	AvroMapper getMapper() {
+		return mapper;
+	}
+
+	/**
+	 * The schema registry client of the first instance configured, so later instances reuse its connection and schema cache.
+	 */
+	SchemaRegistryClient getSchemaRegistry() {
+		return schemaRegistry;
+	}
+
+	void adoptSchemaRegistry(SchemaRegistryClient schemaRegistry) {
+		if (this.schemaRegistry == null) {
+			this.schemaRegistry = schemaRegistry;
+		}
+	}
+
+	/**
+	 * The string cache for a field of the class or of a superclass, so TraceableMessage's fields also cover
+	 * LazyTraceableMessage. Null when the field is not configured.
+	 */
+	Utf8StringCache stringCache(Class<?> clazz, String field) {
+		for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+			Map<String, Utf8StringCache> fields = stringCaches.get(current.getName());
+			if (fields != null && fields.containsKey(field)) {
+				return fields.get(field);
+			}
+		}
+		return null;
+	}
+
+	private static Map<String, Map<String, Utf8StringCache>> buildStringCaches(Role role, Map<String, ?> config) {
+		Map<String, Map<String, Utf8StringCache>> caches = new HashMap<>();
+		if (role != Role.DESERIALIZER) {
+			return caches;
+		}
+		int size = JacksonAvroSerdeConfig.getInt(config, JacksonAvroSerdeConfig.CONFIG_STRING_CACHE_SIZE, Utf8StringCache.DEFAULT_SIZE);
+		JacksonAvroSerdeConfig.configureStringCacheFields(config).forEach((classname, fields) -> {
+			Map<String, Utf8StringCache> byField = new HashMap<>();
+			fields.forEach(field -> byField.put(field, new Utf8StringCache(size)));
+			caches.put(classname, byField);
+		});
+		return caches;
+	}
+
+	private static AvroMapper buildMapper(Role role, Map<String, ?> config, StringCacheModule strings) {
+		AvroMapper mapper = new AvroMapper(new AvroFactory());
+		mapper.registerModule(new JavaTimeModule());
+		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+		if (role == Role.DESERIALIZER) {
+			// accepts both ISO string and binary timestamps
+			mapper.registerModule(new AvroTimestampModule(false));
+		} else if (JacksonAvroSerdeConfig.getBoolean(config, JacksonAvroSerdeConfig.CONFIG_TIMESTAMPS_BINARY, false)) {
+			mapper.registerModule(new AvroTimestampModule(true));
+		}
+		if (strings != null) {
+			mapper.registerModule(strings);
+		}
+		JacksonAvroSerdeConfig.configureMixins(config, mapper);
+		return mapper;
+	}
+
+	/**
+	 * The role plus every property that shapes the shared state, in key order, and the injected client compared by
+	 * identity. Client ids, prewarm lists and other per-instance properties are left out, so the consumers of one
+	 * application still share.
+	 */
+	private static List<Object> key(Role role, Map<String, ?> config, SchemaRegistryClient schemaRegistry, JavaType type) {
+		StringBuilder key = new StringBuilder(role.name());
+		if (type != null) {
+			key.append(" type=").append(type.toCanonical());
+		}
+		Map<String, Object> sorted = new TreeMap<>();
+		config.forEach((name, value) -> {
+			if (isShared(name)) {
+				sorted.put(name, value);
+			}
+		});
+		sorted.forEach((name, value) -> key.append(' ').append(name).append('=').append(render(value)));
+		return Arrays.asList(key.toString(), schemaRegistry);
+	}
+	private static boolean isShared(String name) {
+		if (name.startsWith("mapper.prewarm.") || name.equals(JacksonAvroSerdeConfig.CONFIG_METRICS_REGISTRY)
+				|| name.equals(JacksonAvroSerdeConfig.CONFIG_TOLERANT) || name.equals(JacksonAvroSerdeConfig.CONFIG_DEAD_LETTER_HANDLER)) {
+			return false;
+		}
+		return name.startsWith("mapper.") || name.startsWith("schema.registry.") || name.startsWith("basic.auth.")
+				|| name.startsWith("bearer.auth.");
+	}
+	private static String render(Object value) {
+		if (value == null || value instanceof CharSequence || value instanceof Number || value instanceof Boolean) {
+			return String.valueOf(value);
+		}
+		if (value instanceof Class) {
+			return ((Class<?>) value).getName();
+		}
+		if (value instanceof Iterable) {
+			return String.valueOf(value);
+		}
+		return value.getClass().getName() + '@' + Integer.toHexString(System.identityHashCode(value));
+	}
+}
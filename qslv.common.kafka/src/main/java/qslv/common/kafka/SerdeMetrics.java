@@ -0,0 +1,60 @@
+package qslv.common.kafka;
+
+import java.util.Map;
+
+/**
+ * Instrumentation points of the serializer, deserializer and schema registry resolver. The default is NOOP,
+ * whose empty methods the JIT inlines away, so metrics cost nothing unless configured.
+ * 
+ * To export through Micrometer, supply a MeterRegistry either in the configuration or directly.
+ * 
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_METRICS_REGISTRY, meterRegistry);
+ * Ex: serializer.setMetrics(new MicrometerSerdeMetrics(meterRegistry));
+ * 
+ * @author SMS
+ *
+ */
+public interface SerdeMetrics {
+	String CACHE_SCHEMA_ID = "schema.id";
+	String CACHE_WRITER = "writer";
+	String CACHE_READER = "reader";
+	String CACHE_SCHEMA = "schema";
+
+	SerdeMetrics NOOP = new SerdeMetrics() {
+	};
+
+	/**
+	 * When false, callers skip taking timestamps.
+	 */
+	default boolean isEnabled() {
+		return false;
+	}
+	default void recordSerialize(String topic, int schemaId, long nanos, int bytes) {
+	}
+	default void recordDeserialize(String topic, int schemaId, long nanos, int bytes) {
+	}
+	/**
+	 * @param operation register, getId or getById
+	 */
+	default void recordRegistryCall(String operation, long nanos, boolean success) {
+	}
+	default void recordCacheHit(String cache) {
+	}
+	default void recordCacheMiss(String cache) {
+	}
+
+	/**
+	 * Metrics for the MeterRegistry given in the configuration, else NOOP. Micrometer is only
+	 * loaded when a registry is configured.
+	 */
+	static SerdeMetrics configure(Map<String, ?> config) {
+		Object registry = config.get(JacksonAvroSerdeConfig.CONFIG_METRICS_REGISTRY);
+		if (registry == null) {
+			return NOOP;
+		}
+		if (registry instanceof SerdeMetrics) {
+			return (SerdeMetrics) registry;
+		}
+		return MicrometerSerdeMetrics.forRegistry(registry);
+	}
+}
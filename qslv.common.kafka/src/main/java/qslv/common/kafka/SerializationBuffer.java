@@ -0,0 +1,142 @@
+package qslv.common.kafka;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable output buffer used by the serializer in place of a ByteArrayOutputStream. The
+ * Confluent header (magic byte and schema id) is written directly into the array, and the
+ * result is copied out exactly once.
+ * 
+ * Buffers are pooled one per thread. A pooled buffer adapts to the payloads it sees: it grows
+ * as needed and, when a burst of large messages has passed, shrinks back toward the recent
+ * high water mark so an occasional huge record does not pin memory forever.
+ * 
+ * Not thread-safe. A pooled buffer must be released by the thread that acquired it.
+ * 
+ * @author SMS
+ *
+ */
+class SerializationBuffer extends OutputStream {
+	static final int DEFAULT_INITIAL_SIZE = 1024;
+	// buffers that grew beyond this are not kept by the pool
+	static final int MAX_POOLED_SIZE = 1024 * 1024;
+	// number of releases between shrink checks
+	private static final int SHRINK_INTERVAL = 256;
+
+	private static final ThreadLocal<SerializationBuffer> pool = new ThreadLocal<SerializationBuffer>() {
+		@Override
+		protected SerializationBuffer initialValue() {
+			return new SerializationBuffer(DEFAULT_INITIAL_SIZE, true);
+		}
+	};
+
+	private final int initialSize;
+	private final boolean pooled;
+	private byte[] buf;
+	private int count = 0;
+	private boolean inUse = false;
+	private int highWater = 0;
+	private int releases = 0;
+
+	SerializationBuffer(int initialSize) {
+		this(initialSize, false);
+	}
+	private SerializationBuffer(int initialSize, boolean pooled) {
+		this.initialSize = Math.max(initialSize, 16);
+		this.pooled = pooled;
+		this.buf = new byte[this.initialSize];
+	}
+
+	/**
+	 * Hand out this thread's buffer. Should the buffer already be in use, say a serializer
+	 * called from within another serialize, a private buffer is returned instead.
+	 */
+	static SerializationBuffer acquire() {
+		SerializationBuffer buffer = pool.get();
+		if (buffer.inUse) {
+			return new SerializationBuffer(DEFAULT_INITIAL_SIZE);
+		}
+		buffer.inUse = true;
+		buffer.count = 0;
+		return buffer;
+	}
+
+	/**
+	 * Return the buffer to the pool. For a pooled buffer, adapts its capacity to recent use.
+	 */
+	void release() {
+		if (false == pooled) {
+			return;
+		}
+		inUse = false;
+		highWater = Math.max(highWater, count);
+		count = 0;
+		if (buf.length > MAX_POOLED_SIZE) {
+			buf = new byte[Math.max(initialSize, Math.min(highWater, MAX_POOLED_SIZE))];
+			highWater = 0;
+			releases = 0;
+		} else if (++releases >= SHRINK_INTERVAL) {
+			if (buf.length > initialSize && buf.length > highWater * 2) {
+				buf = new byte[Math.max(initialSize, highWater)];
+			}
+			highWater = 0;
+			releases = 0;
+		}
+	}
+
+	/**
+	 * Write the Confluent wire format header: the magic byte and the 4 byte big endian schema id.
+	 */
+	void writeHeader(int schemaId) {
+		ensureCapacity(count + WireFormat.HEADER_SIZE);
+		buf[count++] = WireFormat.MAGIC_BYTE;
+		WireFormat.writeSchemaId(buf, count, schemaId);
+		count += WireFormat.ID_SIZE;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Jackson closes the target stream after each value. Closing must not end the buffer's life.
+	 */
+	@Override
+	public void close() {
+	}
+
+	int size() {
+		return count;
+	}
+
+	byte[] array() {
+		return buf;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+
+	private void ensureCapacity(int required) {
+		if (required > buf.length) {
+			if (required < 0) {
+				throw new OutOfMemoryError("Serialization buffer exceeds maximum array size");
+			}
+			int newLength = Math.max(buf.length << 1, required);
+			if (newLength < 0) {
+				newLength = Integer.MAX_VALUE - 8;
+			}
+			buf = Arrays.copyOf(buf, newLength);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package qslv.common.kafka;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerBuilder;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerModifier;
+import com.fasterxml.jackson.databind.deser.SettableBeanProperty;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StringDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Canonicalizes the String properties named by CONFIG_STRING_CACHE_FIELDS when Jackson, rather than a cursor,
+ * decodes the record. Jackson has already built the String by then, so this saves the heap the duplicates would
+ * hold, not the allocation. See Utf8StringCache.
+ *
+ * @author SMS
+ *
+ */
+final class StringCacheModule extends SimpleModule {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param caches the cache for a class and property name, or null when it has none
+	 */
+	StringCacheModule(BiFunction<Class<?>, String, Utf8StringCache> caches) {
+		super("StringCacheModule");
+		setDeserializerModifier(new BeanDeserializerModifier() {
+			@Override
+			public BeanDeserializerBuilder updateBuilder(DeserializationConfig config, BeanDescription description,
+					BeanDeserializerBuilder builder) {
+				List<SettableBeanProperty> cached = new ArrayList<>();
+				Iterator<SettableBeanProperty> properties = builder.getProperties();
+				while (properties.hasNext()) {
+					SettableBeanProperty property = properties.next();
+					if (property.getType().hasRawClass(String.class) && false == property.hasValueDeserializer()) {
+						Utf8StringCache cache = caches.apply(description.getBeanClass(), property.getName());
+						if (cache != null) {
+							cached.add(property.withValueDeserializer(new CachedStringDeserializer(cache)));
+						}
+					}
+				}
+				cached.forEach(property -> builder.addOrReplaceProperty(property, true));
+				return builder;
+			}
+		});
+	}
+
+	private static final class CachedStringDeserializer extends StdScalarDeserializer<String> {
+		private static final long serialVersionUID = 1L;
+		private final transient Utf8StringCache cache;
+
+		CachedStringDeserializer(Utf8StringCache cache) {
+			super(String.class);
+			this.cache = cache;
+		}
+		@Override
+		public String deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+			String value = StringDeserializer.instance.deserialize(parser, context);
+			return value == null ? null : cache.canonical(value);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package qslv.common.kafka;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+/**
+ * The trace fields of a TraceableMessage or ResponseMessage, carried as Kafka record headers. Routing, filtering
+ * and tracing can then read them without decoding the Avro body.
+ * 
+ * Strings are UTF-8. Times are 8 byte big-endian local-timestamp-micros, the encoding of AvroTimestampModule.
+ * The status of a ResponseMessage is a 4 byte big-endian int. Absent fields have no header.
+ * 
+ * The serializer writes the headers when CONFIG_HEADERS_TRACE is set. See JacksonAvroSerdeConfig.
+ * 
+ * Ex: TraceHeaders trace = TraceHeaders.read(record.headers());
+ * Ex: String correlationId = TraceHeaders.correlationId(record.headers());
+ * 
+ * @author SMS
+ *
+ */
+public class TraceHeaders {
+	public static final String PRODUCER_AIT = "qslv.producer.ait";
+	public static final String BUSINESS_TAXONOMY_ID = "qslv.business.taxonomy.id";
+	public static final String CORRELATION_ID = "qslv.correlation.id";
+	public static final String MESSAGE_CREATION_TIME = "qslv.message.creation.time";
+	public static final String MESSAGE_COMPLETION_TIME = "qslv.message.completion.time";
+	public static final String STATUS = "qslv.status";
+
+	private final String producerAit;
+	private final String businessTaxonomyId;
+	private final String correlationId;
+	private final LocalDateTime messageCreationTime;
+	private final LocalDateTime messageCompletionTime;
+	private final Integer status;
+
+	private TraceHeaders(String producerAit, String businessTaxonomyId, String correlationId,
+			LocalDateTime messageCreationTime, LocalDateTime messageCompletionTime, Integer status) {
+		this.producerAit = producerAit;
+		this.businessTaxonomyId = businessTaxonomyId;
+		this.correlationId = correlationId;
+		this.messageCreationTime = messageCreationTime;
+		this.messageCompletionTime = messageCompletionTime;
+		this.status = status;
+	}
+
+	/**
+	 * Writes the trace headers of a TraceableMessage or ResponseMessage, replacing any already present.
+	 * Other values are ignored.
+	 */
+	public static void write(Headers headers, Object value) {
+		if (value instanceof TraceableMessage) {
+			TraceableMessage<?> message = (TraceableMessage<?>) value;
+			write(headers, message.getProducerAit(), message.getBusinessTaxonomyId(), message.getCorrelationId(),
+					message.getMessageCreationTime(), message.getMessageCompletionTime(), null);
+		} else if (value instanceof ResponseMessage) {
+			ResponseMessage<?, ?> message = (ResponseMessage<?, ?>) value;
+			write(headers, message.getProducerAit(), message.getBusinessTaxonomyId(), message.getCorrelationId(),
+					message.getMessageCreationTime(), message.getMessageCompletionTime(), message.getStatus());
+		}
+	}
+	private static void write(Headers headers, String producerAit, String businessTaxonomyId, String correlationId,
+			LocalDateTime creation, LocalDateTime completion, Integer status) {
+		putString(headers, PRODUCER_AIT, producerAit);
+		putString(headers, BUSINESS_TAXONOMY_ID, businessTaxonomyId);
+		putString(headers, CORRELATION_ID, correlationId);
+		putTime(headers, MESSAGE_CREATION_TIME, creation);
+		putTime(headers, MESSAGE_COMPLETION_TIME, completion);
+		headers.remove(STATUS);
+		if (null != status) {
+			int s = status;
+			headers.add(STATUS, new byte[] { (byte) (s >>> 24), (byte) (s >>> 16), (byte) (s >>> 8), (byte) s });
+		}
+	}
+
+	/**
+	 * @return the trace headers, or null when the record carries none
+	 */
+	public static TraceHeaders read(Headers headers) {
+		if (null == headers) {
+			return null;
+		}
+		Header correlation = headers.lastHeader(CORRELATION_ID);
+		Header creation = headers.lastHeader(MESSAGE_CREATION_TIME);
+		if (null == correlation && null == creation) {
+			return null;
+		}
+		Header status = headers.lastHeader(STATUS);
+		return new TraceHeaders(producerAit(headers), businessTaxonomyId(headers), toString(correlation),
+				toTime(creation), toTime(headers.lastHeader(MESSAGE_COMPLETION_TIME)),
+				null == status || null == status.value() || status.value().length != 4 ? null : readInt(status.value()));
+	}
+
+	public static String producerAit(Headers headers) {
+		return toString(headers.lastHeader(PRODUCER_AIT));
+	}
+	public static String businessTaxonomyId(Headers headers) {
+		return toString(headers.lastHeader(BUSINESS_TAXONOMY_ID));
+	}
+	public static String correlationId(Headers headers) {
+		return toString(headers.lastHeader(CORRELATION_ID));
+	}
+	public static LocalDateTime messageCreationTime(Headers headers) {
+		return toTime(headers.lastHeader(MESSAGE_CREATION_TIME));
+	}
+
+	private static void putString(Headers headers, String key, String value) {
+		headers.remove(key);
+		if (null != value) {
+			headers.add(key, value.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+	private static void putTime(Headers headers, String key, LocalDateTime value) {
+		headers.remove(key);
+		if (null != value) {
+			long micros = AvroTimestampModule.toMicros(value);
+			byte[] bytes = new byte[8];
+			for (int i = 7; i >= 0; i--) {
+				bytes[i] = (byte) micros;
+				micros >>>= 8;
+			}
+			headers.add(key, bytes);
+		}
+	}
+	private static String toString(Header header) {
+		return null == header || null == header.value() ? null : new String(header.value(), StandardCharsets.UTF_8);
+	}
+	private static LocalDateTime toTime(Header header) {
+		if (null == header || null == header.value() || header.value().length != 8) {
+			return null;
+		}
+		byte[] bytes = header.value();
+		long micros = 0L;
+		for (int i = 0; i < 8; i++) {
+			micros = (micros << 8) | (bytes[i] & 0xFF);
+		}
+		return AvroTimestampModule.localDateTimeFromMicros(micros);
+	}
+	private static int readInt(byte[] bytes) {
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+
+	public String getProducerAit() {
+		return producerAit;
+	}
+	public String getBusinessTaxonomyId() {
+		return businessTaxonomyId;
+	}
+	public String getCorrelationId() {
+		return correlationId;
+	}
+	public LocalDateTime getMessageCreationTime() {
+		return messageCreationTime;
+	}
+	public LocalDateTime getMessageCompletionTime() {
+		return messageCompletionTime;
+	}
+	/**
+	 * @return the ResponseMessage status, null for a TraceableMessage
+	 */
+	public Integer getStatus() {
+		return status;
+	}
+}
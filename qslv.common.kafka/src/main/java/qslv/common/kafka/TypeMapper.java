@@ -0,0 +1,58 @@
+package qslv.common.kafka;
+
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Chooses the class a record is decoded into, from its writer schema. JacksonAvroDeserializer asks once per schema
+ * id and keeps the answer, so one consumer can read a topic carrying several record types. Returning null falls
+ * back to the configured mappings, then to the class named by the schema.
+ *
+ * Ex: props.put(JacksonAvroSerdeConfig.CONFIG_TYPE_MAPPER, (TypeMapper) (id, schema) ->
+ *         schema.getName().startsWith("Legacy") ? LegacyEvent.class : null);
+ *
+ * @author SMS
+ *
+ */
+@FunctionalInterface
+public interface TypeMapper {
+	TypeMapper NONE = (schemaId, writerSchema) -> null;
+
+	/**
+	 * @param schemaId
+	 * @param writerSchema the schema the record was written with
+	 * @return the class to decode into, or null for the default
+	 */
+	Class<?> resolve(int schemaId, Schema writerSchema);
+
+	/**
+	 * The mapper from CONFIG_TYPE_MAPPER, an instance or a class name, followed by the CONFIG_TYPE_MAPPING entries.
+	 * NONE when neither is configured.
+	 */
+	static TypeMapper configure(Map<String, ?> config) {
+		Object configured = config.get(JacksonAvroSerdeConfig.CONFIG_TYPE_MAPPER);
+		TypeMapper custom;
+		if (configured == null) {
+			custom = NONE;
+		} else if (configured instanceof TypeMapper) {
+			custom = (TypeMapper) configured;
+		} else {
+			Class<?> clazz = JacksonAvroSerdeConfig.getClass(config, JacksonAvroSerdeConfig.CONFIG_TYPE_MAPPER);
+			if (false == TypeMapper.class.isAssignableFrom(clazz)) {
+				throw new SerializationException(clazz.getName() + " is not a TypeMapper.");
+			}
+			custom = (TypeMapper) Utils.newInstance(clazz);
+		}
+		Map<String, Class<?>> mappings = JacksonAvroSerdeConfig.configureTypeMappings(config);
+		if (mappings.isEmpty()) {
+			return custom;
+		}
+		return (schemaId, writerSchema) -> {
+			Class<?> clazz = custom.resolve(schemaId, writerSchema);
+			return clazz != null ? clazz : mappings.get(writerSchema.getFullName());
+		};
+	}
+}
@@ -0,0 +1,137 @@
+package qslv.common.kafka;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Canonical Strings for a field with few distinct values, such as producerAit or businessTaxonomyId. A lookup
+ * compares the UTF-8 bytes in the record against the cached entries, so a hit allocates nothing and every record
+ * with that value shares one String.
+ *
+ * Each value may live in one of two slots picked by its hash; a miss fills an empty one or replaces the first, so
+ * the cache never holds more than its size and a high cardinality field merely misses. Values longer than
+ * MAX_LENGTH bytes are never cached. Slots are read and written without locks; racing misses may both build the
+ * String and the last write wins, which costs a duplicate, never a wrong value.
+ *
+ * @author SMS
+ *
+ */
+final class Utf8StringCache {
+	static final int DEFAULT_SIZE = 256;
+	static final int MAX_LENGTH = 64;
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+
+	Utf8StringCache(int size) {
+		int capacity = Integer.highestOneBit(Math.max(2, Math.min(size, 1 << 16)) - 1) << 1;
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * The String for the UTF-8 bytes, from the cache when already seen.
+	 */
+	String get(byte[] buf, int offset, int length) {
+		if (length > MAX_LENGTH) {
+			return new String(buf, offset, length, StandardCharsets.UTF_8);
+		}
+		int hash = 0;
+		for (int ii = offset; ii < offset + length; ii++) {
+			hash = 31 * hash + buf[ii];
+		}
+		int index = spread(hash) & mask;
+		Entry entry = slots.get(index);
+		if (entry != null && entry.matches(hash, buf, offset, length)) {
+			return entry.value;
+		}
+		Entry second = slots.get((index + 1) & mask);
+		if (second != null && second.matches(hash, buf, offset, length)) {
+			return second.value;
+		}
+		String value = new String(buf, offset, length, StandardCharsets.UTF_8);
+		byte[] utf8 = new byte[length];
+		System.arraycopy(buf, offset, utf8, 0, length);
+		store(index, entry, second, new Entry(hash, utf8, value));
+		return value;
+	}
+
+	/**
+	 * The cached equal of a String already decoded, e.g. by Jackson. Only ASCII values are cached this way, as
+	 * their chars are their UTF-8 bytes; others are returned as given.
+	 */
+	String canonical(String value) {
+		int length = value.length();
+		if (length > MAX_LENGTH) {
+			return value;
+		}
+		int hash = 0;
+		for (int ii = 0; ii < length; ii++) {
+			char c = value.charAt(ii);
+			if (c >= 0x80) {
+				return value;
+			}
+			hash = 31 * hash + c;
+		}
+		int index = spread(hash) & mask;
+		Entry entry = slots.get(index);
+		if (entry != null && entry.matches(hash, value)) {
+			return entry.value;
+		}
+		Entry second = slots.get((index + 1) & mask);
+		if (second != null && second.matches(hash, value)) {
+			return second.value;
+		}
+		store(index, entry, second, new Entry(hash, value.getBytes(StandardCharsets.US_ASCII), value));
+		return value;
+	}
+
+	private void store(int index, Entry first, Entry second, Entry entry) {
+		if (first != null && second == null) {
+			slots.lazySet((index + 1) & mask, entry);
+		} else {
+			slots.lazySet(index, entry);
+		}
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static final class Entry {
+		final int hash;
+		final byte[] utf8;
+		final String value;
+
+		Entry(int hash, byte[] utf8, String value) {
+			this.hash = hash;
+			this.utf8 = utf8;
+			this.value = value;
+		}
+
+		boolean matches(int hash, byte[] buf, int offset, int length) {
+			if (this.hash != hash || utf8.length != length) {
+				return false;
+			}
+			for (int ii = 0; ii < length; ii++) {
+				if (utf8[ii] != buf[offset + ii]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean matches(int hash, String value) {
+			if (this.hash != hash || utf8.length != value.length()) {
+				return false;
+			}
+			for (int ii = 0; ii < utf8.length; ii++) {
+				if (utf8[ii] != value.charAt(ii)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
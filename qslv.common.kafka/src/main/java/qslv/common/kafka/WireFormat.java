@@ -0,0 +1,30 @@
+package qslv.common.kafka;
+
+/**
+ * The Confluent framing of an Avro message: a magic byte, a 4 byte big endian schema id,
+ * then the Avro binary body. Mirrors the constants of AbstractKafkaAvroSerDe, which are not
+ * visible outside its subclasses.
+ * 
+ * @author SMS
+ *
+ */
+final class WireFormat {
+	static final byte MAGIC_BYTE = 0x0;
+	static final int ID_SIZE = 4;
+	static final int HEADER_SIZE = 1 + ID_SIZE;
+
+	private WireFormat() {
+	}
+
+	static int readSchemaId(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	static void writeSchemaId(byte[] data, int offset, int schemaId) {
+		data[offset] = (byte) (schemaId >>> 24);
+		data[offset + 1] = (byte) (schemaId >>> 16);
+		data[offset + 2] = (byte) (schemaId >>> 8);
+		data[offset + 3] = (byte) schemaId;
+	}
+}
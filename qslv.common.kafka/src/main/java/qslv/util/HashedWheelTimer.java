@@ -0,0 +1,194 @@
+package qslv.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules large numbers of short timeouts on one thread. Timeouts hash into a ring of buckets by their deadline
+ * tick; each tick the worker runs the expired timeouts of one bucket. Scheduling and cancelling are O(1) and take no
+ * lock: new timeouts go through a lock-free queue, and a cancelled timeout is only marked, then dropped when its
+ * bucket comes round. The price is precision, a timeout fires up to one tick late.
+ *
+ * Tasks run on the timer thread and must be short. The thread starts with the first schedule().
+ *
+ * Ex: HashedWheelTimer timer = new HashedWheelTimer("reply-timeouts", 10L, 512);
+ *     HashedWheelTimer.Timeout timeout = timer.schedule(() -> future.completeExceptionally(ex), 5, TimeUnit.SECONDS);
+ *     timeout.cancel();
+ *
+ * @author SMS
+ *
+ */
+public class HashedWheelTimer implements AutoCloseable {
+	private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+	public static final long DEFAULT_TICK_MS = 10L;
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	private final String name;
+	private final long tickNanos;
+	private final List<List<Timeout>> wheel;
+	private final int mask;
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private volatile boolean stopped = false;
+	private final long startTime = System.nanoTime();
+	private volatile Thread worker;
+	// only read and written by the worker
+	private long tick = 0L;
+
+	public HashedWheelTimer(String name) {
+		this(name, DEFAULT_TICK_MS, DEFAULT_TICKS_PER_WHEEL);
+	}
+	/**
+	 * @param name the timer thread's name
+	 * @param tickMillis precision of the timer
+	 * @param ticksPerWheel buckets, rounded up to a power of two. A wheel turn should cover the usual timeout.
+	 */
+	public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+		if (tickMillis <= 0 || ticksPerWheel <= 0) {
+			throw new IllegalArgumentException("tickMillis and ticksPerWheel must be positive");
+		}
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int buckets = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+		this.wheel = new ArrayList<>(buckets);
+		for (int i = 0; i < buckets; i++) {
+			wheel.add(new ArrayList<>());
+		}
+		this.mask = buckets - 1;
+	}
+
+	/**
+	 * Run the task once the delay has passed.
+	 * @return the handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (stopped) {
+			throw new IllegalStateException("Timer " + name + " is closed");
+		}
+		start();
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(0L, unit.toNanos(delay)));
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the worker. Timeouts not yet run never run.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		Thread thread = worker;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void start() {
+		if (started.compareAndSet(false, true)) {
+			Thread thread = new Thread(this::run, name);
+			thread.setDaemon(true);
+			worker = thread;
+			thread.start();
+		}
+	}
+
+	private void run() {
+		while (false == stopped) {
+			long deadline = tickNanos * (tick + 1);
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException ex) {
+					continue;
+				}
+			}
+			transferAdded();
+			expire(wheel.get((int) (tick & mask)), deadline);
+			tick++;
+		}
+		log.debug("Timer {} stopped", name);
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			// a deadline already passed goes in the current bucket
+			long ticks = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.rounds = (ticks - tick) / wheel.size();
+			wheel.get((int) (ticks & mask)).add(timeout);
+		}
+	}
+
+	private void expire(List<Timeout> bucket, long deadline) {
+		Iterator<Timeout> timeouts = bucket.iterator();
+		while (timeouts.hasNext()) {
+			Timeout timeout = timeouts.next();
+			if (timeout.isCancelled()) {
+				timeouts.remove();
+			} else if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+				timeouts.remove();
+				timeout.expire();
+			} else {
+				timeout.rounds--;
+			}
+		}
+	}
+
+	/**
+	 * A scheduled task. Runs at most once, and never after cancel() returned true.
+	 */
+	public static final class Timeout {
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		// nanoseconds after the timer started
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		// only read and written by the worker
+		private long rounds;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return true when the task will not run
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(WAITING, CANCELLED);
+		}
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (state.compareAndSet(WAITING, EXPIRED)) {
+				try {
+					task.run();
+				} catch (Throwable ex) {
+					log.warn("Timeout task failed. {}", ex.getMessage(), ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package qslv.util;
+
+/**
+ * Identifies one latency histogram: the observing service and AIT, the business taxonomy of the message
+ * and the hop measured.
+ * 
+ * @author SMS
+ *
+ */
+public final class LatencyKey {
+	private final String service;
+	private final String ait;
+	private final String businessTaxonomyId;
+	private final LatencyTracker.Hop hop;
+	private final int hash;
+
+	public LatencyKey(String service, String ait, String businessTaxonomyId, LatencyTracker.Hop hop) {
+		this.service = null == service ? "null" : service;
+		this.ait = null == ait ? "null" : ait;
+		this.businessTaxonomyId = null == businessTaxonomyId ? "null" : businessTaxonomyId;
+		this.hop = hop;
+		int h = this.service.hashCode();
+		h = 31 * h + this.ait.hashCode();
+		h = 31 * h + this.businessTaxonomyId.hashCode();
+		this.hash = 31 * h + hop.hashCode();
+	}
+
+	public String getService() {
+		return service;
+	}
+	public String getAit() {
+		return ait;
+	}
+	public String getBusinessTaxonomyId() {
+		return businessTaxonomyId;
+	}
+	public LatencyTracker.Hop getHop() {
+		return hop;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof LatencyKey)) {
+			return false;
+		}
+		LatencyKey other = (LatencyKey) obj;
+		return hash == other.hash && hop == other.hop && service.equals(other.service)
+				&& ait.equals(other.ait) && businessTaxonomyId.equals(other.businessTaxonomyId);
+	}
+	@Override
+	public String toString() {
+		return "SERVICE=" + service + ", AIT=" + ait + ", BUSINESS-TAXONOMY=" + businessTaxonomyId + ", HOP=" + hop;
+	}
+}
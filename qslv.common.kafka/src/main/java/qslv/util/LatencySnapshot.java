@@ -0,0 +1,71 @@
+package qslv.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latency histograms, in microseconds, recorded by a LatencyTracker between two calls to snapshot().
+ * Snapshots from several intervals or several trackers combine with merge(), which only adds bucket counts.
+ * 
+ * Ex: total.merge(tracker.snapshot()).getValueAtPercentile(key, 99.9);
+ * 
+ * @author SMS
+ *
+ */
+public class LatencySnapshot {
+	private final Map<LatencyKey, Histogram> histograms;
+
+	public LatencySnapshot() {
+		this(new HashMap<>());
+	}
+	LatencySnapshot(Map<LatencyKey, Histogram> histograms) {
+		this.histograms = histograms;
+	}
+
+	public Set<LatencyKey> getKeys() {
+		return Collections.unmodifiableSet(histograms.keySet());
+	}
+	/**
+	 * @return the histogram of the key, or null when nothing was recorded for it
+	 */
+	public Histogram getHistogram(LatencyKey key) {
+		return histograms.get(key);
+	}
+	public Map<LatencyKey, Histogram> getHistograms() {
+		return Collections.unmodifiableMap(histograms);
+	}
+	/**
+	 * @return latency in microseconds at the percentile, 0 when nothing was recorded for the key
+	 */
+	public long getValueAtPercentile(LatencyKey key, double percentile) {
+		Histogram histogram = histograms.get(key);
+		return null == histogram ? 0L : histogram.getValueAtPercentile(percentile);
+	}
+	public long getTotalCount(LatencyKey key) {
+		Histogram histogram = histograms.get(key);
+		return null == histogram ? 0L : histogram.getTotalCount();
+	}
+
+	/**
+	 * Adds the counts of another snapshot into this one. The other snapshot is not modified.
+	 * @return this snapshot
+	 */
+	public LatencySnapshot merge(LatencySnapshot other) {
+		other.histograms.forEach((key, histogram) -> {
+			Histogram mine = histograms.get(key);
+			if (null == mine) {
+				mine = histogram.copy();
+				// trackers may be configured with different ranges
+				mine.setAutoResize(true);
+				histograms.put(key, mine);
+			} else {
+				mine.add(histogram);
+			}
+		});
+		return this;
+	}
+}
@@ -0,0 +1,192 @@
+package qslv.util;
+
+import java.lang.ref.WeakReference;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import qslv.common.kafka.ResponseMessage;
+import qslv.common.kafka.TraceHeaders;
+import qslv.common.kafka.TraceableMessage;
+
+/**
+ * Records pipeline latency from the timestamps carried by TraceableMessage and ResponseMessage into HDR histograms,
+ * in microseconds, keyed by service, AIT, business taxonomy and hop.
+ * 
+ * TRANSIT is producer to consumer: the time a TraceableMessage is received less its creation time.
+ * RESPONSE is request to response: the time a ResponseMessage is received less the creation time of its request.
+ * PROCESSING is the completion time of a ResponseMessage less the creation time of its request.
+ * 
+ * Each thread writes its own SingleWriterRecorder, so recording takes no lock and shares no cache line with other
+ * threads. snapshot() collects the counts recorded since the previous snapshot from every thread, and drops the
+ * recorders of threads that have ended once their last counts are in, so thread churn does not grow the tracker.
+ * Snapshots merge
+ * by adding bucket counts, see LatencySnapshot. Times across hosts are only as good as their clock synchronization;
+ * negative latencies are recorded as zero.
+ * 
+ * Ex: tracker.record("deposit-service", "12345", message, LocalDateTime.now());
+ * Ex: tracker.snapshot().getValueAtPercentile(key, 99.9);
+ * 
+ * Either register the tracker as a bean for LogKafkaTracingDataAspect or add LatencyTrackingConsumerInterceptor
+ * to the consumer.
+ * 
+ * @author SMS
+ *
+ */
+public class LatencyTracker {
+	public enum Hop {
+		TRANSIT, RESPONSE, PROCESSING
+	}
+
+	public static final long DEFAULT_HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1L);
+	public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+	private static final LatencyTracker defaultTracker = new LatencyTracker();
+
+	private final long highestTrackableMicros;
+	private final int significantDigits;
+	private final ConcurrentMap<LatencyKey, List<Slot>> slots = new ConcurrentHashMap<>();
+	private final ThreadLocal<Map<LatencyKey, SingleWriterRecorder>> recorders = ThreadLocal.withInitial(HashMap::new);
+
+	/**
+	 * Shared tracker for components created by reflection, such as Kafka interceptors.
+	 */
+	public static LatencyTracker getDefault() {
+		return defaultTracker;
+	}
+
+	public LatencyTracker() {
+		this(DEFAULT_HIGHEST_TRACKABLE_MICROS, DEFAULT_SIGNIFICANT_DIGITS);
+	}
+	/**
+	 * @param highestTrackableMicros larger latencies are recorded as this value
+	 * @param significantDigits precision of the histograms, 0 to 5. Memory per thread and key grows tenfold per digit.
+	 */
+	public LatencyTracker(long highestTrackableMicros, int significantDigits) {
+		this.highestTrackableMicros = highestTrackableMicros;
+		this.significantDigits = significantDigits;
+	}
+
+	public void record(String service, String ait, TraceableMessage<?> message, LocalDateTime received) {
+		LocalDateTime created = message.getMessageCreationTime();
+		if (null != created) {
+			record(new LatencyKey(service, ait, message.getBusinessTaxonomyId(), Hop.TRANSIT), ChronoUnit.MICROS.between(created, received));
+		}
+	}
+	public void record(String service, String ait, ResponseMessage<?, ?> message, LocalDateTime received) {
+		LocalDateTime created = message.getMessageCreationTime();
+		if (null == created) {
+			return;
+		}
+		record(new LatencyKey(service, ait, message.getBusinessTaxonomyId(), Hop.RESPONSE), ChronoUnit.MICROS.between(created, received));
+		LocalDateTime completed = message.getMessageCompletionTime();
+		if (null != completed) {
+			record(new LatencyKey(service, ait, message.getBusinessTaxonomyId(), Hop.PROCESSING), ChronoUnit.MICROS.between(created, completed));
+		}
+	}
+	/**
+	 * Records from headers alone. Headers with a status came from a ResponseMessage.
+	 */
+	public void record(String service, String ait, TraceHeaders headers, LocalDateTime received) {
+		LocalDateTime created = headers.getMessageCreationTime();
+		if (null == created) {
+			return;
+		}
+		Hop hop = null == headers.getStatus() ? Hop.TRANSIT : Hop.RESPONSE;
+		record(new LatencyKey(service, ait, headers.getBusinessTaxonomyId(), hop), ChronoUnit.MICROS.between(created, received));
+		LocalDateTime completed = headers.getMessageCompletionTime();
+		if (Hop.RESPONSE == hop && null != completed) {
+			record(new LatencyKey(service, ait, headers.getBusinessTaxonomyId(), Hop.PROCESSING), ChronoUnit.MICROS.between(created, completed));
+		}
+	}
+	/**
+	 * Records a TraceableMessage, ResponseMessage or TraceHeaders. Other values are ignored.
+	 */
+	public void record(String service, String ait, Object value, LocalDateTime received) {
+		if (value instanceof TraceableMessage) {
+			record(service, ait, (TraceableMessage<?>) value, received);
+		} else if (value instanceof ResponseMessage) {
+			record(service, ait, (ResponseMessage<?, ?>) value, received);
+		} else if (value instanceof TraceHeaders) {
+			record(service, ait, (TraceHeaders) value, received);
+		}
+	}
+	public void record(LatencyKey key, long micros) {
+		Map<LatencyKey, SingleWriterRecorder> local = recorders.get();
+		SingleWriterRecorder recorder = local.get(key);
+		if (null == recorder) {
+			recorder = newRecorder(key);
+			local.put(key, recorder);
+		}
+		recorder.recordValue(micros < 0L ? 0L : Math.min(micros, highestTrackableMicros));
+	}
+
+	/**
+	 * Collects the latencies recorded by all threads since the previous snapshot.
+	 */
+	public synchronized LatencySnapshot snapshot() {
+		Map<LatencyKey, Histogram> histograms = new HashMap<>();
+		slots.forEach((key, list) -> {
+			Histogram total = newHistogram();
+			List<Slot> ended = null;
+			for (Slot slot : list) {
+				// checked before collecting: an owner already ended has recorded its last value
+				boolean alive = slot.isOwnerAlive();
+				slot.interval = slot.recorder.getIntervalHistogram(slot.interval);
+				total.add(slot.interval);
+				if (false == alive) {
+					if (null == ended) {
+						ended = new ArrayList<>();
+					}
+					ended.add(slot);
+				}
+			}
+			if (null != ended) {
+				list.removeAll(ended);
+			}
+			if (total.getTotalCount() > 0L) {
+				histograms.put(key, total);
+			}
+		});
+		return new LatencySnapshot(histograms);
+	}
+
+	private SingleWriterRecorder newRecorder(LatencyKey key) {
+		Slot slot = new Slot(new SingleWriterRecorder(highestTrackableMicros, significantDigits), Thread.currentThread());
+		slots.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(slot);
+		return slot.recorder;
+	}
+	private Histogram newHistogram() {
+		Histogram histogram = new Histogram(highestTrackableMicros, significantDigits);
+		histogram.setAutoResize(true);
+		return histogram;
+	}
+
+	private static class Slot {
+		final SingleWriterRecorder recorder;
+		// the only thread writing the recorder, weakly held so an ended thread is not kept
+		final WeakReference<Thread> owner;
+		// recycled by getIntervalHistogram, only touched under the snapshot lock
+		Histogram interval;
+
+		Slot(SingleWriterRecorder recorder, Thread owner) {
+			this.recorder = recorder;
+			this.owner = new WeakReference<>(owner);
+		}
+
+		boolean isOwnerAlive() {
+			Thread thread = owner.get();
+			return null != thread && thread.isAlive();
+		}
+	}
+}
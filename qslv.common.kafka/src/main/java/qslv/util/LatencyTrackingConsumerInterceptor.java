@@ -0,0 +1,84 @@
+package qslv.util;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qslv.common.kafka.ResponseMessage;
+import qslv.common.kafka.TraceHeaders;
+import qslv.common.kafka.TraceableMessage;
+
+/**
+ * Records the latency of every TraceableMessage and ResponseMessage consumed, without touching the listener.
+ * Records of other types are measured from their TraceHeaders, when present. All records of a poll share one
+ * receive time. The tracker defaults to LatencyTracker.getDefault(); the service name defaults to the consumer
+ * group id.
+ * 
+ * Ex: props.put(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, LatencyTrackingConsumerInterceptor.class.getName());
+ *     props.put(LatencyTrackingConsumerInterceptor.CONFIG_SERVICE, "deposit-service");
+ *     props.put(LatencyTrackingConsumerInterceptor.CONFIG_AIT, "12345");
+ *     props.put(LatencyTrackingConsumerInterceptor.CONFIG_TRACKER, latencyTracker);
+ * 
+ * @author SMS
+ *
+ */
+public class LatencyTrackingConsumerInterceptor<K, V> implements ConsumerInterceptor<K, V> {
+	private static final Logger log = LoggerFactory.getLogger(LatencyTrackingConsumerInterceptor.class);
+
+	public static final String CONFIG_TRACKER = "qslv.latency.tracker";
+	public static final String CONFIG_SERVICE = "qslv.latency.service";
+	public static final String CONFIG_AIT = "qslv.latency.ait";
+
+	private LatencyTracker tracker = LatencyTracker.getDefault();
+	private String service;
+	private String ait;
+
+	@Override
+	public void configure(Map<String, ?> configs) {
+		Object configured = configs.get(CONFIG_TRACKER);
+		if (configured instanceof LatencyTracker) {
+			tracker = (LatencyTracker) configured;
+		} else if (null != configured) {
+			log.warn("Ignoring {}, not a LatencyTracker: {}", CONFIG_TRACKER, configured.getClass());
+		}
+		service = configs.containsKey(CONFIG_SERVICE) ? String.valueOf(configs.get(CONFIG_SERVICE))
+				: (String) configs.get(ConsumerConfig.GROUP_ID_CONFIG);
+		ait = configs.containsKey(CONFIG_AIT) ? String.valueOf(configs.get(CONFIG_AIT)) : null;
+	}
+
+	@Override
+	public ConsumerRecords<K, V> onConsume(ConsumerRecords<K, V> records) {
+		if (records.isEmpty()) {
+			return records;
+		}
+		LocalDateTime received = LocalDateTime.now();
+		for (ConsumerRecord<K, V> record : records) {
+			Object value = record.value();
+			if (value instanceof TraceableMessage || value instanceof ResponseMessage) {
+				tracker.record(service, ait, value, received);
+			} else {
+				TraceHeaders headers = TraceHeaders.read(record.headers());
+				if (null != headers) {
+					tracker.record(service, ait, headers, received);
+				}
+			}
+		}
+		return records;
+	}
+
+	@Override
+	public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -1,16 +1,27 @@
 package qslv.util;
 
-import java.util.HashMap;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
+import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.expression.BeanFactoryResolver;
 import org.springframework.expression.ExpressionParser;
 import org.springframework.expression.common.TemplateParserContext;
@@ -18,44 +29,198 @@ import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.stereotype.Component;
 
+import qslv.common.kafka.ResponseMessage;
+import qslv.common.kafka.TraceHeaders;
 import qslv.common.kafka.TraceableMessage;
 
+/**
+ * Logs a TRACE line for the TraceableMessage handed to a method annotated with LogKafkaTracingData.
+ * 
+ * The first call of each method on each target class builds a TracePlan: the logger, the resolved service and AIT
+ * literals, and which argument holds the record. Later calls only read the plan. An inherited method called on
+ * different subclasses or proxies gets a plan per class, so each logs under its own class. A single ConsumerRecord logs one line. A batch listener,
+ * taking a List, Collection or ConsumerRecords of records, logs one aggregated line per batch.
+ * 
+ * A ResponseMessage is traced like a TraceableMessage, with its status added. Records whose value is neither, for
+ * example raw bytes or a lazily decoded type, are traced from their TraceHeaders when the producer wrote them, with
+ * the status when the headers came from a ResponseMessage.
+ * 
+ * When a TracingPolicy bean exists, only the messages it selects are logged; the batch line counts the rest as DROPPED.
+ * 
+ * @author SMS
+ *
+ */
 @Aspect
 @Component
 public class LogKafkaTracingDataAspect implements BeanFactoryAware {
-	Logger log = null;
+	private static final Logger aspectLog = LoggerFactory.getLogger(LogKafkaTracingDataAspect.class);
+
 	StandardEvaluationContext context;
 	private ExpressionParser parser = new SpelExpressionParser();
 	private TemplateParserContext tcontext = new TemplateParserContext();
-	HashMap<String, String> resolvedLiterals = new HashMap<>();
+	// method to target class to plan
+	private final ConcurrentMap<Method, ConcurrentMap<Class<?>, TracePlan>> plans = new ConcurrentHashMap<>();
+	volatile LatencyTracker latencyTracker = null;
+	volatile TracingPolicy tracingPolicy = null;
 
 	@Before("@annotation(logKafkaTracingData)")
 	public void logTracingData(JoinPoint joinPoint, LogKafkaTracingData logKafkaTracingData) throws Throwable {
-		if ( null == log ) {
-			if (logKafkaTracingData.logScope().equals(LogKafkaTracingData.class)) {
-				log = LoggerFactory.getLogger(joinPoint.getTarget().getClass());
-			} else {
-				log = LoggerFactory.getLogger(logKafkaTracingData.logScope());
-			}
+		Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+		Object target = joinPoint.getTarget();
+		Class<?> targetClass = null == target ? method.getDeclaringClass() : target.getClass();
+		ConcurrentMap<Class<?>, TracePlan> byTarget = plans.get(method);
+		if (null == byTarget) {
+			byTarget = plans.computeIfAbsent(method, m -> new ConcurrentHashMap<>());
+		}
+		TracePlan plan = byTarget.get(targetClass);
+		if (null == plan) {
+			plan = byTarget.computeIfAbsent(targetClass, c -> buildPlan(method, c, logKafkaTracingData));
+		}
+		LatencyTracker tracker = latencyTracker;
+		if (null == tracker && !plan.log.isInfoEnabled()) {
+			return;
 		}
-		String value = resolvedLiterals.computeIfAbsent(logKafkaTracingData.value(), this::resolveLiteral);
-		String ait = resolvedLiterals.computeIfAbsent(logKafkaTracingData.ait(), this::resolveLiteral);
-
-		for (Object object : joinPoint.getArgs()) {
-			if (ConsumerRecord.class.isAssignableFrom(object.getClass()) ) {
-				ConsumerRecord<?,?> record = ConsumerRecord.class.cast(object);
-				if ( TraceableMessage.class.isAssignableFrom( record.value().getClass() ) ) {
-					TraceableMessage<?> message = TraceableMessage.class.cast(record.value());
-					
-					log.info("TRACE SERVICE={}, AIT={}, CLIENT-AIT={}, BUSINESS-TAXONOMY={}, CORRELATION-ID={}", 
-						value, ait, 
-						null == message.getProducerAit() ? "null" : message.getProducerAit(), 
-						null == message.getBusinessTaxonomyId() ? "null" : message.getBusinessTaxonomyId(), 
-						null == message.getCorrelationId() ? "null" : message.getCorrelationId() );
+
+		Object[] args = joinPoint.getArgs();
+		switch (plan.kind) {
+		case RECORD:
+			traceRecord(plan, tracker, args[plan.argIndex]);
+			break;
+		case BATCH:
+			traceBatch(plan, tracker, args[plan.argIndex]);
+			break;
+		default:
+			// argument types give no hint, inspect the values
+			for (Object object : args) {
+				if (object instanceof ConsumerRecord) {
+					if (traceRecord(plan, tracker, object)) {
+						break;
+					}
+				} else if (object instanceof Iterable) {
+					traceBatch(plan, tracker, object);
 					break;
 				}
 			}
- 		}
+		}
+	}
+
+	private boolean traceRecord(TracePlan plan, LatencyTracker tracker, Object object) {
+		if (!(object instanceof ConsumerRecord)) {
+			return false;
+		}
+		return trace(plan, tracker, (ConsumerRecord<?, ?>) object, null == tracker ? null : LocalDateTime.now(), null);
+	}
+
+	private void traceBatch(TracePlan plan, LatencyTracker tracker, Object object) {
+		if (!(object instanceof Iterable)) {
+			return;
+		}
+		LocalDateTime received = null == tracker ? null : LocalDateTime.now();
+		BatchTrace batch = new BatchTrace(plan.log.isInfoEnabled());
+		for (Object element : (Iterable<?>) object) {
+			batch.size++;
+			if (element instanceof ConsumerRecord) {
+				trace(plan, tracker, (ConsumerRecord<?, ?>) element, received, batch);
+			}
+		}
+		if (batch.logging && batch.traced > 0) {
+			plan.log.info("TRACE SERVICE={}, AIT={}, BATCH-SIZE={}, TRACED={}, DROPPED={}, CLIENT-AITS={}, BUSINESS-TAXONOMIES={}, CORRELATION-IDS={}", 
+				plan.service, plan.ait, batch.size, batch.traced, batch.dropped, 
+				String.join(",", batch.clientAits), String.join(",", batch.taxonomies), batch.correlationIds);
+		}
+	}
+
+	/**
+	 * Traces the record's TraceableMessage or ResponseMessage, or its TraceHeaders when the value is neither.
+	 * @return false when the record carries no tracing data
+	 */
+	private boolean trace(TracePlan plan, LatencyTracker tracker, ConsumerRecord<?, ?> record, LocalDateTime received, BatchTrace batch) {
+		Object value = record.value();
+		if (value instanceof TraceableMessage) {
+			TraceableMessage<?> message = (TraceableMessage<?>) value;
+			trace(plan, tracker, message, received, message.getProducerAit(), message.getBusinessTaxonomyId(), message.getCorrelationId(), null, batch);
+			return true;
+		}
+		if (value instanceof ResponseMessage) {
+			ResponseMessage<?, ?> message = (ResponseMessage<?, ?>) value;
+			trace(plan, tracker, message, received, message.getProducerAit(), message.getBusinessTaxonomyId(), message.getCorrelationId(), message.getStatus(), batch);
+			return true;
+		}
+		TraceHeaders headers = TraceHeaders.read(record.headers());
+		if (null != headers) {
+			trace(plan, tracker, headers, received, headers.getProducerAit(), headers.getBusinessTaxonomyId(), headers.getCorrelationId(), headers.getStatus(), batch);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records the latency, asks the policy, then logs one line or adds to the batch's line.
+	 * @param status null for a request
+	 * @param batch null for a single record
+	 */
+	private void trace(TracePlan plan, LatencyTracker tracker, Object value, LocalDateTime received, 
+			String producerAit, String taxonomy, String correlationId, Integer status, BatchTrace batch) {
+		if (null != tracker) {
+			tracker.record(plan.service, plan.ait, value, received);
+		}
+		if (null != batch ? !batch.logging : !plan.log.isInfoEnabled()) {
+			return;
+		}
+		TracingPolicy policy = tracingPolicy;
+		boolean selected = null == policy || policy.shouldTrace(plan.service, value);
+		String clientAit = null == producerAit ? "null" : producerAit;
+		String businessTaxonomy = null == taxonomy ? "null" : taxonomy;
+		String correlation = null == correlationId ? "null" : correlationId;
+		if (null != batch) {
+			batch.add(selected, clientAit, businessTaxonomy, correlation);
+		} else if (selected && null == status) {
+			plan.log.info("TRACE SERVICE={}, AIT={}, CLIENT-AIT={}, BUSINESS-TAXONOMY={}, CORRELATION-ID={}", 
+				plan.service, plan.ait, clientAit, businessTaxonomy, correlation);
+		} else if (selected) {
+			plan.log.info("TRACE SERVICE={}, AIT={}, CLIENT-AIT={}, BUSINESS-TAXONOMY={}, CORRELATION-ID={}, STATUS={}", 
+				plan.service, plan.ait, clientAit, businessTaxonomy, correlation, status);
+		}
+	}
+
+	private TracePlan buildPlan(Method method, Class<?> targetClass, LogKafkaTracingData logKafkaTracingData) {
+		Logger log;
+		if (logKafkaTracingData.logScope().equals(LogKafkaTracingData.class)) {
+			log = LoggerFactory.getLogger(targetClass);
+		} else {
+			log = LoggerFactory.getLogger(logKafkaTracingData.logScope());
+		}
+		String service = resolveLiteral(logKafkaTracingData.value());
+		String ait = resolveLiteral(logKafkaTracingData.ait());
+
+		Type[] types = method.getGenericParameterTypes();
+		for (int index = 0; index < types.length; index++) {
+			Class<?> raw = rawClass(types[index]);
+			if (ConsumerRecord.class.isAssignableFrom(raw)) {
+				return new TracePlan(log, service, ait, ArgKind.RECORD, index);
+			}
+			if (ConsumerRecords.class.isAssignableFrom(raw)) {
+				return new TracePlan(log, service, ait, ArgKind.BATCH, index);
+			}
+			if (Iterable.class.isAssignableFrom(raw) && types[index] instanceof ParameterizedType) {
+				Type element = ((ParameterizedType) types[index]).getActualTypeArguments()[0];
+				if (ConsumerRecord.class.isAssignableFrom(rawClass(element))) {
+					return new TracePlan(log, service, ait, ArgKind.BATCH, index);
+				}
+			}
+		}
+		aspectLog.debug("No ConsumerRecord parameter declared by {}, arguments are inspected per call", method);
+		return new TracePlan(log, service, ait, ArgKind.DYNAMIC, -1);
+	}
+
+	private static Class<?> rawClass(Type type) {
+		if (type instanceof Class) {
+			return (Class<?>) type;
+		}
+		if (type instanceof ParameterizedType) {
+			return rawClass(((ParameterizedType) type).getRawType());
+		}
+		return Object.class;
 	}
 
 	private String resolveLiteral( String literal ) {
@@ -64,14 +229,79 @@ public class LogKafkaTracingDataAspect implements BeanFactoryAware {
 			resolved = parser.parseExpression(literal,tcontext).getValue(context, String.class);
 		} catch (Throwable thrown ) {
 			resolved = literal;
-			log.error("Parse error for \"{}\" {}", literal, thrown.getMessage());
+			aspectLog.error("Parse error for \"{}\" {}", literal, thrown.getMessage());
 		}
 		return resolved;
 	}
 	
+	/**
+	 * When a LatencyTracker bean exists, the latency of each traced message is recorded as well.
+	 */
+	@Autowired(required = false)
+	public void setLatencyTracker(LatencyTracker latencyTracker) {
+		this.latencyTracker = latencyTracker;
+	}
+
+	/**
+	 * When a TracingPolicy bean exists, it selects which messages are logged.
+	 */
+	@Autowired(required = false)
+	public void setTracingPolicy(TracingPolicy tracingPolicy) {
+		this.tracingPolicy = tracingPolicy;
+	}
+
 	@Override
 	public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
 		context = new StandardEvaluationContext(beanFactory);
 		context.setBeanResolver(new BeanFactoryResolver(beanFactory));
+		plans.clear();
+	}
+
+	private enum ArgKind {
+		RECORD, BATCH, DYNAMIC
+	}
+
+	/**
+	 * What one batch line aggregates.
+	 */
+	private static final class BatchTrace {
+		final boolean logging;
+		final Set<String> clientAits = new LinkedHashSet<>();
+		final Set<String> taxonomies = new LinkedHashSet<>();
+		final StringJoiner correlationIds = new StringJoiner(",");
+		int size = 0;
+		int traced = 0;
+		int dropped = 0;
+
+		BatchTrace(boolean logging) {
+			this.logging = logging;
+		}
+
+		void add(boolean selected, String clientAit, String taxonomy, String correlationId) {
+			if (!selected) {
+				dropped++;
+				return;
+			}
+			traced++;
+			clientAits.add(clientAit);
+			taxonomies.add(taxonomy);
+			correlationIds.add(correlationId);
+		}
+	}
+
+	private static final class TracePlan {
+		final Logger log;
+		final String service;
+		final String ait;
+		final ArgKind kind;
+		final int argIndex;
+
+		TracePlan(Logger log, String service, String ait, ArgKind kind, int argIndex) {
+			this.log = log;
+			this.service = service;
+			this.ait = ait;
+			this.kind = kind;
+			this.argIndex = argIndex;
+		}
 	}
 }
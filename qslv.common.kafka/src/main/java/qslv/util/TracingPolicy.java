@@ -0,0 +1,206 @@
+package qslv.util;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import qslv.common.kafka.ResponseMessage;
+import qslv.common.kafka.TraceHeaders;
+import qslv.common.kafka.TraceableMessage;
+
+/**
+ * Decides which traced messages LogKafkaTracingDataAspect logs. Checks run in this order:
+ * 
+ * 1. Always trace: messages whose correlation id or business taxonomy is listed are always logged.
+ * 2. Tail: a ResponseMessage with a status other than SUCCESS, or a message older than the slow threshold, is always logged.
+ * 3. Sampling: other messages are logged with the sample rate probability.
+ * 4. Rate limit: sampled messages are logged while the service has tokens, ratePerSecond refilled, up to burst.
+ * 
+ * Every message not logged is counted by the reason it was dropped, so total volume is traced + dropped.
+ * Decisions take no lock and allocate nothing: the sets are immutable, sampling uses ThreadLocalRandom and
+ * the token buckets are compare-and-set on a single long.
+ * 
+ * Ex: policy.setAlwaysTraceTaxonomies(Arrays.asList("deposit.fraud"));
+ *     policy.setSampleRate(0.05);
+ *     policy.setRateLimit(100.0, 200);
+ *     policy.setSlowThresholdMillis(500L);
+ * 
+ * Declare the policy as a bean to have the aspect use it. Without one every message is logged.
+ * 
+ * @author SMS
+ *
+ */
+public class TracingPolicy {
+	private final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+	private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+	private volatile Set<String> alwaysTraceCorrelationIds = Collections.emptySet();
+	private volatile Set<String> alwaysTraceTaxonomies = Collections.emptySet();
+	private volatile double sampleRate = 1.0;
+	private volatile double ratePerSecond = 0.0;
+	private volatile int burst = 1;
+	private volatile long slowThresholdMillis = 0L;
+
+	private final LongAdder traced = new LongAdder();
+	private final LongAdder forced = new LongAdder();
+	private final LongAdder droppedBySampling = new LongAdder();
+	private final LongAdder droppedByRateLimit = new LongAdder();
+
+	/**
+	 * @param service the traced service, keys the rate limit
+	 * @param value a TraceableMessage, ResponseMessage or TraceHeaders
+	 * @return true when the message should be logged
+	 */
+	public boolean shouldTrace(String service, Object value) {
+		String correlationId;
+		String taxonomy;
+		LocalDateTime created;
+		boolean failed = false;
+		if (value instanceof TraceableMessage) {
+			TraceableMessage<?> message = (TraceableMessage<?>) value;
+			correlationId = message.getCorrelationId();
+			taxonomy = message.getBusinessTaxonomyId();
+			created = message.getMessageCreationTime();
+		} else if (value instanceof ResponseMessage) {
+			ResponseMessage<?, ?> message = (ResponseMessage<?, ?>) value;
+			correlationId = message.getCorrelationId();
+			taxonomy = message.getBusinessTaxonomyId();
+			created = message.getMessageCreationTime();
+			failed = message.getStatus() != ResponseMessage.SUCCESS;
+		} else if (value instanceof TraceHeaders) {
+			TraceHeaders headers = (TraceHeaders) value;
+			correlationId = headers.getCorrelationId();
+			taxonomy = headers.getBusinessTaxonomyId();
+			created = headers.getMessageCreationTime();
+			failed = null != headers.getStatus() && headers.getStatus() != ResponseMessage.SUCCESS;
+		} else {
+			return false;
+		}
+
+		if ((null != correlationId && alwaysTraceCorrelationIds.contains(correlationId))
+				|| (null != taxonomy && alwaysTraceTaxonomies.contains(taxonomy))
+				|| failed || isSlow(created)) {
+			forced.increment();
+			traced.increment();
+			return true;
+		}
+		double rate = sampleRate;
+		if (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate) {
+			droppedBySampling.increment();
+			return false;
+		}
+		if (ratePerSecond > 0.0 && !bucket(service).tryAcquire(System.nanoTime())) {
+			droppedByRateLimit.increment();
+			return false;
+		}
+		traced.increment();
+		return true;
+	}
+
+	private boolean isSlow(LocalDateTime created) {
+		long threshold = slowThresholdMillis;
+		if (threshold <= 0L || null == created) {
+			return false;
+		}
+		long createdMillis = created.toEpochSecond(zoneRules.getOffset(created)) * 1000L + created.getNano() / 1_000_000;
+		return System.currentTimeMillis() - createdMillis >= threshold;
+	}
+
+	private TokenBucket bucket(String service) {
+		String key = null == service ? "null" : service;
+		TokenBucket bucket = buckets.get(key);
+		if (null == bucket) {
+			bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(ratePerSecond, burst, System.nanoTime()));
+		}
+		return bucket;
+	}
+
+	public void setAlwaysTraceCorrelationIds(Collection<String> correlationIds) {
+		alwaysTraceCorrelationIds = Collections.unmodifiableSet(new HashSet<>(correlationIds));
+	}
+	public void setAlwaysTraceTaxonomies(Collection<String> taxonomies) {
+		alwaysTraceTaxonomies = Collections.unmodifiableSet(new HashSet<>(taxonomies));
+	}
+	/**
+	 * @param sampleRate fraction of messages logged, 0.0 to 1.0
+	 */
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+	}
+	/**
+	 * @param ratePerSecond lines per second per service, 0 for no limit
+	 * @param burst lines that may be logged at once after a quiet period
+	 */
+	public void setRateLimit(double ratePerSecond, int burst) {
+		this.burst = Math.max(1, burst);
+		this.ratePerSecond = Math.max(0.0, ratePerSecond);
+		buckets.clear();
+	}
+	/**
+	 * @param slowThresholdMillis messages at least this old are always logged, 0 to disable
+	 */
+	public void setSlowThresholdMillis(long slowThresholdMillis) {
+		this.slowThresholdMillis = slowThresholdMillis;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+	public long getTraced() {
+		return traced.sum();
+	}
+	/**
+	 * Messages logged because of the always trace lists or the tail rules, included in getTraced().
+	 */
+	public long getForced() {
+		return forced.sum();
+	}
+	public long getDroppedBySampling() {
+		return droppedBySampling.sum();
+	}
+	public long getDroppedByRateLimit() {
+		return droppedByRateLimit.sum();
+	}
+	public long getDropped() {
+		return droppedBySampling.sum() + droppedByRateLimit.sum();
+	}
+
+	/**
+	 * Token bucket kept as a single theoretical arrival time, the generic cell rate algorithm. A token is
+	 * available while the arrival time is no more than burst tokens ahead of now.
+	 */
+	static final class TokenBucket {
+		private final long intervalNanos;
+		private final long toleranceNanos;
+		private final AtomicLong arrival;
+
+		TokenBucket(double ratePerSecond, int burst, long now) {
+			this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1L) / ratePerSecond));
+			this.toleranceNanos = intervalNanos * (burst - 1);
+			this.arrival = new AtomicLong(now);
+		}
+
+		boolean tryAcquire(long now) {
+			while (true) {
+				long current = arrival.get();
+				long base = current - now < 0L ? now : current;
+				if (base - now > toleranceNanos) {
+					return false;
+				}
+				if (arrival.compareAndSet(current, base + intervalNanos)) {
+					return true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package qslv.common.kafka;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.avro.AvroMapper;
+import com.fasterxml.jackson.dataformat.avro.AvroSchema;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * DirectCodec must write exactly the bytes Jackson writes for the same schema, and read back what Jackson reads.
+ */
+class DirectCodecTest {
+
+	@Test
+	void primitivesMatchJackson() throws Exception {
+		Primitives value = new Primitives();
+		value.setCount(-42);
+		value.setTotal(Long.MAX_VALUE);
+		value.setRatio(0.25f);
+		value.setAmount(-1234.5678);
+		value.setActive(true);
+		value.setName("deposit é中");
+		value.setBoxedCount(7);
+		value.setBoxedTotal(-9L);
+		value.setData(new byte[] { 0, 1, -1, 127 });
+
+		Primitives decoded = roundTrip(value, false);
+		assertEquals(-42, decoded.getCount());
+		assertEquals(Long.MAX_VALUE, decoded.getTotal());
+		assertEquals(0.25f, decoded.getRatio());
+		assertEquals(-1234.5678, decoded.getAmount());
+		assertEquals(true, decoded.isActive());
+		assertEquals("deposit é中", decoded.getName());
+		assertEquals(Integer.valueOf(7), decoded.getBoxedCount());
+		assertEquals(Long.valueOf(-9L), decoded.getBoxedTotal());
+		assertArrayEquals(new byte[] { 0, 1, -1, 127 }, decoded.getData());
+	}
+
+	@Test
+	void nullableUnionsMatchJackson() throws Exception {
+		Primitives decoded = roundTrip(new Primitives(), false);
+		assertNull(decoded.getName());
+		assertNull(decoded.getBoxedCount());
+		assertNull(decoded.getBoxedTotal());
+		assertNull(decoded.getData());
+
+		Nested nested = roundTrip(new Nested(), false);
+		assertNull(nested.getCreated());
+		assertNull(nested.getInner());
+	}
+
+	@Test
+	void isoLocalDateTimeMatchesJackson() throws Exception {
+		Nested value = new Nested();
+		value.setCreated(LocalDateTime.of(2020, 7, 1, 12, 30, 15, 123456000));
+		assertEquals(value.getCreated(), roundTrip(value, false).getCreated());
+
+		// whole minutes, where LocalDateTime.toString() would drop the seconds
+		value.setCreated(LocalDateTime.of(2020, 7, 1, 12, 30));
+		assertEquals(value.getCreated(), roundTrip(value, false).getCreated());
+	}
+
+	@Test
+	void microsLocalDateTimeMatchesJackson() throws Exception {
+		Nested value = new Nested();
+		value.setCreated(LocalDateTime.of(2020, 7, 1, 12, 30, 15, 123456000));
+		assertEquals(value.getCreated(), roundTrip(value, true).getCreated());
+
+		value.setCreated(LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999999000));
+		assertEquals(value.getCreated(), roundTrip(value, true).getCreated());
+	}
+
+	@Test
+	void nestedRecordMatchesJackson() throws Exception {
+		Inner inner = new Inner();
+		inner.setLabel("inner");
+		inner.setSequence(3L);
+		Nested value = new Nested();
+		value.setId("outer");
+		value.setInner(inner);
+		value.setCreated(LocalDateTime.of(2020, 7, 1, 12, 30, 15));
+
+		Nested decoded = roundTrip(value, false);
+		assertEquals("outer", decoded.getId());
+		assertNotSame(inner, decoded.getInner());
+		assertEquals("inner", decoded.getInner().getLabel());
+		assertEquals(3L, decoded.getInner().getSequence());
+
+		assertEquals("inner", roundTrip(value, true).getInner().getLabel());
+	}
+
+	/**
+	 * Encodes with Jackson and DirectCodec, asserts the same bytes, then decodes with DirectCodec and asserts
+	 * the result encodes to the same bytes again and reads as Jackson reads it.
+	 */
+	private static <T> T roundTrip(T value, boolean binaryTimestamps) throws Exception {
+		Map<String, String> config = Collections.singletonMap(JacksonAvroSerdeConfig.CONFIG_TIMESTAMPS_BINARY, Boolean.toString(binaryTimestamps));
+		Class<?> type = value.getClass();
+		Schema schema = new AvroSchemaGenerator(config).generate(type);
+		AvroMapper writeMapper = mapper(binaryTimestamps);
+		AvroMapper readMapper = mapper(false);
+		readMapper.registerModule(new AvroTimestampModule(false));
+
+		byte[] jackson = writeMapper.writer(new AvroSchema(schema)).writeValueAsBytes(value);
+		DirectCodec writer = DirectCodec.forWriting(writeMapper, writeMapper.constructType(type), schema);
+		assertNotSame(DirectCodec.UNSUPPORTED, writer, "no direct encoder for " + type);
+		assertArrayEquals(jackson, encode(writer, value), "direct encoding of " + type + " differs from Jackson");
+
+		DirectCodec reader = DirectCodec.forReading(readMapper, readMapper.constructType(type), schema, null);
+		assertNotSame(DirectCodec.UNSUPPORTED, reader, "no direct decoder for " + type);
+		@SuppressWarnings("unchecked")
+		T decoded = (T) reader.decode(new AvroBinaryCursor(jackson, 0, jackson.length));
+		assertArrayEquals(jackson, encode(writer, decoded), "direct decoding of " + type + " lost a value");
+		Object read = readMapper.readerFor(type).with(new AvroSchema(schema)).readValue(jackson);
+		assertArrayEquals(jackson, encode(writer, read), "direct decoding of " + type + " differs from Jackson");
+		return decoded;
+	}
+
+	private static byte[] encode(DirectCodec codec, Object value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.encode(value, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * As SerdeContext builds it.
+	 */
+	private static AvroMapper mapper(boolean binaryTimestamps) {
+		AvroMapper mapper = new AvroMapper();
+		mapper.registerModule(new JavaTimeModule());
+		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+		if (binaryTimestamps) {
+			mapper.registerModule(new AvroTimestampModule(true));
+		}
+		return mapper;
+	}
+
+	public static class Primitives {
+		private int count;
+		private long total;
+		private float ratio;
+		private double amount;
+		private boolean active;
+		private String name;
+		private Integer boxedCount;
+		private Long boxedTotal;
+		private byte[] data;
+
+		public int getCount() {
+			return count;
+		}
+		public void setCount(int count) {
+			this.count = count;
+		}
+		public long getTotal() {
+			return total;
+		}
+		public void setTotal(long total) {
+			this.total = total;
+		}
+		public float getRatio() {
+			return ratio;
+		}
+		public void setRatio(float ratio) {
+			this.ratio = ratio;
+		}
+		public double getAmount() {
+			return amount;
+		}
+		public void setAmount(double amount) {
+			this.amount = amount;
+		}
+		public boolean isActive() {
+			return active;
+		}
+		public void setActive(boolean active) {
+			this.active = active;
+		}
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		public Integer getBoxedCount() {
+			return boxedCount;
+		}
+		public void setBoxedCount(Integer boxedCount) {
+			this.boxedCount = boxedCount;
+		}
+		public Long getBoxedTotal() {
+			return boxedTotal;
+		}
+		public void setBoxedTotal(Long boxedTotal) {
+			this.boxedTotal = boxedTotal;
+		}
+		public byte[] getData() {
+			return data;
+		}
+		public void setData(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	public static class Inner {
+		private String label;
+		private long sequence;
+
+		public String getLabel() {
+			return label;
+		}
+		public void setLabel(String label) {
+			this.label = label;
+		}
+		public long getSequence() {
+			return sequence;
+		}
+		public void setSequence(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	public static class Nested {
+		private String id;
+		private LocalDateTime created;
+		private Inner inner;
+
+		public String getId() {
+			return id;
+		}
+		public void setId(String id) {
+			this.id = id;
+		}
+		public LocalDateTime getCreated() {
+			return created;
+		}
+		public void setCreated(LocalDateTime created) {
+			this.created = created;
+		}
+		public Inner getInner() {
+			return inner;
+		}
+		public void setInner(Inner inner) {
+			this.inner = inner;
+		}
+	}
+}
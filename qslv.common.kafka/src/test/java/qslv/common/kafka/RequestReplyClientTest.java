@@ -0,0 +1,243 @@
+package qslv.common.kafka;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import qslv.util.HashedWheelTimer;
+
+class RequestReplyClientTest {
+	private static final String REQUEST_TOPIC = "deposit.request";
+	private static final TopicPartition REPLY_PARTITION = new TopicPartition("deposit.reply", 0);
+
+	private HashedWheelTimer timer;
+	private MockProducer<String, TraceableMessage<String>> producer;
+	private MockConsumer<String, ResponseMessage<String, String>> consumer;
+	private long replyOffset = 0L;
+
+	@BeforeEach
+	void setup() {
+		timer = new HashedWheelTimer("request-reply-test", 5L, 64);
+		producer = new MockProducer<>(true, new StringSerializer(), (topic, message) -> new byte[0]);
+		consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+		consumer.assign(Collections.singletonList(REPLY_PARTITION));
+		consumer.updateBeginningOffsets(Collections.singletonMap(REPLY_PARTITION, 0L));
+	}
+
+	@AfterEach
+	void tearDown() {
+		timer.close();
+	}
+
+	@Test
+	void replyCompletesTheRequestWithTheSameCorrelationId() throws Exception {
+		RequestReplyClient<String, String, String> client = client(10, 5000L);
+		CompletableFuture<ResponseMessage<String, String>> first = client.send("account-1", request("first"));
+		CompletableFuture<ResponseMessage<String, String>> second = client.send("account-2", request("second"));
+
+		assertEquals(2, producer.history().size());
+		assertEquals(2, client.getInFlight());
+		TraceableMessage<String> secondRequest = producer.history().get(1).value();
+		assertNotNull(secondRequest.getCorrelationId());
+
+		reply(secondRequest, ResponseMessage.SUCCESS, "done");
+		assertEquals(1, client.dispatch(consumer.poll(Duration.ofMillis(10))));
+
+		assertFalse(first.isDone());
+		ResponseMessage<String, String> response = second.get(1, TimeUnit.SECONDS);
+		assertEquals("done", response.getResponse());
+		assertEquals(secondRequest.getCorrelationId(), response.getCorrelationId());
+		assertEquals(1, client.getInFlight());
+		client.close();
+	}
+
+	@Test
+	void requestKeepsItsOwnCorrelationId() throws Exception {
+		RequestReplyClient<String, String, String> client = client(10, 5000L);
+		TraceableMessage<String> request = request("payload");
+		request.setCorrelationId("correlation-1");
+		CompletableFuture<ResponseMessage<String, String>> future = client.send("account-1", request);
+
+		ProducerRecord<String, TraceableMessage<String>> sent = producer.history().get(0);
+		assertEquals(REQUEST_TOPIC, sent.topic());
+		assertEquals("account-1", sent.key());
+		assertEquals("correlation-1", sent.value().getCorrelationId());
+
+		CompletableFuture<ResponseMessage<String, String>> duplicate = client.send("account-1", request);
+		assertTrue(causeOf(duplicate) instanceof KafkaException);
+		assertFalse(future.isDone());
+		client.close();
+	}
+
+	@Test
+	void unmatchedAndLateRepliesAreCountedAndIgnored() throws Exception {
+		RequestReplyClient<String, String, String> client = client(10, 5000L);
+		CompletableFuture<ResponseMessage<String, String>> future = client.send("account-1", request("payload"));
+		TraceableMessage<String> sent = producer.history().get(0).value();
+
+		TraceableMessage<String> stranger = request("other");
+		stranger.setCorrelationId("someone-else");
+		reply(stranger, ResponseMessage.SUCCESS, "not ours");
+		reply(sent, ResponseMessage.SUCCESS, "ours");
+		reply(sent, ResponseMessage.SUCCESS, "duplicate");
+
+		assertEquals(1, client.dispatch(consumer.poll(Duration.ofMillis(10))));
+		assertEquals("ours", future.get(1, TimeUnit.SECONDS).getResponse());
+		assertEquals(2, client.getUnmatched());
+		client.close();
+	}
+
+	@Test
+	void errorStatusFailsWithItsReplyException() throws Exception {
+		RequestReplyClient<String, String, String> client = client(10, 5000L);
+		CompletableFuture<ResponseMessage<String, String>> insufficient = client.send("account-1", request("a"));
+		CompletableFuture<ResponseMessage<String, String>> malformed = client.send("account-1", request("b"));
+		CompletableFuture<ResponseMessage<String, String>> conflict = client.send("account-1", request("c"));
+		CompletableFuture<ResponseMessage<String, String>> internal = client.send("account-1", request("d"));
+		CompletableFuture<ResponseMessage<String, String>> unknown = client.send("account-1", request("e"));
+
+		reply(producer.history().get(0).value(), ResponseMessage.INSUFFICIENT_FUNDS, null);
+		reply(producer.history().get(1).value(), ResponseMessage.MALFORMED_MESSAGE, null);
+		reply(producer.history().get(2).value(), ResponseMessage.CONFLICT, null);
+		reply(producer.history().get(3).value(), ResponseMessage.INTERNAL_ERROR, null);
+		reply(producer.history().get(4).value(), 99, null);
+		assertEquals(5, client.dispatch(consumer.poll(Duration.ofMillis(10))));
+
+		assertTrue(causeOf(insufficient) instanceof ReplyException.InsufficientFunds);
+		assertTrue(causeOf(malformed) instanceof ReplyException.MalformedMessage);
+		assertTrue(causeOf(conflict) instanceof ReplyException.Conflict);
+		assertTrue(causeOf(internal) instanceof ReplyException.InternalFailure);
+		ReplyException other = (ReplyException) causeOf(unknown);
+		assertSame(ReplyException.class, other.getClass());
+		assertEquals(99, other.getStatus());
+		assertEquals(producer.history().get(4).value().getCorrelationId(), other.getResponse().getCorrelationId());
+		assertEquals(0, client.getInFlight());
+		client.close();
+	}
+
+	@Test
+	void requestWithoutReplyTimesOut() throws Exception {
+		RequestReplyClient<String, String, String> client = client(10, 50L);
+		CompletableFuture<ResponseMessage<String, String>> future = client.send("account-1", request("payload"));
+		CompletableFuture<String> completedOn = future.handle((response, ex) -> Thread.currentThread().getName());
+
+		assertTrue(causeOf(future) instanceof TimeoutException);
+		assertNotEquals("request-reply-test", completedOn.get(5, TimeUnit.SECONDS));
+		assertEquals(1, client.getTimedOut());
+		assertEquals(0, client.getInFlight());
+
+		reply(producer.history().get(0).value(), ResponseMessage.SUCCESS, "late");
+		assertEquals(0, client.dispatch(consumer.poll(Duration.ofMillis(10))));
+		assertEquals(1, client.getUnmatched());
+		client.close();
+	}
+
+	@Test
+	void sendWaitsForAFreeSlotThenFails() throws Exception {
+		RequestReplyClient<String, String, String> client = client(1, 5000L);
+		CompletableFuture<ResponseMessage<String, String>> first = client.send("account-1", request("first"));
+
+		CompletableFuture<ResponseMessage<String, String>> refused = client.send("account-1", request("second"), 20L);
+		assertTrue(causeOf(refused) instanceof TimeoutException);
+		assertEquals(1, producer.history().size());
+
+		reply(producer.history().get(0).value(), ResponseMessage.SUCCESS, "done");
+		client.dispatch(consumer.poll(Duration.ofMillis(10)));
+		assertEquals("done", first.get(1, TimeUnit.SECONDS).getResponse());
+
+		// the reply gave back the slot
+		client.send("account-1", request("third"), 20L);
+		assertEquals(2, producer.history().size());
+		assertEquals(1, client.getInFlight());
+		client.close();
+	}
+
+	@Test
+	void failedSendFailsTheRequestAndFreesItsSlot() throws Exception {
+		producer = new MockProducer<>(false, new StringSerializer(), (topic, message) -> new byte[0]);
+		RequestReplyClient<String, String, String> client = client(1, 5000L);
+		CompletableFuture<ResponseMessage<String, String>> future = client.send("account-1", request("payload"));
+
+		KafkaException ex = new KafkaException("broker gone");
+		assertTrue(producer.errorNext(ex));
+		assertSame(ex, causeOf(future));
+		assertEquals(0, client.getInFlight());
+
+		client.send("account-1", request("again"), 20L);
+		assertEquals(1, client.getInFlight());
+		client.close();
+	}
+
+	@Test
+	void closeFailsPendingRequestsAndRefusesNewOnes() throws Exception {
+		RequestReplyClient<String, String, String> client = new RequestReplyClient<>(producer, REQUEST_TOPIC, 10, 5000L);
+		CompletableFuture<ResponseMessage<String, String>> pending = client.send("account-1", request("payload"));
+
+		client.close();
+		assertTrue(causeOf(pending) instanceof KafkaException);
+		assertEquals(0, client.getInFlight());
+
+		CompletableFuture<ResponseMessage<String, String>> refused = client.send("account-1", request("after"));
+		assertTrue(causeOf(refused) instanceof KafkaException);
+		assertEquals(1, producer.history().size());
+
+		reply(producer.history().get(0).value(), ResponseMessage.SUCCESS, "late");
+		assertEquals(0, client.dispatch(consumer.poll(Duration.ofMillis(10))));
+	}
+
+	@Test
+	void closeLeavesASuppliedTimerRunning() throws Exception {
+		client(10, 5000L).close();
+
+		RequestReplyClient<String, String, String> other = client(10, 50L);
+		CompletableFuture<ResponseMessage<String, String>> future = other.send("account-1", request("payload"));
+		assertTrue(causeOf(future) instanceof TimeoutException);
+		other.close();
+	}
+
+	private RequestReplyClient<String, String, String> client(int maxInFlight, long timeoutMs) {
+		return new RequestReplyClient<>(producer, REQUEST_TOPIC, maxInFlight, timeoutMs, timer);
+	}
+
+	private static TraceableMessage<String> request(String payload) {
+		TraceableMessage<String> request = new TraceableMessage<>();
+		request.setProducerAit("12345");
+		request.setBusinessTaxonomyId("deposit");
+		request.setPayload(payload);
+		return request;
+	}
+
+	private void reply(TraceableMessage<String> request, int status, String response) {
+		ResponseMessage<String, String> reply = new ResponseMessage<>(request, request.getPayload(), response);
+		reply.setStatus(status);
+		consumer.addRecord(new ConsumerRecord<>(REPLY_PARTITION.topic(), REPLY_PARTITION.partition(), replyOffset++,
+				request.getCorrelationId(), reply));
+	}
+
+	private static Throwable causeOf(CompletableFuture<?> future) {
+		return assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS)).getCause();
+	}
+}